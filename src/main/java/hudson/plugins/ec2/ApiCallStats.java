@@ -0,0 +1,178 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.Stapler;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the EC2 API calls of one {@link EC2Cloud}: calls, latencies, errors and throttles, per operation and per
+ * {@link Subsystem} making them.
+ *
+ * <p>
+ * Latencies go into fixed buckets, so percentiles are reported as the upper bound of their bucket.
+ */
+final class ApiCallStats {
+
+    /**
+     * Part of the plugin an API call is made for.
+     */
+    enum Subsystem { PROVISIONING, LAUNCH, MONITOR, RETENTION, UI, OTHER }
+
+    private static final ThreadLocal<Subsystem> CURRENT = new ThreadLocal<>();
+
+    /**
+     * Upper bounds (in milliseconds) of the latency buckets, the last bucket takes the rest.
+     */
+    private static final long[] BOUNDS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private final Map<String, Counters> byOperation = new ConcurrentHashMap<>();
+
+    private final Map<Subsystem, Counters> bySubsystem = new ConcurrentHashMap<>();
+
+    private final long since = System.currentTimeMillis();
+
+    /**
+     * Attributes the API calls the current thread makes to the given subsystem, until the returned scope is closed.
+     */
+    static Scope enter(Subsystem subsystem) {
+        Subsystem previous = CURRENT.get();
+        CURRENT.set(subsystem);
+        return () -> CURRENT.set(previous);
+    }
+
+    /**
+     * Subsystem the current thread makes calls for. Calls made while serving a web request count as {@link
+     * Subsystem#UI} unless attributed otherwise.
+     */
+    static Subsystem current() {
+        Subsystem subsystem = CURRENT.get();
+        if (subsystem != null) {
+            return subsystem;
+        }
+        return Stapler.getCurrentRequest() != null ? Subsystem.UI : Subsystem.OTHER;
+    }
+
+    /**
+     * Records one call to EC2.
+     *
+     * @param errorCode the error EC2 or the client answered with, {@code null} if the call succeeded
+     */
+    void record(String operation, Subsystem subsystem, long nanos, @CheckForNull String errorCode, boolean throttled) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        byOperation.computeIfAbsent(operation, o -> new Counters()).add(millis, errorCode, throttled);
+        bySubsystem.computeIfAbsent(subsystem, s -> new Counters()).add(millis, errorCode, throttled);
+    }
+
+    long getCalls(String operation) {
+        Counters c = byOperation.get(operation);
+        return c == null ? 0 : c.calls.get();
+    }
+
+    long getCalls(Subsystem subsystem) {
+        Counters c = bySubsystem.get(subsystem);
+        return c == null ? 0 : c.calls.get();
+    }
+
+    long getThrottles(String operation) {
+        Counters c = byOperation.get(operation);
+        return c == null ? 0 : c.throttles.get();
+    }
+
+    JSONObject toJSON() {
+        JSONObject operations = new JSONObject();
+        for (Map.Entry<String, Counters> e : new TreeMap<>(byOperation).entrySet()) {
+            operations.put(e.getKey(), e.getValue().toJSON());
+        }
+        JSONObject subsystems = new JSONObject();
+        for (Subsystem s : Subsystem.values()) {
+            Counters c = bySubsystem.get(s);
+            if (c != null) {
+                subsystems.put(s.name(), c.toJSON());
+            }
+        }
+        JSONObject json = new JSONObject();
+        json.put("since", since);
+        json.put("operations", operations);
+        json.put("subsystems", subsystems);
+        return json;
+    }
+
+    /**
+     * Closes without throwing.
+     */
+    interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final class Counters {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong throttles = new AtomicLong();
+        private final AtomicLong maxMillis = new AtomicLong();
+        private final AtomicLongArray latencies = new AtomicLongArray(BOUNDS.length + 1);
+        private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+        private void add(long millis, String errorCode, boolean throttled) {
+            calls.incrementAndGet();
+            if (throttled) {
+                throttles.incrementAndGet();
+            }
+            if (errorCode != null) {
+                errors.computeIfAbsent(errorCode, c -> new AtomicLong()).incrementAndGet();
+            }
+            maxMillis.accumulateAndGet(millis, Math::max);
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+                bucket++;
+            }
+            latencies.incrementAndGet(bucket);
+        }
+
+        /**
+         * Latency (in milliseconds) that the given share of the calls did not exceed.
+         */
+        private long percentile(double share) {
+            long total = 0;
+            for (int i = 0; i < latencies.length(); i++) {
+                total += latencies.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(share * total);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += latencies.get(i);
+                if (seen >= rank) {
+                    return Math.min(BOUNDS[i], maxMillis.get());
+                }
+            }
+            return maxMillis.get();
+        }
+
+        private JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("calls", calls.get());
+            json.put("throttles", throttles.get());
+            JSONObject latency = new JSONObject();
+            latency.put("p50", percentile(0.5));
+            latency.put("p90", percentile(0.9));
+            latency.put("p99", percentile(0.99));
+            latency.put("max", maxMillis.get());
+            json.put("latencyMillis", latency);
+            JSONObject errorCounts = new JSONObject();
+            for (Map.Entry<String, AtomicLong> e : new TreeMap<>(errors).entrySet()) {
+                errorCounts.put(e.getKey(), e.getValue().get());
+            }
+            json.put("errors", errorCounts);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonServiceException;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client-side rate limit of the EC2 API calls of one {@link EC2Cloud}.
+ *
+ * <p>
+ * EC2 throttles API calls per account and region with token buckets, separately for describe calls and for calls that
+ * change something. Each {@link Category} here gets a token bucket too, which starts at the refill rate EC2 documents
+ * by default, and learns the rate actually available: it halves whenever EC2 answers a call with a throttling error,
+ * and grows back by a small step with every call that goes through.
+ *
+ * <p>
+ * Calls that change something matter more than the background describes. Describe calls yield to waiting mutating
+ * calls, and a throttled mutating call slows the describes down as well.
+ */
+final class ApiRateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(ApiRateLimiter.class.getName());
+
+    /**
+     * Lowest rate (in calls per second) a bucket is slowed down to.
+     */
+    private static final double MIN_RATE = 0.5;
+
+    /**
+     * A bucket is halved at most once per that long (in nanoseconds), so that a burst of throttled calls counts once.
+     */
+    private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * How long (in milliseconds) a describe call yields to waiting mutating calls at most.
+     */
+    private static final long MAX_YIELD = TimeUnit.SECONDS.toMillis(1);
+
+    enum Category {
+        DESCRIBE("describe", 20, 100),
+        MUTATE("mutate", 5, 50),
+        TAG("tag", 5, 50);
+
+        private final double rate;
+        private final int burst;
+
+        Category(String property, int rate, int burst) {
+            this.rate = Integer.getInteger("jenkins.ec2." + property + "ApiRate", rate);
+            this.burst = Integer.getInteger("jenkins.ec2." + property + "ApiBurst", burst);
+        }
+    }
+
+    private final Map<Category, TokenBucket> buckets = new EnumMap<>(Category.class);
+
+    /**
+     * Number of mutating calls waiting for a token.
+     */
+    private final AtomicInteger waitingMutations = new AtomicInteger();
+
+    ApiRateLimiter() {
+        for (Category c : Category.values()) {
+            buckets.put(c, new TokenBucket(c.rate, c.burst));
+        }
+    }
+
+    /**
+     * Whether EC2 refused the call because of its rate limit.
+     */
+    static boolean isThrottling(AmazonServiceException e) {
+        return "RequestLimitExceeded".equals(e.getErrorCode()) || "Throttling".equals(e.getErrorCode())
+                || e.getStatusCode() == 429;
+    }
+
+    /**
+     * Waits until a call of the given category may be made.
+     */
+    void acquire(Category category) throws InterruptedException {
+        if (category == Category.DESCRIBE) {
+            long deadline = System.currentTimeMillis() + MAX_YIELD;
+            while (waitingMutations.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        } else {
+            waitingMutations.incrementAndGet();
+        }
+        try {
+            long wait = buckets.get(category).take();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        } finally {
+            if (category != Category.DESCRIBE) {
+                waitingMutations.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Records a call EC2 accepted.
+     */
+    void succeeded(Category category) {
+        buckets.get(category).increase();
+    }
+
+    /**
+     * Records a call EC2 throttled.
+     */
+    void throttled(Category category) {
+        if (buckets.get(category).decrease()) {
+            LOGGER.log(Level.INFO, "EC2 throttled {0} calls, slowing down to {1} calls per second",
+                    new Object[]{category, buckets.get(category).getRate()});
+        }
+        if (category != Category.DESCRIBE) {
+            buckets.get(Category.DESCRIBE).decrease();
+        }
+    }
+
+    /**
+     * Current rate (in calls per second) of the given category.
+     */
+    double getRate(Category category) {
+        return buckets.get(category).getRate();
+    }
+
+    private static final class TokenBucket {
+        private final double maxRate;
+        private final double capacity;
+        private double rate;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private long decreasedAt = System.nanoTime() - DECREASE_INTERVAL;
+
+        private TokenBucket(double rate, int capacity) {
+            this.maxRate = rate;
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        /**
+         * Takes a token, possibly ahead of time.
+         *
+         * @return how long (in nanoseconds) the caller must wait for its token.
+         */
+        private synchronized long take() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        private synchronized void increase() {
+            rate = Math.min(maxRate, rate + maxRate / 100);
+        }
+
+        /**
+         * @return whether the rate was lowered.
+         */
+        private synchronized boolean decrease() {
+            long now = System.nanoTime();
+            if (now - decreasedAt < DECREASE_INTERVAL) {
+                return false;
+            }
+            decreasedAt = now;
+            rate = Math.max(MIN_RATE, rate / 2);
+            // Stop the burst that got throttled
+            tokens = Math.min(tokens, 0);
+            return true;
+        }
+
+        private synchronized double getRate() {
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Running count of the instances an {@link EC2Cloud} and each of its templates use, so the instance caps can be
+ * checked without asking EC2.
+ *
+ * <p>
+ * The count has two parts. The counted part is set by {@link #reconcile} from a full recount, and lowered when Jenkins
+ * stops or terminates an instance. The other part is made of {@link Reservation}s: capacity taken before a launch,
+ * which stays reserved once the launch is committed until a recount that started after the commit replaces it.
+ *
+ * <p>
+ * Reserving is lock-free: both caps are enforced with compare-and-set on the usage counters, so templates never
+ * wait for each other. Launches of the same template are serialized by its {@link #getProvisioningLock
+ * provisioning lock} instead, so that two launches can't adopt the same orphan instance. The remaining bookkeeping
+ * is constant-time (or linear in the number of launches in flight) and never calls EC2.
+ */
+final class CapacityLedger {
+
+    /**
+     * How often (in milliseconds) the ledger is corrected by a full recount.
+     */
+    static final long RECONCILE_PERIOD = Long.getLong("jenkins.ec2.capacityReconcilePeriod", TimeUnit.MINUTES.toMillis(1));
+
+    /**
+     * Counted plus reserved instances of the whole cloud.
+     */
+    private final AtomicInteger used = new AtomicInteger();
+
+    /**
+     * Keyed by template identity, as descriptions need not be unique. The ledger goes away with the templates when
+     * the cloud is reconfigured.
+     */
+    private final Map<SlaveTemplate, TemplateCapacity> templates = new ConcurrentHashMap<>();
+
+    private final Queue<Reservation> reservations = new ConcurrentLinkedQueue<>();
+
+    private int counted;
+
+    private volatile long lastReconcile;
+
+    /**
+     * Whether the ledger has never been reconciled, or not for longer than {@link #RECONCILE_PERIOD}.
+     */
+    boolean isStale() {
+        return lastReconcile == 0 || System.currentTimeMillis() - lastReconcile >= RECONCILE_PERIOD;
+    }
+
+    /**
+     * Lock held while a template provisions, so that templates provision concurrently but a single template does not.
+     */
+    ReentrantLock getProvisioningLock(SlaveTemplate template) {
+        return getTemplate(template).provisioningLock;
+    }
+
+    /**
+     * Reserves up to {@code number} instances of the given template, within both caps.
+     *
+     * @return {@code null} if there is no capacity left, otherwise a reservation for at least one instance.
+     */
+    @CheckForNull
+    Reservation reserve(SlaveTemplate template, int templateCap, int cloudCap, int number) {
+        TemplateCapacity tc = getTemplate(template);
+        int granted = tryAcquire(tc.used, templateCap, number);
+        if (granted <= 0) {
+            return null;
+        }
+        int cloudGranted = tryAcquire(used, cloudCap, granted);
+        if (cloudGranted < granted) {
+            tc.used.addAndGet(cloudGranted - granted);
+        }
+        if (cloudGranted <= 0) {
+            return null;
+        }
+        Reservation r = new Reservation(tc, cloudGranted);
+        reservations.add(r);
+        return r;
+    }
+
+    /**
+     * Adds up to {@code number} to the counter without ever taking it past {@code cap}.
+     *
+     * @return how much was added.
+     */
+    private static int tryAcquire(AtomicInteger counter, int cap, int number) {
+        while (true) {
+            int current = counter.get();
+            int granted = Math.min(number, cap - current);
+            if (granted <= 0) {
+                return 0;
+            }
+            if (counter.compareAndSet(current, current + granted)) {
+                return granted;
+            }
+        }
+    }
+
+    /**
+     * Replaces the counted part with the result of a recount.
+     *
+     * @param since when the recount started. Reservations committed before that are part of the recount.
+     */
+    synchronized void reconcile(long since, int total, Map<SlaveTemplate, Integer> byTemplate) {
+        for (Iterator<Reservation> it = reservations.iterator(); it.hasNext();) {
+            Reservation r = it.next();
+            if (r.committedAt < since) {
+                it.remove();
+                r.template.used.addAndGet(-r.count);
+                used.addAndGet(-r.count);
+            }
+        }
+        used.addAndGet(total - counted);
+        counted = total;
+        for (SlaveTemplate template : byTemplate.keySet()) {
+            getTemplate(template);
+        }
+        for (TemplateCapacity tc : templates.values()) {
+            Integer n = byTemplate.get(tc.template);
+            int newCount = n == null ? 0 : n;
+            tc.used.addAndGet(newCount - tc.counted);
+            tc.counted = newCount;
+        }
+        lastReconcile = System.currentTimeMillis();
+    }
+
+    /**
+     * Frees the capacity of an instance of the given template that Jenkins just stopped or terminated.
+     *
+     * @param template {@code null} if the template is not configured anymore.
+     */
+    synchronized void onRemoved(@CheckForNull SlaveTemplate template) {
+        TemplateCapacity tc = template == null ? null : getTemplate(template);
+        // An instance launched since the last recount is still held by its reservation
+        for (Iterator<Reservation> it = reservations.iterator(); it.hasNext();) {
+            Reservation r = it.next();
+            if (r.committedAt != Long.MAX_VALUE && r.template == tc) {
+                if (--r.count == 0) {
+                    it.remove();
+                }
+                tc.used.decrementAndGet();
+                used.decrementAndGet();
+                return;
+            }
+        }
+        if (counted > 0) {
+            counted--;
+            used.decrementAndGet();
+        }
+        if (tc != null && tc.counted > 0) {
+            tc.counted--;
+            tc.used.decrementAndGet();
+        }
+    }
+
+    /**
+     * Number of instances in use or reserved in the whole cloud.
+     */
+    int getCount() {
+        return used.get();
+    }
+
+    /**
+     * Number of instances in use or reserved for the given template.
+     */
+    int getCount(SlaveTemplate template) {
+        return getTemplate(template).used.get();
+    }
+
+    private TemplateCapacity getTemplate(SlaveTemplate template) {
+        return templates.computeIfAbsent(template, TemplateCapacity::new);
+    }
+
+    private static final class TemplateCapacity {
+        private final SlaveTemplate template;
+        private final ReentrantLock provisioningLock = new ReentrantLock();
+        /**
+         * Counted plus reserved instances of this template.
+         */
+        private final AtomicInteger used = new AtomicInteger();
+        private int counted;
+
+        private TemplateCapacity(SlaveTemplate template) {
+            this.template = template;
+        }
+    }
+
+    /**
+     * Capacity taken for one launch. Either {@link #commit} or {@link #release} it once the launch is over.
+     */
+    final class Reservation {
+        private final TemplateCapacity template;
+        private int count;
+        private long committedAt = Long.MAX_VALUE;
+
+        private Reservation(TemplateCapacity template, int count) {
+            this.template = template;
+            this.count = count;
+        }
+
+        int getCount() {
+            synchronized (CapacityLedger.this) {
+                return count;
+            }
+        }
+
+        /**
+         * Keeps the capacity of the instances actually launched until the next recount sees them, and gives the
+         * rest back.
+         */
+        void commit(int launched) {
+            synchronized (CapacityLedger.this) {
+                int unused = count - Math.max(0, Math.min(count, launched));
+                giveBack(unused);
+                if (count == 0) {
+                    reservations.remove(this);
+                } else {
+                    committedAt = System.currentTimeMillis();
+                }
+            }
+        }
+
+        /**
+         * Gives the whole reservation back, typically because the launch failed.
+         */
+        void release() {
+            synchronized (CapacityLedger.this) {
+                if (reservations.remove(this)) {
+                    giveBack(count);
+                }
+            }
+        }
+
+        private void giveBack(int n) {
+            count -= n;
+            template.used.addAndGet(-n);
+            used.addAndGet(-n);
+        }
+    }
+}
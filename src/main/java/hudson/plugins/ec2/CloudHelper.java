@@ -3,19 +3,32 @@ package hudson.plugins.ec2;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
 import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 final class CloudHelper {
     private static final Logger LOGGER = LoggerFactory.getLogger(CloudHelper.class);
 
+    /**
+     * Maximum number of values EC2 accepts in a single filter.
+     */
+    private static final int MAX_FILTER_VALUES = 200;
+
     static Instance getInstanceWithRetry(String instanceId, EC2Cloud cloud) throws AmazonClientException, InterruptedException {
         // Sometimes even after a successful RunInstances, DescribeInstances
         // returns an error for a few seconds. We do a few retries instead of
@@ -66,4 +79,46 @@ final class CloudHelper {
         }
         return instances.get(0);
     }
+
+    /**
+     * Describes many instances at once, in as few calls as EC2 allows. Unlike {@link #getInstance}, ids that EC2 does
+     * not know (yet) are simply missing from the result instead of failing the whole call.
+     */
+    static Map<String, Instance> getInstances(Collection<String> instanceIds, EC2Cloud cloud) throws AmazonClientException {
+        Map<String, Instance> found = new HashMap<>();
+        List<String> ids = new ArrayList<>(instanceIds);
+        for (int from = 0; from < ids.size(); from += MAX_FILTER_VALUES) {
+            List<String> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_FILTER_VALUES));
+            DescribeInstancesRequest request = new DescribeInstancesRequest()
+                    .withFilters(new Filter("instance-id").withValues(chunk))
+                    .withMaxResults(InstanceInventory.PAGE_SIZE);
+            do {
+                DescribeInstancesResult result = cloud.connect().describeInstances(request);
+                for (Reservation reservation : result.getReservations()) {
+                    for (Instance instance : reservation.getInstances()) {
+                        found.put(instance.getInstanceId(), instance);
+                    }
+                }
+                request.setNextToken(result.getNextToken());
+            } while (request.getNextToken() != null);
+        }
+        return found;
+    }
+
+    /**
+     * Describes many spot requests at once. Requests EC2 does not know are missing from the result.
+     */
+    static Map<String, SpotInstanceRequest> getSpotInstanceRequests(Collection<String> requestIds, EC2Cloud cloud) throws AmazonClientException {
+        Map<String, SpotInstanceRequest> found = new HashMap<>();
+        List<String> ids = new ArrayList<>(requestIds);
+        for (int from = 0; from < ids.size(); from += MAX_FILTER_VALUES) {
+            List<String> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_FILTER_VALUES));
+            DescribeSpotInstanceRequestsRequest request = new DescribeSpotInstanceRequestsRequest()
+                    .withFilters(new Filter("spot-instance-request-id").withValues(chunk));
+            for (SpotInstanceRequest r : cloud.connect().describeSpotInstanceRequests(request).getSpotInstanceRequests()) {
+                found.put(r.getSpotInstanceRequestId(), r);
+            }
+        }
+        return found;
+    }
 }
@@ -23,6 +23,7 @@
  */
 package hudson.plugins.ec2;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
@@ -134,6 +135,12 @@ public abstract class EC2AbstractSlave extends Slave {
 
     private transient long createdTime;
 
+    /**
+     * When the node was launched for a warm pool, {@code 0} once it was stopped or if it never was. Kept with the node,
+     * so that a restart does not let a warming node take builds.
+     */
+    private volatile long warmingSince;
+
     public static final String TEST_ZONE = "testZone";
 
     public EC2AbstractSlave(String name, String instanceId, String templateDescription, String remoteFS, int numExecutors, Mode mode, String labelString, ComputerLauncher launcher, RetentionStrategy<EC2Computer> retentionStrategy, String initScript, String tmpDir, List<? extends NodeProperty<?>> nodeProperties, String remoteAdmin, String jvmopts, boolean stopOnTerminate, String idleTerminationMinutes, List<EC2Tag> tags, String cloudName, boolean useDedicatedTenancy, int launchTimeout, AMITypeData amiType, ConnectionStrategy connectionStrategy, int maxTotalUses)
@@ -409,12 +416,31 @@ public abstract class EC2AbstractSlave extends Slave {
      */
     public abstract void terminate();
 
+    /**
+     * Whether the node was launched for a warm pool and is not stopped yet, see {@link WarmPoolMaintainer}.
+     */
+    boolean isWarming() {
+        return warmingSince != 0;
+    }
+
+    /**
+     * When the node was launched for a warm pool, {@code 0} if it is not warming.
+     */
+    long getWarmingSince() {
+        return warmingSince;
+    }
+
+    void setWarming(boolean warming) {
+        warmingSince = warming ? System.currentTimeMillis() : 0;
+    }
+
     void stop() {
         try {
             AmazonEC2 ec2 = getCloud().connect();
             StopInstancesRequest request = new StopInstancesRequest(Collections.singletonList(getInstanceId()));
             LOGGER.fine("Sending stop request for " + getInstanceId());
             ec2.stopInstances(request);
+            evictFromInventory();
             LOGGER.info("EC2 instance stop request sent for " + getInstanceId());
             Computer computer = toComputer();
             if (computer != null) {
@@ -432,6 +458,7 @@ public abstract class EC2AbstractSlave extends Slave {
             TerminateInstancesRequest request = new TerminateInstancesRequest(Collections.singletonList(getInstanceId()));
             LOGGER.fine("Sending terminate request for " + getInstanceId());
             ec2.terminateInstances(request);
+            evictFromInventory();
             LOGGER.info("EC2 instance terminate request sent for " + getInstanceId());
             return true;
         } catch (AmazonClientException e) {
@@ -537,6 +564,29 @@ public abstract class EC2AbstractSlave extends Slave {
         return true;
     }
 
+    /**
+     * Whether the instance itself is alive, given a description of it the caller already has, typically from a
+     * batched DescribeInstances. Unlike {@link #isAlive(boolean)}, this never asks EC2, and does not look at spot
+     * requests.
+     *
+     * @param fetchTime when the description was obtained from EC2
+     */
+    boolean isInstanceAlive(@NonNull Instance instance, long fetchTime) {
+        updateLiveInstanceData(instance, fetchTime);
+        return !instance.getState().getName().equals(InstanceStateName.Terminated.toString());
+    }
+
+    /**
+     * Makes the cloud's {@link InstanceInventory} forget what it knows about this instance after Jenkins stopped or
+     * terminated it, and gives the capacity it used back to the {@link CapacityLedger}.
+     */
+    protected void evictFromInventory() {
+        EC2Cloud cloud = getCloud();
+        if (cloud != null && cloud.getInventory().evict(getInstanceId())) {
+            cloud.getCapacityLedger().onRemoved(cloud.getTemplate(templateDescription));
+        }
+    }
+
     /*
      * Much of the EC2 data is beyond our direct control, therefore we need to refresh it from time to time to ensure we
      * reflect the reality of the instances.
@@ -572,6 +622,10 @@ public abstract class EC2AbstractSlave extends Slave {
         }
 
 
+        updateLiveInstanceData(i, now);
+    }
+
+    private void updateLiveInstanceData(Instance i, long now) {
         lastFetchTime = now;
         lastFetchInstance = i;
         if (i == null)
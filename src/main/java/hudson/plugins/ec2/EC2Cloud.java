@@ -52,11 +52,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -72,29 +74,29 @@ import hudson.model.TaskListener;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
 import jenkins.model.JenkinsLocationConfiguration;
+import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
 import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.CreateKeyPairRequest;
-import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
-import com.amazonaws.services.ec2.model.Filter;
-import com.amazonaws.services.ec2.model.Instance;
-import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.KeyPair;
 import com.amazonaws.services.ec2.model.KeyPairInfo;
-import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.SpotInstanceRequest;
 import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.s3.AmazonS3;
@@ -134,7 +136,14 @@ public abstract class EC2Cloud extends Cloud {
 
     private static final SimpleFormatter sf = new SimpleFormatter();
 
-    private transient ReentrantLock slaveCountingLock = new ReentrantLock();
+    /**
+     * Retries what the SDK retries by default, but throttled calls: {@link RateLimitedAmazonEC2} retries those once
+     * the cloud slowed down.
+     */
+    static final RetryPolicy.RetryCondition RETRY_CONDITION = (request, exception, retriesAttempted) ->
+            PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, exception, retriesAttempted)
+                    && !(exception instanceof AmazonServiceException
+                            && ApiRateLimiter.isThrottling((AmazonServiceException) exception));
 
     private final boolean useInstanceProfileForCredentials;
 
@@ -163,10 +172,38 @@ public abstract class EC2Cloud extends Cloud {
 
     private final List<? extends SlaveTemplate> templates;
 
+    /**
+     * Order in which the templates matching a label are tried. {@code null} for the configuration order.
+     */
+    private TemplateOrdering templateOrdering;
+
     private transient KeyPair usableKeyPair;
 
     private transient volatile AmazonEC2 connection;
 
+    private transient ApiRateLimiter rateLimiter;
+
+    private transient ApiCallStats apiCallStats;
+
+    private transient InstanceInventory inventory;
+
+    private transient CapacityLedger capacityLedger;
+
+    private transient PendingInstanceTracker pendingInstances;
+
+    private transient SpotRequestCache spotRequests;
+
+    private transient ImageCache imageCache;
+
+    private transient LaunchTemplateCache launchTemplates;
+
+    private transient SpotPriceCache spotPrices;
+
+    /**
+     * Templates able to serve a label, by label expression. Labels no template can serve map to an empty list.
+     */
+    private transient Map<String, List<SlaveTemplate>> templatesByLabel;
+
     protected EC2Cloud(String id, boolean useInstanceProfileForCredentials, String credentialsId, String privateKey,
             String instanceCapStr, List<? extends SlaveTemplate> templates, String roleArn, String roleSessionName) {
         super(id);
@@ -196,7 +233,14 @@ public abstract class EC2Cloud extends Cloud {
     public abstract URL getS3EndpointUrl() throws IOException;
 
     protected Object readResolve() {
-        this.slaveCountingLock = new ReentrantLock();
+        this.inventory = new InstanceInventory(this);
+        this.capacityLedger = new CapacityLedger();
+        this.pendingInstances = new PendingInstanceTracker(this);
+        this.spotRequests = new SpotRequestCache(this);
+        this.imageCache = new ImageCache(this);
+        this.launchTemplates = new LaunchTemplateCache(this);
+        this.spotPrices = new SpotPriceCache(this);
+        this.templatesByLabel = new ConcurrentHashMap<>();
         for (SlaveTemplate t : templates)
             t.parent = this;
         if (this.accessId != null && this.secretKey != null && credentialsId == null) {
@@ -277,6 +321,15 @@ public abstract class EC2Cloud extends Cloud {
         return instanceCap;
     }
 
+    public TemplateOrdering getTemplateOrdering() {
+        return templateOrdering == null ? TemplateOrdering.PRIORITY : templateOrdering;
+    }
+
+    @DataBoundSetter
+    public void setTemplateOrdering(TemplateOrdering templateOrdering) {
+        this.templateOrdering = templateOrdering;
+    }
+
     public List<SlaveTemplate> getTemplates() {
         return Collections.unmodifiableList(templates);
     }
@@ -294,22 +347,89 @@ public abstract class EC2Cloud extends Cloud {
      * Gets {@link SlaveTemplate} that has the matching {@link Label}.
      */
     public SlaveTemplate getTemplate(Label label) {
+        List<SlaveTemplate> matching = getMatchingTemplates(label);
+        return matching.isEmpty() ? null : matching.get(0);
+    }
+
+    /**
+     * Gets all the {@link SlaveTemplate}s that have the matching {@link Label}, in configuration order.
+     *
+     * <p>
+     * The provisioner asks for the same labels over and over, so the result is computed once per label expression.
+     * Templates and their labels cannot change without the cloud being replaced, which drops the index with it.
+     */
+    List<SlaveTemplate> getMatchingTemplates(Label label) {
+        return templatesByLabel.computeIfAbsent(label == null ? "" : label.getExpression(), k -> matchTemplates(label));
+    }
+
+    private List<SlaveTemplate> matchTemplates(Label label) {
+        List<SlaveTemplate> matching = new ArrayList<>();
         for (SlaveTemplate t : templates) {
             if (t.getMode() == Node.Mode.NORMAL) {
                 if (label == null || label.matches(t.getLabelSet())) {
-                    return t;
+                    matching.add(t);
                 }
             } else if (t.getMode() == Node.Mode.EXCLUSIVE) {
                 if (label != null && label.matches(t.getLabelSet())) {
-                    return t;
+                    matching.add(t);
                 }
             }
         }
-        return null;
+        return matching.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(matching);
+    }
+
+    /**
+     * Shared view of the instances and spot requests this cloud provisioned.
+     */
+    InstanceInventory getInventory() {
+        return inventory;
+    }
+
+    /**
+     * Running count of the capacity this cloud and its templates use.
+     */
+    CapacityLedger getCapacityLedger() {
+        return capacityLedger;
+    }
+
+    /**
+     * Tracks the instances provisioned by this cloud until they run.
+     */
+    PendingInstanceTracker getPendingInstances() {
+        return pendingInstances;
     }
 
     /**
-     * Gets the {@link KeyPairInfo} used for the launch.
+     * Recently fetched spot requests of this cloud.
+     */
+    SpotRequestCache getSpotRequests() {
+        return spotRequests;
+    }
+
+    /**
+     * AMIs the templates of this cloud launch.
+     */
+    ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    /**
+     * Launch templates created for the EC2 Fleet requests of this cloud.
+     */
+    LaunchTemplateCache getLaunchTemplates() {
+        return launchTemplates;
+    }
+
+    /**
+     * Latest spot prices of the instance types the spot templates of this cloud may launch.
+     */
+    SpotPriceCache getSpotPrices() {
+        return spotPrices;
+    }
+
+    /**
+     * Gets the {@link KeyPairInfo} used for the launch. It is looked up once per connection, and shared by the
+     * templates and the launchers.
      */
     public synchronized KeyPair getKeyPair() throws AmazonClientException, IOException {
         if (usableKeyPair == null)
@@ -368,6 +488,19 @@ public abstract class EC2Cloud extends Cloud {
         }
     }
 
+    /**
+     * Reports the EC2 API calls of this cloud as JSON: calls, latencies, errors and throttles, per operation and per
+     * part of the plugin making them.
+     */
+    public HttpResponse doApiStats() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        JSONObject json = getApiCallStats().toJSON();
+        return (req, rsp, node) -> {
+            rsp.setContentType("application/json;charset=UTF-8");
+            rsp.getWriter().print(json.toString(2));
+        };
+    }
+
     /**
      * Counts the number of instances in EC2 that can be used with the specified image and a template. Also removes any
      * nodes associated with canceled requests.
@@ -375,6 +508,10 @@ public abstract class EC2Cloud extends Cloud {
      * @param template If left null, then all instances are counted.
      */
     private int countCurrentEC2Slaves(SlaveTemplate template) throws AmazonClientException {
+        return countCurrentEC2Slaves(inventory.get(), template);
+    }
+
+    private int countCurrentEC2Slaves(InstanceInventory.Snapshot snapshot, SlaveTemplate template) {
         String jenkinsServerUrl = null;
         jenkinsServerUrl = JenkinsLocationConfiguration.get().getUrl();
 
@@ -390,52 +527,31 @@ public abstract class EC2Cloud extends Cloud {
         Set<String> instanceIds = new HashSet<String>();
         String description = template != null ? template.description : null;
 
-        //FIXME convert to a filter query
-        for (Reservation r : connect().describeInstances().getReservations()) {
-            for (Instance i : r.getInstances()) {
-                if (isEc2ProvisionedAmiSlave(i.getTags(), description)
-                    && isEc2ProvisionedJenkinsSlave(i.getTags(), jenkinsServerUrl)
-                    && (template == null || template.getAmi().equals(i.getImageId()))) {
-                    InstanceStateName stateName = InstanceStateName.fromValue(i.getState().getName());
-                    if (stateName != InstanceStateName.Terminated &&
-                        stateName != InstanceStateName.ShuttingDown &&
-                        stateName != InstanceStateName.Stopped ) {
-                        LOGGER.log(Level.FINE, "Existing instance found: " + i.getInstanceId() + " AMI: " + i.getImageId()
-                        + (template != null ? (" Template: " + description) : "") + " Jenkins Server: " + jenkinsServerUrl);
-                        n++;
-                        instanceIds.add(i.getInstanceId());
-                    }
+        for (Map.Entry<String, Map<String, Set<String>>> byType : snapshot.getActive().getIds().entrySet()) {
+            if (!isEc2ProvisionedAmiSlave(byType.getKey(), description)) {
+                continue;
+            }
+            for (Map.Entry<String, Set<String>> byAmi : byType.getValue().entrySet()) {
+                if (template == null || template.getAmi().equals(byAmi.getKey())) {
+                    LOGGER.log(Level.FINE, "Existing instances found: " + byAmi.getValue() + " AMI: " + byAmi.getKey()
+                    + (template != null ? (" Template: " + description) : "") + " Jenkins Server: " + jenkinsServerUrl);
+                    n += byAmi.getValue().size();
+                    instanceIds.addAll(byAmi.getValue());
                 }
             }
         }
-        List<SpotInstanceRequest> sirs = null;
-        List<Filter> filters = new ArrayList<Filter>();
-        List<String> values;
-        if (template != null) {
-            values = new ArrayList<String>();
-            values.add(template.getAmi());
-            filters.add(new Filter("launch.image-id", values));
-        }
-
-        if(jenkinsServerUrl!=null) {
-        // The instances must match the jenkins server url
-            filters.add(new Filter("tag:" + EC2Tag.TAG_NAME_JENKINS_SERVER_URL + "=" + jenkinsServerUrl));
-        }
-
-        values = new ArrayList<String>();
-        values.add(EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE);
-        filters.add(new Filter("tag-key", values));
-
-        DescribeSpotInstanceRequestsRequest dsir = new DescribeSpotInstanceRequestsRequest().withFilters(filters);
-        try {
-            sirs = connect().describeSpotInstanceRequests(dsir).getSpotInstanceRequests();
-        } catch (Exception ex) {
-            // Some ec2 implementations don't implement spot requests (Eucalyptus)
-            LOGGER.log(Level.FINEST, "Describe spot instance requests failed", ex);
+        List<SpotInstanceRequest> sirs = new ArrayList<>();
+        if (snapshot.getSpotInstanceRequests() != null) {
+            for (SpotInstanceRequest sir : snapshot.getSpotInstanceRequests()) {
+                if (template == null || (sir.getLaunchSpecification() != null
+                        && template.getAmi().equals(sir.getLaunchSpecification().getImageId()))) {
+                    sirs.add(sir);
+                }
+            }
         }
         Set<SpotInstanceRequest> sirSet = new HashSet<>();
 
-        if (sirs != null) {
+        if (!sirs.isEmpty()) {
             for (SpotInstanceRequest sir : sirs) {
                 sirSet.add(sir);
                 if (sir.getState().equals("open") || sir.getState().equals("active")) {
@@ -479,7 +595,10 @@ public abstract class EC2Cloud extends Cloud {
             if (!(node instanceof EC2SpotSlave))
                 continue;
             EC2SpotSlave ec2Slave = (EC2SpotSlave) node;
-            SpotInstanceRequest sir = ec2Slave.getSpotRequest();
+            SpotInstanceRequest sir = snapshot.getSpotInstanceRequest(ec2Slave.getSpotInstanceRequestId());
+            if (sir == null) {
+                sir = ec2Slave.getSpotRequest();
+            }
 
             if (sir == null) {
                 LOGGER.log(Level.FINE, "Found spot node without request: " + ec2Slave.getSpotInstanceRequestId());
@@ -516,48 +635,43 @@ public abstract class EC2Cloud extends Cloud {
         return n;
     }
 
-    private boolean isEc2ProvisionedJenkinsSlave(List<Tag> tags, String serverUrl) {
-        for (Tag tag : tags) {
-            if (StringUtils.equals(tag.getKey(), EC2Tag.TAG_NAME_JENKINS_SERVER_URL)) {
-                return StringUtils.equals(tag.getValue(), serverUrl);
-            }
-        }
-        return (serverUrl == null);
-    }
-
     private boolean isEc2ProvisionedAmiSlave(List<Tag> tags, String description) {
         for (Tag tag : tags) {
             if (StringUtils.equals(tag.getKey(), EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE)) {
-                if (description == null) {
-                    return true;
-                } else if (StringUtils.equals(tag.getValue(), EC2Cloud.EC2_SLAVE_TYPE_DEMAND)
-                        || StringUtils.equals(tag.getValue(), EC2Cloud.EC2_SLAVE_TYPE_SPOT)) {
-                    // To handle cases where description is null and also upgrade cases for existing slave nodes.
-                    return true;
-                } else if (StringUtils.equals(tag.getValue(), getSlaveTypeTagValue(EC2Cloud.EC2_SLAVE_TYPE_DEMAND, description))
-                        || StringUtils.equals(tag.getValue(), getSlaveTypeTagValue(EC2Cloud.EC2_SLAVE_TYPE_SPOT, description))) {
-                    return true;
-                } else {
-                    return false;
-                }
+                return isEc2ProvisionedAmiSlave(tag.getValue(), description);
             }
         }
         return false;
     }
 
+    private boolean isEc2ProvisionedAmiSlave(String slaveType, String description) {
+        if (description == null) {
+            return true;
+        } else if (StringUtils.equals(slaveType, EC2Cloud.EC2_SLAVE_TYPE_DEMAND)
+                || StringUtils.equals(slaveType, EC2Cloud.EC2_SLAVE_TYPE_SPOT)) {
+            // To handle cases where description is null and also upgrade cases for existing slave nodes.
+            return true;
+        } else {
+            return StringUtils.equals(slaveType, getSlaveTypeTagValue(EC2Cloud.EC2_SLAVE_TYPE_DEMAND, description))
+                    || StringUtils.equals(slaveType, getSlaveTypeTagValue(EC2Cloud.EC2_SLAVE_TYPE_SPOT, description));
+        }
+    }
+
     /**
-     * Returns the maximum number of possible slaves that can be created.
+     * Recounts the instances of the whole cloud and of each template, and corrects the {@link CapacityLedger} with
+     * the result.
      */
-    private int getPossibleNewSlavesCount(SlaveTemplate template) throws AmazonClientException {
-        int estimatedTotalSlaves = countCurrentEC2Slaves(null);
-        int estimatedAmiSlaves = countCurrentEC2Slaves(template);
-
-        int availableTotalSlaves = instanceCap - estimatedTotalSlaves;
-        int availableAmiSlaves = template.getInstanceCap() - estimatedAmiSlaves;
-        LOGGER.log(Level.FINE, "Available Total Slaves: " + availableTotalSlaves + " Available AMI slaves: " + availableAmiSlaves
-                + " AMI: " + template.getAmi() + " TemplateDesc: " + template.description);
-
-        return Math.min(availableAmiSlaves, availableTotalSlaves);
+    void reconcileCapacity() throws AmazonClientException {
+        // The recount is only as recent as the snapshot it reads
+        InstanceInventory.Snapshot snapshot = inventory.get();
+        int total = countCurrentEC2Slaves(snapshot, null);
+        Map<SlaveTemplate, Integer> byTemplate = new HashMap<>();
+        for (SlaveTemplate t : templates) {
+            byTemplate.put(t, countCurrentEC2Slaves(snapshot, t));
+        }
+        capacityLedger.reconcile(snapshot.getTimestamp(), total, byTemplate);
+        LOGGER.log(Level.FINE, "Reconciled capacity of {0}: {1} instances, by template: {2}",
+                new Object[] {getDisplayName(), total, byTemplate});
     }
 
     /**
@@ -565,38 +679,74 @@ public abstract class EC2Cloud extends Cloud {
      * forceCreateNew specifies that the creation of a new slave is required. Otherwise, an existing matching slave may be re-used
      */
     private List<EC2AbstractSlave> getNewOrExistingAvailableSlave(SlaveTemplate t, int number, boolean forceCreateNew) {
+        if (forceCreateNew)
+            return getNewOrExistingAvailableSlave(t, number, EnumSet.of(SlaveTemplate.ProvisionOptions.FORCE_CREATE));
+        else
+            return getNewOrExistingAvailableSlave(t, number, EnumSet.of(SlaveTemplate.ProvisionOptions.ALLOW_CREATE));
+    }
+
+    /**
+     * Launches up to {@code number} new instances of the template for its warm pool, within the instance caps.
+     */
+    List<EC2AbstractSlave> launchWarm(SlaveTemplate t, int number) {
+        return getNewOrExistingAvailableSlave(t, number,
+                EnumSet.of(SlaveTemplate.ProvisionOptions.FORCE_CREATE, SlaveTemplate.ProvisionOptions.WARM_POOL));
+    }
+
+    /**
+     * Launches on-demand instances of the template in place of as many of its spot requests, which already hold their
+     * capacity.
+     */
+    List<EC2AbstractSlave> launchOndemandFallback(SlaveTemplate t, int number) throws IOException {
+        ReentrantLock provisioningLock = capacityLedger.getProvisioningLock(t);
+        provisioningLock.lock();
         try {
-            slaveCountingLock.lock();
-            int possibleSlavesCount = getPossibleNewSlavesCount(t);
-            if (possibleSlavesCount <= 0) {
-                LOGGER.log(Level.INFO, "{0}. Cannot provision - no capacity for instances: " + possibleSlavesCount, t);
+            return t.provisionOndemandFallback(number);
+        } finally {
+            provisioningLock.unlock();
+        }
+    }
+
+    private List<EC2AbstractSlave> getNewOrExistingAvailableSlave(SlaveTemplate t, int number, EnumSet<SlaveTemplate.ProvisionOptions> provisionOptions) {
+        if (capacityLedger.isStale()) {
+            reconcileCapacity();
+        }
+
+        // Templates provision concurrently, but a template does not, so that it never adopts the same orphan twice
+        ReentrantLock provisioningLock = capacityLedger.getProvisioningLock(t);
+        provisioningLock.lock();
+        try {
+            CapacityLedger.Reservation reservation = capacityLedger.reserve(t, t.getInstanceCap(), instanceCap, number);
+            if (reservation == null) {
+                LOGGER.log(Level.INFO, "{0}. Cannot provision - no capacity for instances", t);
                 return null;
             }
 
             try {
-                EnumSet<SlaveTemplate.ProvisionOptions> provisionOptions;
-                if (forceCreateNew)
-                    provisionOptions = EnumSet.of(SlaveTemplate.ProvisionOptions.FORCE_CREATE);
-                else
-                    provisionOptions = EnumSet.of(SlaveTemplate.ProvisionOptions.ALLOW_CREATE);
-
-                if (number > possibleSlavesCount) {
+                if (number > reservation.getCount()) {
                     LOGGER.log(Level.INFO, String.format("%d nodes were requested for the template %s, " +
-                            "but because of instance cap only %d can be provisioned", number, t, possibleSlavesCount));
-                    number = possibleSlavesCount;
+                            "but because of instance cap only %d can be provisioned", number, t, reservation.getCount()));
+                    number = reservation.getCount();
                 }
 
-                return t.provision(number, provisionOptions);
+                List<EC2AbstractSlave> slaves = t.provision(number, provisionOptions);
+                reservation.commit(slaves == null ? 0 : slaves.size());
+                return slaves;
             } catch (IOException e) {
+                reservation.release();
                 LOGGER.log(Level.WARNING, t + ". Exception during provisioning", e);
                 return null;
+            } catch (RuntimeException e) {
+                reservation.release();
+                throw e;
             }
-        } finally { slaveCountingLock.unlock(); }
+        } finally {
+            provisioningLock.unlock();
+        }
     }
 
     @Override
     public Collection<PlannedNode> provision(final Label label, int excessWorkload) {
-        final SlaveTemplate t = getTemplate(label);
         List<PlannedNode> plannedNodes = new ArrayList<>();
 
         Jenkins jenkinsInstance = Jenkins.get();
@@ -609,6 +759,30 @@ public abstract class EC2Cloud extends Cloud {
             return Collections.emptyList();
         }
 
+        // What a template cannot raise, because of its cap or a lack of capacity in EC2, spills over to the next one
+        try (ApiCallStats.Scope scope = ApiCallStats.enter(ApiCallStats.Subsystem.PROVISIONING)) {
+            for (SlaveTemplate t : getTemplateOrdering().sort(getMatchingTemplates(label), this)) {
+                if (excessWorkload <= 0) {
+                    break;
+                }
+                excessWorkload -= provision(t, excessWorkload, plannedNodes);
+            }
+        }
+
+        if (!plannedNodes.isEmpty()) {
+            LOGGER.log(Level.INFO, "We have now {0} computers, waiting for {1} more",
+                    new Object[]{jenkinsInstance.getComputers().length, plannedNodes.size()});
+        }
+        return plannedNodes;
+    }
+
+    /**
+     * Provisions nodes of the given template for up to {@code excessWorkload} units.
+     *
+     * @return the workload the planned nodes will take.
+     */
+    private int provision(SlaveTemplate t, int excessWorkload, List<PlannedNode> plannedNodes) {
+        int planned = 0;
         try {
             LOGGER.log(Level.INFO, "{0}. Attempting to provision slave needed by excess workload of " + excessWorkload + " units", t);
             int number = Math.max(excessWorkload / t.getNumExecutors(), 1);
@@ -616,7 +790,7 @@ public abstract class EC2Cloud extends Cloud {
 
             if (slaves == null || slaves.isEmpty()) {
                 LOGGER.warning("Can't raise nodes for " + t);
-                return Collections.emptyList();
+                return 0;
             }
 
             for (final EC2AbstractSlave slave : slaves) {
@@ -626,71 +800,18 @@ public abstract class EC2Cloud extends Cloud {
                 }
 
                 plannedNodes.add(createPlannedNode(t, slave));
-                excessWorkload -= t.getNumExecutors();
+                planned += t.getNumExecutors();
             }
 
-            LOGGER.log(Level.INFO, "{0}. Attempting provision finished, excess workload: " + excessWorkload, t);
-            LOGGER.log(Level.INFO, "We have now {0} computers, waiting for {1} more",
-                    new Object[]{jenkinsInstance.getComputers().length, plannedNodes.size()});
-            return plannedNodes;
+            LOGGER.log(Level.INFO, "{0}. Attempting provision finished, excess workload: " + (excessWorkload - planned), t);
         } catch (AmazonClientException e) {
             LOGGER.log(Level.WARNING, t + ". Exception during provisioning", e);
-            return Collections.emptyList();
         }
+        return planned;
     }
 
     private PlannedNode createPlannedNode(final SlaveTemplate t, final EC2AbstractSlave slave) {
-        return new PlannedNode(t.getDisplayName(),
-                Computer.threadPoolForRemoting.submit(new Callable<Node>() {
-                    public Node call() throws Exception {
-                        while (true) {
-                            String instanceId = slave.getInstanceId();
-                            if (slave instanceof EC2SpotSlave) {
-                                if (((EC2SpotSlave) slave).isSpotRequestDead()) {
-                                    LOGGER.log(Level.WARNING, "{0} Spot request died, can't do anything. Terminate provisioning", t);
-                                    return null;
-                                }
-
-                                // Spot Instance does not have instance id yet.
-                                if (StringUtils.isEmpty(instanceId)) {
-                                    Thread.sleep(5000);
-                                    continue;
-                                }
-                            }
-
-                            Instance instance = CloudHelper.getInstanceWithRetry(instanceId, slave.getCloud());
-                            if (instance == null) {
-                                LOGGER.log(Level.WARNING, "{0} Can't find instance with instance id `{1}` in cloud {2}. Terminate provisioning ",
-                                        new Object[]{t, instanceId, slave.cloudName});
-                                return null;
-                            }
-
-                            InstanceStateName state = InstanceStateName.fromValue(instance.getState().getName());
-                            if (state.equals(InstanceStateName.Running))  {
-                                //Spot instance are not reconnected automatically,
-                                // but could be new orphans that has the option enable
-                                Computer c = slave.toComputer();
-                                if (slave.getStopOnTerminate() && (c != null ))  {
-                                    c.connect(false);
-                                }
-
-                                long startTime = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - instance.getLaunchTime().getTime());
-                                LOGGER.log(Level.INFO, "{0} Node {1} moved to RUNNING state in {2} seconds and is ready to be connected by Jenkins",
-                                        new Object[]{t, slave.getNodeName(), startTime});
-                                return slave;
-                            }
-
-                            if (!state.equals(InstanceStateName.Pending)) {
-                                LOGGER.log(Level.WARNING, "{0}. Node {1} is neither pending, neither running, it's {2}. Terminate provisioning",
-                                        new Object[]{t, state, slave.getNodeName()});
-                                return null;
-                            }
-
-                            Thread.sleep(5000);
-                        }
-                    }
-                })
-                , t.getNumExecutors());
+        return new PlannedNode(t.getDisplayName(), pendingInstances.track(t, slave), t.getNumExecutors());
     }
 
 
@@ -734,7 +855,9 @@ public abstract class EC2Cloud extends Cloud {
                     .withStsClient(AWSSecurityTokenServiceClientBuilder.standard()
                             .withCredentials(provider)
                             .withRegion(region)
-                            .withClientConfiguration(createClientConfiguration(convertHostName(region)))
+                            // Not rate limited by the cloud, so the SDK retries throttled calls
+                            .withClientConfiguration(createClientConfiguration(convertHostName(region))
+                                    .withRetryPolicy(PredefinedRetryPolicies.getDefaultRetryPolicyWithCustomMaxRetries(16)))
                             .build())
                     .build();
         }
@@ -755,11 +878,34 @@ public abstract class EC2Cloud extends Cloud {
 
     private AmazonEC2 reconnectToEc2() throws IOException {
         synchronized(this) {
-            connection = AmazonEC2Factory.getInstance().connect(createCredentialsProvider(), getEc2EndpointUrl());
+            connection = RateLimitedAmazonEC2.wrap(AmazonEC2Factory.getInstance().connect(createCredentialsProvider(), getEc2EndpointUrl()),
+                    getRateLimiter(), getApiCallStats());
+            // The new credentials may see other key pairs
+            usableKeyPair = null;
             return connection;
         }
     }
 
+    /**
+     * Rate limit of the EC2 calls of this cloud, which outlives its connections.
+     */
+    private synchronized ApiRateLimiter getRateLimiter() {
+        if (rateLimiter == null) {
+            rateLimiter = new ApiRateLimiter();
+        }
+        return rateLimiter;
+    }
+
+    /**
+     * Counts of the EC2 calls of this cloud since Jenkins started.
+     */
+    synchronized ApiCallStats getApiCallStats() {
+        if (apiCallStats == null) {
+            apiCallStats = new ApiCallStats();
+        }
+        return apiCallStats;
+    }
+
     /**
      * Connects to EC2 and returns {@link AmazonEC2}, which can then be used to communicate with EC2.
      */
@@ -781,6 +927,10 @@ public abstract class EC2Cloud extends Cloud {
         config.setMaxErrorRetry(16); // Default retry limit (3) is low and often
         // cause problems. Raise it a bit.
         // See: https://issues.jenkins-ci.org/browse/JENKINS-26800
+        // Throttled calls are not retried here, retries only add to the load. Clouds pace them instead, see
+        // ApiRateLimiter and RateLimitedAmazonEC2
+        config.setRetryPolicy(new RetryPolicy(RETRY_CONDITION, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY, 16,
+                true));
         config.setSignerOverride("AWS4SignerType");
         ProxyConfiguration proxyConfig = Jenkins.get().proxy;
         Proxy proxy = proxyConfig == null ? Proxy.NO_PROXY : proxyConfig.createProxy(host);
@@ -933,6 +1083,14 @@ public abstract class EC2Cloud extends Cloud {
             }
         }
 
+        public ListBoxModel doFillTemplateOrderingItems(@QueryParameter String templateOrdering) {
+            ListBoxModel model = new ListBoxModel();
+            for (TemplateOrdering o : TemplateOrdering.values()) {
+                model.add(new ListBoxModel.Option(o.toString(), o.name(), o.name().equals(templateOrdering)));
+            }
+            return model;
+        }
+
         public ListBoxModel doFillCredentialsIdItems() {
             return new StandardListBoxModel()
                     .withEmptySelection()
@@ -976,7 +1134,7 @@ public abstract class EC2Cloud extends Cloud {
                     if (cloud instanceof EC2Cloud) {
                         EC2Cloud ec2_cloud = (EC2Cloud) cloud;
                         LOGGER.finer(() -> "Checking EC2 Connection on: " + ec2_cloud.getDisplayName());
-                        try {
+                        try (ApiCallStats.Scope scope = ApiCallStats.enter(ApiCallStats.Subsystem.MONITOR)) {
                             if(ec2_cloud.connection != null) {
                                 ec2_cloud.connection.describeInstances();
                             }
@@ -989,4 +1147,30 @@ public abstract class EC2Cloud extends Cloud {
             }
         }
     }
+
+    /**
+     * Periodically corrects the {@link CapacityLedger} of each cloud, so that instances started, stopped or
+     * terminated outside of Jenkins are eventually accounted for.
+     */
+    @Extension
+    public static class CapacityReconciler extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return CapacityLedger.RECONCILE_PERIOD;
+        }
+
+        @Override
+        protected void doRun() {
+            for (Cloud cloud : Jenkins.get().clouds) {
+                if (cloud instanceof EC2Cloud) {
+                    EC2Cloud ec2Cloud = (EC2Cloud) cloud;
+                    try (ApiCallStats.Scope scope = ApiCallStats.enter(ApiCallStats.Subsystem.MONITOR)) {
+                        ec2Cloud.reconcileCapacity();
+                    } catch (AmazonClientException e) {
+                        LOGGER.log(Level.WARNING, "Failed to reconcile the capacity of " + ec2Cloud.getDisplayName(), e);
+                    }
+                }
+            }
+        }
+    }
 }
@@ -28,7 +28,8 @@ import hudson.Util;
 import hudson.model.Node;
 import hudson.slaves.SlaveComputer;
 import java.io.IOException;
-
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.kohsuke.stapler.HttpRedirect;
 import org.kohsuke.stapler.HttpResponse;
@@ -41,6 +42,9 @@ import com.amazonaws.services.ec2.model.Instance;
  * @author Kohsuke Kawaguchi
  */
 public class EC2Computer extends SlaveComputer {
+
+    private static final Logger LOGGER = Logger.getLogger(EC2Computer.class.getName());
+
     /**
      * Cached description of this EC2 instance. Lazily fetched.
      */
@@ -122,10 +126,24 @@ public class EC2Computer extends SlaveComputer {
      * Gets the current state of the instance.
      *
      * <p>
-     * Unlike {@link #describeInstance()}, this method always return the current status by calling EC2.
+     * Unlike {@link #describeInstance()}, this method always return a recent status: it is read from the cloud's
+     * {@link InstanceInventory}, which is at most {@link InstanceInventory#MAX_AGE} old, or from EC2 directly when
+     * the inventory does not know the instance.
      */
     public InstanceState getState() throws AmazonClientException, InterruptedException {
-        ec2InstanceDescription = CloudHelper.getInstanceWithRetry(getInstanceId(), getCloud());
+        Instance instance = null;
+        EC2Cloud cloud = getCloud();
+        if (cloud != null) {
+            try {
+                instance = cloud.getInventory().get().getInstance(getInstanceId());
+            } catch (AmazonClientException e) {
+                LOGGER.log(Level.FINE, "Failed to refresh the inventory of " + cloud.getDisplayName(), e);
+            }
+        }
+        if (instance == null) {
+            instance = CloudHelper.getInstanceWithRetry(getInstanceId(), cloud);
+        }
+        ec2InstanceDescription = instance;
         return InstanceState.find(ec2InstanceDescription.getState().getName());
     }
 
@@ -143,6 +161,15 @@ public class EC2Computer extends SlaveComputer {
         return Util.getTimeSpanString(getUptime());
     }
 
+    /**
+     * Warm pool nodes never take builds: they only come online to be initialized, and are stopped right after.
+     */
+    @Override
+    public boolean isAcceptingTasks() {
+        EC2AbstractSlave node = getNode();
+        return super.isAcceptingTasks() && (node == null || !node.isWarming());
+    }
+
     /**
      * When the slave is deleted, terminate the instance.
      */
@@ -43,7 +43,7 @@ public abstract class EC2ComputerLauncher extends ComputerLauncher {
 
     @Override
     public void launch(SlaveComputer slaveComputer, TaskListener listener) {
-        try {
+        try (ApiCallStats.Scope scope = ApiCallStats.enter(ApiCallStats.Subsystem.LAUNCH)) {
             EC2Computer computer = (EC2Computer) slaveComputer;
             launchScript(computer, listener);
         } catch (AmazonClientException | IOException e) {
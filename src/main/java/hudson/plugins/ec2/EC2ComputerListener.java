@@ -12,6 +12,7 @@ public class EC2ComputerListener extends ComputerListener {
     public void onOnline(Computer c, TaskListener listener) {
         if (c instanceof EC2Computer) {
             ((EC2Computer) c).onConnected();
+            WarmPoolMaintainer.onOnline((EC2Computer) c);
         }
     }
 }
@@ -81,6 +81,7 @@ public final class EC2OndemandSlave extends EC2AbstractSlave {
                 AmazonEC2 ec2 = getCloud().connect();
                 TerminateInstancesRequest request = new TerminateInstancesRequest(Collections.singletonList(getInstanceId()));
                 ec2.terminateInstances(request);
+                evictFromInventory();
                 LOGGER.info("Terminated EC2 instance (terminated): " + getInstanceId());
             }
             Jenkins.get().removeNode(this);
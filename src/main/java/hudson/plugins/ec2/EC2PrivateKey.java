@@ -28,8 +28,18 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.security.UnrecoverableKeyException;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeKeyPairsRequest;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.KeyPairInfo;
 
 import hudson.util.Secret;
@@ -50,8 +60,21 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
  */
 public class EC2PrivateKey {
 
+    /**
+     * Error codes of endpoints that don't support filtering key pairs.
+     */
+    private static final Set<String> UNSUPPORTED_FILTER_ERRORS = new HashSet<>(Arrays.asList("InvalidParameterValue",
+            "InvalidParameter", "InvalidFilter", "UnknownParameter"));
+
     private final Secret privateKey;
 
+    /**
+     * Fingerprints are derived from the key, which never changes, so they are computed once.
+     */
+    private transient volatile String fingerprint;
+
+    private transient volatile String publicFingerprint;
+
     EC2PrivateKey(String privateKey) {
         this.privateKey = Secret.fromString(privateKey.trim());
     }
@@ -73,6 +96,14 @@ public class EC2PrivateKey {
      *    (password protected private keys are not yet supported)
      */
     public String getFingerprint() throws IOException {
+        String fp = fingerprint;
+        if (fp == null) {
+            fingerprint = fp = computeFingerprint();
+        }
+        return fp;
+    }
+
+    private String computeFingerprint() throws IOException {
         String pemData = privateKey.getPlainText();
         if (pemData == null || pemData.isEmpty()) {
             throw new IOException("This private key cannot be empty");
@@ -85,6 +116,14 @@ public class EC2PrivateKey {
     }
 
     public String getPublicFingerprint() throws IOException {
+        String pfp = publicFingerprint;
+        if (pfp == null) {
+            publicFingerprint = pfp = computePublicFingerprint();
+        }
+        return pfp;
+    }
+
+    private String computePublicFingerprint() throws IOException {
         try {
             return PEMEncodable.decode(privateKey.getPlainText()).getPublicKeyFingerprint();
         } catch (UnrecoverableKeyException e) {
@@ -111,7 +150,20 @@ public class EC2PrivateKey {
     public com.amazonaws.services.ec2.model.KeyPair find(AmazonEC2 ec2) throws IOException, AmazonClientException {
         String fp = getFingerprint();
         String pfp = getPublicFingerprint();
-        for (KeyPairInfo kp : ec2.describeKeyPairs().getKeyPairs()) {
+        Set<String> fingerprints = new LinkedHashSet<>(Arrays.asList(fp, pfp, fp.toLowerCase(Locale.ENGLISH), pfp.toLowerCase(Locale.ENGLISH)));
+        List<KeyPairInfo> keyPairs;
+        try {
+            // Only ask for the key pairs that can match rather than listing all of them
+            keyPairs = ec2.describeKeyPairs(new DescribeKeyPairsRequest()
+                    .withFilters(new Filter("fingerprint").withValues(fingerprints))).getKeyPairs();
+        } catch (AmazonServiceException e) {
+            if (!UNSUPPORTED_FILTER_ERRORS.contains(e.getErrorCode())) {
+                throw e;
+            }
+            // Endpoints that don't support the filter (e.g. Eucalyptus) still list all of them
+            keyPairs = ec2.describeKeyPairs().getKeyPairs();
+        }
+        for (KeyPairInfo kp : keyPairs) {
             if (kp.getKeyFingerprint().equalsIgnoreCase(fp)) {
                 com.amazonaws.services.ec2.model.KeyPair keyPair = new com.amazonaws.services.ec2.model.KeyPair();
                 keyPair.setKeyName(kp.getKeyName());
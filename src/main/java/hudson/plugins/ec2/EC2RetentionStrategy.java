@@ -110,7 +110,10 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> impleme
                 long currentTime = this.clock.millis();
 
                 if (currentTime > nextCheckAfter) {
-                    long intervalMins = internalCheck(c);
+                    long intervalMins;
+                    try (ApiCallStats.Scope scope = ApiCallStats.enter(ApiCallStats.Subsystem.RETENTION)) {
+                        intervalMins = internalCheck(c);
+                    }
                     nextCheckAfter = currentTime + TimeUnit.MINUTES.toMillis(intervalMins);
                     return intervalMins;
                 } else {
@@ -6,13 +6,25 @@ import hudson.model.TaskListener;
 import hudson.model.Node;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 
 /**
  * @author Bruno Meneguello
@@ -23,6 +35,12 @@ public class EC2SlaveMonitor extends AsyncPeriodicWork {
 
     private final Long recurrencePeriod;
 
+    /**
+     * Instances the previous sweep did not find. DescribeInstances is eventually consistent, so an instance missing
+     * once may just not be visible yet: nodes are only removed once their instance is missing from two sweeps in a row.
+     */
+    private volatile Set<String> missing = Collections.emptySet();
+
     public EC2SlaveMonitor() {
         super("EC2 alive slaves monitor");
         recurrencePeriod = Long.getLong("jenkins.ec2.checkAlivePeriod", TimeUnit.MINUTES.toMillis(10));
@@ -36,19 +54,156 @@ public class EC2SlaveMonitor extends AsyncPeriodicWork {
 
     @Override
     protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Map<EC2Cloud, List<EC2AbstractSlave>> byCloud = new LinkedHashMap<>();
         for (Node node : Jenkins.get().getNodes()) {
             if (node instanceof EC2AbstractSlave) {
                 final EC2AbstractSlave ec2Slave = (EC2AbstractSlave) node;
-                try {
-                    if (!ec2Slave.isAlive(true)) {
-                        LOGGER.info("EC2 instance is dead: " + ec2Slave.getInstanceId());
-                        ec2Slave.terminate();
+                EC2Cloud cloud = ec2Slave.getCloud();
+                if (cloud == null) {
+                    checkOne(ec2Slave);
+                } else {
+                    byCloud.computeIfAbsent(cloud, c -> new ArrayList<>()).add(ec2Slave);
+                }
+            }
+        }
+        Set<String> nowMissing = new HashSet<>();
+        for (Map.Entry<EC2Cloud, List<EC2AbstractSlave>> entry : byCloud.entrySet()) {
+            try (ApiCallStats.Scope scope = ApiCallStats.enter(ApiCallStats.Subsystem.MONITOR)) {
+                sweep(entry.getKey(), entry.getValue(), nowMissing);
+            }
+        }
+        missing = nowMissing;
+    }
+
+    /**
+     * Checks all the nodes of one cloud with a batched DescribeInstances, plus a batched DescribeSpotInstanceRequests
+     * for the spot nodes whose instance is gone, then terminates the instances of the dead ones with a batched
+     * TerminateInstances and removes them in one pass.
+     *
+     * @param nowMissing collects the instances this sweep did not find
+     */
+    private void sweep(EC2Cloud cloud, List<EC2AbstractSlave> slaves, Set<String> nowMissing) {
+        List<String> instanceIds = new ArrayList<>();
+        for (EC2AbstractSlave ec2Slave : slaves) {
+            if (StringUtils.isNotEmpty(ec2Slave.getInstanceId())) {
+                instanceIds.add(ec2Slave.getInstanceId());
+            }
+        }
+        Map<String, Instance> instances;
+        try {
+            instances = CloudHelper.getInstances(instanceIds, cloud);
+        } catch (AmazonClientException e) {
+            LOGGER.log(Level.WARNING, "Failed to describe the instances of " + cloud.getDisplayName(), e);
+            return;
+        }
+        long now = System.currentTimeMillis();
+
+        List<EC2AbstractSlave> dead = new ArrayList<>();
+        // Dead nodes whose instance may still run
+        List<String> toTerminate = new ArrayList<>();
+        Map<String, EC2SpotSlave> spotSuspects = new LinkedHashMap<>();
+        for (EC2AbstractSlave ec2Slave : slaves) {
+            String instanceId = ec2Slave.getInstanceId();
+            Instance instance = instances.get(instanceId);
+            if (instance != null && ec2Slave.isInstanceAlive(instance, now)) {
+                continue;
+            }
+            if (ec2Slave instanceof EC2SpotSlave && ((EC2SpotSlave) ec2Slave).getSpotInstanceRequestId() != null) {
+                // Alive as long as its spot request may still provide an instance
+                EC2SpotSlave spotSlave = (EC2SpotSlave) ec2Slave;
+                spotSuspects.put(spotSlave.getSpotInstanceRequestId(), spotSlave);
+            } else if (instance != null) {
+                dead.add(ec2Slave);
+            } else if (StringUtils.isNotEmpty(instanceId)) {
+                nowMissing.add(instanceId);
+                if (missing.contains(instanceId)) {
+                    LOGGER.info("EC2 instance is missing from two sweeps in a row: " + instanceId);
+                    dead.add(ec2Slave);
+                    toTerminate.add(instanceId);
+                }
+            } else {
+                dead.add(ec2Slave);
+            }
+        }
+
+        List<String> deadSpotRequests = new ArrayList<>();
+        if (!spotSuspects.isEmpty()) {
+            try {
+                Map<String, SpotInstanceRequest> requests = CloudHelper.getSpotInstanceRequests(spotSuspects.keySet(), cloud);
+                for (SpotInstanceRequest request : requests.values()) {
+                    cloud.getSpotRequests().record(request);
+                }
+                for (Map.Entry<String, EC2SpotSlave> suspect : spotSuspects.entrySet()) {
+                    if (EC2SpotSlave.isDead(requests.get(suspect.getKey()))) {
+                        EC2SpotSlave spotSlave = suspect.getValue();
+                        deadSpotRequests.add(suspect.getKey());
+                        dead.add(spotSlave);
+                        String instanceId = spotSlave.getInstanceId();
+                        if (StringUtils.isNotEmpty(instanceId) && !instances.containsKey(instanceId)) {
+                            toTerminate.add(instanceId);
+                        }
                     }
-                } catch (AmazonClientException e) {
-                    LOGGER.info("EC2 instance is dead and failed to terminate: " + ec2Slave.getInstanceId());
-                    removeNode(ec2Slave);
                 }
+            } catch (AmazonClientException e) {
+                LOGGER.log(Level.WARNING, "Failed to describe the spot requests of " + cloud.getDisplayName(), e);
+            }
+        }
+        if (dead.isEmpty()) {
+            return;
+        }
+
+        if (!deadSpotRequests.isEmpty()) {
+            try {
+                cloud.connect().cancelSpotInstanceRequests(new CancelSpotInstanceRequestsRequest(deadSpotRequests));
+                cloud.getSpotRequests().invalidate(deadSpotRequests);
+                LOGGER.info("Canceled Spot requests: " + deadSpotRequests);
+            } catch (AmazonClientException e) {
+                // Spot requests are no longer valid
+                LOGGER.log(Level.WARNING, "Failed to cancel Spot requests: " + deadSpotRequests, e);
+            }
+        }
+        if (!toTerminate.isEmpty()) {
+            terminate(cloud, toTerminate);
+        }
+        for (EC2AbstractSlave ec2Slave : dead) {
+            LOGGER.info("EC2 instance is dead: " + ec2Slave.getInstanceId());
+            ec2Slave.evictFromInventory();
+            removeNode(ec2Slave);
+        }
+    }
+
+    /**
+     * Terminates the instances of dead nodes with one call, so that none is left running untracked once its node is
+     * removed. EC2 refuses the whole batch if one of the instances is unknown, they are then terminated one by one.
+     */
+    private void terminate(EC2Cloud cloud, List<String> instanceIds) {
+        try {
+            cloud.connect().terminateInstances(new TerminateInstancesRequest(instanceIds));
+            LOGGER.info("Terminated the instances of dead nodes: " + instanceIds);
+        } catch (AmazonClientException e) {
+            LOGGER.log(Level.FINE, "Failed to terminate " + instanceIds + " at once", e);
+            for (String instanceId : instanceIds) {
+                try {
+                    cloud.connect().terminateInstances(new TerminateInstancesRequest(Collections.singletonList(instanceId)));
+                } catch (AmazonClientException e1) {
+                    LOGGER.log(Level.INFO, "Failed to terminate EC2 instance: " + instanceId, e1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks a node whose cloud is gone the slow way, one call per node.
+     */
+    private void checkOne(EC2AbstractSlave ec2Slave) {
+        try {
+            if (!ec2Slave.isAlive(true)) {
+                LOGGER.info("EC2 instance is dead: " + ec2Slave.getInstanceId());
+                ec2Slave.terminate();
             }
+        } catch (AmazonClientException e) {
+            LOGGER.info("EC2 instance is dead and failed to terminate: " + ec2Slave.getInstanceId());
+            removeNode(ec2Slave);
         }
     }
 
@@ -1,6 +1,7 @@
 package hudson.plugins.ec2;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
@@ -13,8 +14,6 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
-import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
-import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
 import com.amazonaws.services.ec2.model.SpotInstanceRequest;
 import com.amazonaws.services.ec2.model.SpotInstanceState;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
@@ -30,6 +29,11 @@ import javax.annotation.CheckForNull;
 public final class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness {
     private static final Logger LOGGER = Logger.getLogger(EC2SpotSlave.class.getName());
 
+    /**
+     * Status codes of open spot requests EC2 cannot fulfill for now.
+     */
+    private static final List<String> UNFULFILLABLE_CODES = Arrays.asList("capacity-not-available", "capacity-oversubscribed", "price-too-low");
+
     private final String spotInstanceRequestId;
 
     @Deprecated
@@ -74,6 +78,7 @@ public final class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness
 			CancelSpotInstanceRequestsRequest cancelRequest = new CancelSpotInstanceRequestsRequest(requestIds);
 			try {
 				ec2.cancelSpotInstanceRequests(cancelRequest);
+				getCloud().getSpotRequests().invalidate(requestIds);
 				LOGGER.info("Canceled Spot request: " + spotInstanceRequestId);
 			} catch (AmazonClientException e) {
 				// Spot request is no longer valid
@@ -91,6 +96,7 @@ public final class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness
                     TerminateInstancesRequest request = new TerminateInstancesRequest(Collections.singletonList(instanceId));
                     try {
                         ec2.terminateInstances(request);
+                        evictFromInventory();
                         LOGGER.info("Terminated EC2 instance (terminated): " + instanceId);
                     } catch (AmazonClientException e) {
                         // Spot request is no longer valid
@@ -120,18 +126,14 @@ public final class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness
      */
     @CheckForNull
     SpotInstanceRequest getSpotRequest() {
-        AmazonEC2 ec2 = getCloud().connect();
+        EC2Cloud cloud = getCloud();
 
         if (this.spotInstanceRequestId == null) {
             return null;
         }
 
-        DescribeSpotInstanceRequestsRequest dsirRequest = new DescribeSpotInstanceRequestsRequest().withSpotInstanceRequestIds(this.spotInstanceRequestId);
         try {
-            DescribeSpotInstanceRequestsResult dsirResult = ec2.describeSpotInstanceRequests(dsirRequest);
-            List<SpotInstanceRequest> siRequests = dsirResult.getSpotInstanceRequests();
-
-            return siRequests.get(0);
+            return cloud.getSpotRequests().get(this.spotInstanceRequestId);
         } catch (AmazonClientException e) {
             // Spot request is no longer valid
             LOGGER.log(Level.WARNING, "Failed to fetch spot instance request for requestId: " + this.spotInstanceRequestId);
@@ -141,7 +143,13 @@ public final class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness
     }
 
     public boolean isSpotRequestDead() {
-        SpotInstanceRequest spotRequest = getSpotRequest();
+        return isDead(getSpotRequest());
+    }
+
+    /**
+     * Whether the spot request can never provide an instance anymore. A request EC2 does not report is dead.
+     */
+    static boolean isDead(@CheckForNull SpotInstanceRequest spotRequest) {
         if (spotRequest == null) {
             return true;
         }
@@ -152,6 +160,15 @@ public final class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness
                 || requestState == SpotInstanceState.Failed;
     }
 
+    /**
+     * Whether EC2 reported it cannot fulfill the spot request for now, for lack of capacity or because the bid is too
+     * low.
+     */
+    static boolean isUnfulfillable(@CheckForNull SpotInstanceRequest spotRequest) {
+        return spotRequest != null && spotRequest.getStatus() != null
+                && UNFULFILLABLE_CODES.contains(spotRequest.getStatus().getCode());
+    }
+
     /**
      * Accessor for the spotInstanceRequestId
      */
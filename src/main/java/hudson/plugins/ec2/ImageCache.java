@@ -0,0 +1,185 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.Image;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-cloud cache of the AMIs its templates launch, together with the block device mappings derived from them.
+ *
+ * <p>
+ * Setting up the block devices of a launch needs the AMI's root device and mappings, which used to cost up to three
+ * DescribeImages calls per provisioning. AMIs are immutable, so they are cached for {@link #TTL}, and at most
+ * {@link #MAX_SIZE} of them are kept, least recently used first out.
+ */
+final class ImageCache {
+
+    /**
+     * How long (in milliseconds) an AMI is trusted before it is described again, e.g. to notice it was deregistered.
+     */
+    static final long TTL = Long.getLong("jenkins.ec2.imageCacheTtlMs", TimeUnit.HOURS.toMillis(1));
+
+    /**
+     * Maximum number of AMIs kept.
+     */
+    static final int MAX_SIZE = Integer.getInteger("jenkins.ec2.imageCacheSize", 64);
+
+    private final EC2Cloud cloud;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    ImageCache(@NonNull EC2Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Returns the given AMI, describing it only if it is not cached or too old.
+     */
+    @NonNull
+    Entry get(@NonNull String ami) throws AmazonClientException {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(ami);
+            if (entry != null && now - entry.fetchedAt < TTL) {
+                return entry;
+            }
+        }
+        Entry entry = new Entry(describe(ami), now);
+        synchronized (entries) {
+            entries.put(ami, entry);
+        }
+        return entry;
+    }
+
+    private Image describe(String ami) throws AmazonClientException {
+        DescribeImagesRequest request = new DescribeImagesRequest().withImageIds(ami);
+        for (final Image image : cloud.connect().describeImages(request).getImages()) {
+
+            if (ami.equals(image.getImageId())) {
+
+                return image;
+            }
+        }
+
+        throw new AmazonClientException("Unable to find AMI " + ami);
+    }
+
+    /**
+     * Copies mappings deeply enough that the caller can change them without touching the cache.
+     */
+    private static BlockDeviceMapping copy(BlockDeviceMapping mapping) {
+        BlockDeviceMapping copy = mapping.clone();
+        if (mapping.getEbs() != null) {
+            copy.setEbs(mapping.getEbs().clone());
+        }
+        return copy;
+    }
+
+    /**
+     * A cached AMI. Mappings are returned as fresh copies, ready to be added to a launch request.
+     */
+    static final class Entry {
+        private final Image image;
+        private final long fetchedAt;
+        private final BlockDeviceMapping rootDeviceMapping;
+        private final List<BlockDeviceMapping> ephemeralDeviceMappings;
+
+        private Entry(Image image, long fetchedAt) {
+            this.image = image;
+            this.fetchedAt = fetchedAt;
+            this.rootDeviceMapping = computeRootDeviceMapping(image);
+            this.ephemeralDeviceMappings = computeEphemeralDeviceMappings(image);
+        }
+
+        Image getImage() {
+            return image;
+        }
+
+        boolean isEbsRoot() {
+            return "ebs".equals(image.getRootDeviceType());
+        }
+
+        /**
+         * The AMI's root device, set to be deleted on termination.
+         *
+         * @return {@code null} if the root device is not EBS, or the AMI has no block devices.
+         */
+        @CheckForNull
+        BlockDeviceMapping getRootDeviceMapping() {
+            return rootDeviceMapping == null ? null : copy(rootDeviceMapping);
+        }
+
+        /**
+         * Mappings of up to four ephemeral devices on the device names the AMI does not use.
+         */
+        List<BlockDeviceMapping> getEphemeralDeviceMappings() {
+            List<BlockDeviceMapping> copies = new ArrayList<>(ephemeralDeviceMappings.size());
+            for (BlockDeviceMapping mapping : ephemeralDeviceMappings) {
+                copies.add(copy(mapping));
+            }
+            return copies;
+        }
+
+        private static BlockDeviceMapping computeRootDeviceMapping(Image image) {
+            if (!"ebs".equals(image.getRootDeviceType()) || image.getBlockDeviceMappings().isEmpty()) {
+                return null;
+            }
+            // get the root device (only one expected in the blockmappings)
+            BlockDeviceMapping newMapping = copy(image.getBlockDeviceMappings().get(0));
+            if (newMapping.getEbs() == null) {
+                return null;
+            }
+            newMapping.getEbs().setDeleteOnTermination(Boolean.TRUE);
+            //Per the documentation, "If you are creating a volume from a snapshot, you can't specify an encryption value. This is because only blank volumes can be encrypted on creation. "
+            //The root volume will always have a snapshot, so this value needs to be set to null to work correctly
+            newMapping.getEbs().setEncrypted(null);
+            return newMapping;
+        }
+
+        private static List<BlockDeviceMapping> computeEphemeralDeviceMappings(Image image) {
+            final Set<String> occupiedDevices = new HashSet<>();
+            for (final BlockDeviceMapping mapping : image.getBlockDeviceMappings()) {
+
+                occupiedDevices.add(mapping.getDeviceName());
+            }
+
+            final List<String> available = new ArrayList<>(
+                    Arrays.asList("ephemeral0", "ephemeral1", "ephemeral2", "ephemeral3"));
+
+            final List<BlockDeviceMapping> newDeviceMapping = new ArrayList<>(4);
+            for (char suffix = 'b'; suffix <= 'z' && !available.isEmpty(); suffix++) {
+
+                final String deviceName = String.format("/dev/xvd%s", suffix);
+
+                if (occupiedDevices.contains(deviceName))
+                    continue;
+
+                final BlockDeviceMapping newMapping = new BlockDeviceMapping().withDeviceName(deviceName).withVirtualName(
+                        available.get(0));
+
+                newDeviceMapping.add(newMapping);
+                available.remove(0);
+            }
+
+            return Collections.unmodifiableList(newDeviceMapping);
+        }
+    }
+}
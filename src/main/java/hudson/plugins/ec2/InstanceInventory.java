@@ -0,0 +1,444 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.GroupIdentifier;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jenkins.model.JenkinsLocationConfiguration;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared, time-bounded view of the instances and spot requests Jenkins provisioned in one {@link EC2Cloud}.
+ *
+ * <p>
+ * Capacity counting, orphan lookup, the alive monitor and the retention strategy all need to know what exists on the
+ * EC2 side. Rather than each of them listing the whole account, they read a snapshot that is fetched at most once per
+ * {@link #MAX_AGE}. The fetch is filtered on the EC2 side: it only returns instances that carry the
+ * {@link EC2Tag#TAG_NAME_JENKINS_SLAVE_TYPE} tag, belong to this Jenkins and are not shutting down or terminated.
+ *
+ * <p>
+ * Instances launched or started by this Jenkins are recorded locally as soon as EC2 accepts the request, and
+ * are reported as pending until a refresh sees them. That way a snapshot taken right before a launch can never
+ * under-count the capacity in use.
+ */
+final class InstanceInventory {
+
+    private static final Logger LOGGER = Logger.getLogger(InstanceInventory.class.getName());
+
+    /**
+     * How old (in milliseconds) a snapshot may get before it is fetched again.
+     */
+    static final long MAX_AGE = Long.getLong("jenkins.ec2.inventoryMaxAgeMs", TimeUnit.SECONDS.toMillis(20));
+
+    /**
+     * Page size of the DescribeInstances calls, between 5 and 1000.
+     */
+    static final int PAGE_SIZE = Math.max(5, Math.min(1000, Integer.getInteger("jenkins.ec2.inventoryPageSize", 1000)));
+
+    /**
+     * Instances in any other state are gone for good, and are never fetched.
+     */
+    private static final List<String> FETCHED_STATES = Arrays.asList(InstanceStateName.Pending.toString(),
+            InstanceStateName.Running.toString(), InstanceStateName.Stopping.toString(),
+            InstanceStateName.Stopped.toString());
+
+    /**
+     * How long a locally recorded launch is trusted if EC2 never reports it (e.g. the launch failed right away).
+     */
+    private static final long PENDING_EXPIRY = TimeUnit.MINUTES.toMillis(5);
+
+    private final EC2Cloud cloud;
+
+    private final Object refreshLock = new Object();
+
+    private volatile Snapshot snapshot;
+
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+    InstanceInventory(@NonNull EC2Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Returns a snapshot no older than {@link #MAX_AGE}, fetching a new one if needed. Concurrent callers share a
+     * single fetch.
+     */
+    @NonNull
+    Snapshot get() throws AmazonClientException {
+        Snapshot s = snapshot;
+        if (s != null && s.getAge() < MAX_AGE) {
+            return withPending(s);
+        }
+        synchronized (refreshLock) {
+            s = snapshot;
+            if (s == null || s.getAge() >= MAX_AGE) {
+                s = fetch();
+                snapshot = s;
+            }
+        }
+        return withPending(s);
+    }
+
+    /**
+     * Returns the current snapshot if it is still fresh, without ever calling EC2.
+     */
+    @CheckForNull
+    Snapshot getIfFresh() {
+        Snapshot s = snapshot;
+        if (s == null || s.getAge() >= MAX_AGE) {
+            return null;
+        }
+        return withPending(s);
+    }
+
+    /**
+     * Records instances that were just launched or started so they are counted before EC2 reports them.
+     */
+    void recordLaunched(Collection<Instance> instances, Collection<Tag> tags) {
+        long now = System.currentTimeMillis();
+        for (Instance i : instances) {
+            if (i == null || i.getInstanceId() == null) {
+                continue;
+            }
+            Instance copy = i.clone();
+            copy.setState(new com.amazonaws.services.ec2.model.InstanceState().withName(InstanceStateName.Pending));
+            if (copy.getTags().isEmpty()) {
+                // RunInstances does not always echo the tags it was given
+                copy.setTags(tags);
+            }
+            pending.put(i.getInstanceId(), new Pending(copy, now));
+        }
+    }
+
+    /**
+     * Drops everything known about the given instance, typically because Jenkins just stopped or terminated it.
+     * Lookups for it go to EC2 until the next refresh.
+     *
+     * @return whether the instance was counted against the instance caps.
+     */
+    boolean evict(String instanceId) {
+        if (instanceId == null) {
+            return false;
+        }
+        boolean wasActive = pending.remove(instanceId) != null;
+        Snapshot s = snapshot;
+        if (s != null && s.instances.containsKey(instanceId)) {
+            wasActive |= s.active.contains(instanceId);
+            Map<String, Instance> copy = new LinkedHashMap<>(s.instances);
+            copy.remove(instanceId);
+            ActiveIndex active = s.active.copy();
+            active.remove(instanceId);
+            snapshot = new Snapshot(s.timestamp, copy, active, s.spotRequests);
+        }
+        return wasActive;
+    }
+
+    /**
+     * Forces the next {@link #get()} to go to EC2.
+     */
+    void invalidate() {
+        snapshot = null;
+    }
+
+    /**
+     * Evaluates the subset of DescribeInstances filters the plugin uses against an instance from a snapshot. A filter
+     * matches if any of its values matches, and all filters must match. Unknown filter names never match, so an
+     * instance is never reused on a criterion that could not be checked.
+     */
+    static boolean matches(Instance instance, Collection<Filter> filters) {
+        for (Filter filter : filters) {
+            if (!matches(instance, filter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(Instance instance, Filter filter) {
+        String name = filter.getName();
+        List<String> values = filter.getValues();
+        if (name.startsWith("tag:")) {
+            String key = name.substring("tag:".length());
+            for (Tag tag : instance.getTags()) {
+                if (key.equals(tag.getKey()) && values.contains(tag.getValue())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        switch (name) {
+        case "image-id":
+            return values.contains(instance.getImageId());
+        case "instance-type":
+            return values.contains(instance.getInstanceType());
+        case "key-name":
+            return values.contains(instance.getKeyName());
+        case "availability-zone":
+            return instance.getPlacement() != null && values.contains(instance.getPlacement().getAvailabilityZone());
+        case "subnet-id":
+            return values.contains(instance.getSubnetId());
+        case "instance-state-name":
+            return instance.getState() != null && values.contains(instance.getState().getName());
+        case "instance.group-id":
+        case "instance.group-name":
+            for (GroupIdentifier group : instance.getSecurityGroups()) {
+                String value = name.equals("instance.group-id") ? group.getGroupId() : group.getGroupName();
+                if (values.contains(value)) {
+                    return true;
+                }
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    private Snapshot withPending(Snapshot s) {
+        if (pending.isEmpty()) {
+            return s;
+        }
+        Map<String, Instance> merged = new LinkedHashMap<>(s.instances);
+        ActiveIndex active = s.active.copy();
+        for (Map.Entry<String, Pending> e : pending.entrySet()) {
+            merged.put(e.getKey(), e.getValue().instance);
+            active.remove(e.getKey());
+            active.add(e.getValue().instance);
+        }
+        return new Snapshot(s.timestamp, merged, active, s.spotRequests);
+    }
+
+    private Snapshot fetch() throws AmazonClientException {
+        long start = System.currentTimeMillis();
+        AmazonEC2 ec2 = cloud.connect();
+
+        String jenkinsServerUrl = JenkinsLocationConfiguration.get().getUrl();
+        List<Filter> filters = new ArrayList<>();
+        filters.add(new Filter("tag-key").withValues(EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE));
+        filters.add(new Filter("instance-state-name").withValues(FETCHED_STATES));
+        if (jenkinsServerUrl != null) {
+            // The instances must match the jenkins server url
+            filters.add(new Filter("tag:" + EC2Tag.TAG_NAME_JENKINS_SERVER_URL).withValues(jenkinsServerUrl));
+        }
+
+        // Each page is indexed and dropped as it arrives, only the instances themselves are kept
+        Map<String, Instance> instances = new LinkedHashMap<>();
+        ActiveIndex active = new ActiveIndex(jenkinsServerUrl);
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(filters).withMaxResults(PAGE_SIZE);
+        int pages = 0;
+        do {
+            DescribeInstancesResult result = ec2.describeInstances(request);
+            for (Reservation r : result.getReservations()) {
+                for (Instance i : r.getInstances()) {
+                    instances.put(i.getInstanceId(), i);
+                    active.add(i);
+                }
+            }
+            pages++;
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+
+        List<SpotInstanceRequest> spotRequests = null;
+        filters = new ArrayList<>();
+        if (jenkinsServerUrl != null) {
+            // The requests must match the jenkins server url
+            filters.add(new Filter("tag:" + EC2Tag.TAG_NAME_JENKINS_SERVER_URL).withValues(jenkinsServerUrl));
+        }
+        filters.add(new Filter("tag-key").withValues(EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE));
+        try {
+            spotRequests = ec2.describeSpotInstanceRequests(new DescribeSpotInstanceRequestsRequest().withFilters(filters))
+                    .getSpotInstanceRequests();
+        } catch (Exception ex) {
+            // Some ec2 implementations don't implement spot requests (Eucalyptus)
+            LOGGER.log(Level.FINEST, "Describe spot instance requests failed", ex);
+        }
+
+        for (Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Pending> e = it.next();
+            if (instances.containsKey(e.getKey()) || start - e.getValue().recordedAt > PENDING_EXPIRY) {
+                it.remove();
+            }
+        }
+
+        LOGGER.log(Level.FINE, "Fetched {0} instances and {1} spot requests for {2} in {3} page(s) and {4}ms",
+                new Object[] {instances.size(), spotRequests == null ? 0 : spotRequests.size(), cloud.getDisplayName(),
+                        pages, System.currentTimeMillis() - start});
+        return new Snapshot(start, instances, active, spotRequests);
+    }
+
+    /**
+     * Ids of the instances that count against instance caps, i.e. that are neither stopped, shutting down nor
+     * terminated and belong to this Jenkins, indexed by the value of their
+     * {@link EC2Tag#TAG_NAME_JENKINS_SLAVE_TYPE} tag and then by image id.
+     */
+    static final class ActiveIndex {
+        private final String jenkinsServerUrl;
+        private final Map<String, Map<String, Set<String>>> ids = new HashMap<>();
+
+        ActiveIndex(@CheckForNull String jenkinsServerUrl) {
+            this.jenkinsServerUrl = jenkinsServerUrl;
+        }
+
+        void add(Instance i) {
+            InstanceStateName state = InstanceStateName.fromValue(i.getState().getName());
+            if (state == InstanceStateName.Terminated || state == InstanceStateName.ShuttingDown
+                    || state == InstanceStateName.Stopped) {
+                return;
+            }
+            String slaveType = null;
+            String serverUrl = null;
+            for (Tag tag : i.getTags()) {
+                if (EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE.equals(tag.getKey())) {
+                    slaveType = tag.getValue();
+                } else if (EC2Tag.TAG_NAME_JENKINS_SERVER_URL.equals(tag.getKey())) {
+                    serverUrl = tag.getValue();
+                }
+            }
+            if (slaveType == null || !StringUtils.equals(serverUrl, jenkinsServerUrl)) {
+                return;
+            }
+            ids.computeIfAbsent(slaveType, k -> new HashMap<>())
+                    .computeIfAbsent(i.getImageId(), k -> new HashSet<>())
+                    .add(i.getInstanceId());
+        }
+
+        boolean contains(String instanceId) {
+            for (Map<String, Set<String>> byAmi : ids.values()) {
+                for (Set<String> set : byAmi.values()) {
+                    if (set.contains(instanceId)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void remove(String instanceId) {
+            for (Map<String, Set<String>> byAmi : ids.values()) {
+                for (Set<String> set : byAmi.values()) {
+                    set.remove(instanceId);
+                }
+            }
+        }
+
+        ActiveIndex copy() {
+            ActiveIndex copy = new ActiveIndex(jenkinsServerUrl);
+            for (Map.Entry<String, Map<String, Set<String>>> e : ids.entrySet()) {
+                Map<String, Set<String>> byAmi = new HashMap<>();
+                for (Map.Entry<String, Set<String>> a : e.getValue().entrySet()) {
+                    byAmi.put(a.getKey(), new HashSet<>(a.getValue()));
+                }
+                copy.ids.put(e.getKey(), byAmi);
+            }
+            return copy;
+        }
+
+        /**
+         * @return the image id to instance ids map of each slave type tag value.
+         */
+        Map<String, Map<String, Set<String>>> getIds() {
+            return Collections.unmodifiableMap(ids);
+        }
+    }
+
+    private static final class Pending {
+        final Instance instance;
+        final long recordedAt;
+
+        Pending(Instance instance, long recordedAt) {
+            this.instance = instance;
+            this.recordedAt = recordedAt;
+        }
+    }
+
+    /**
+     * Immutable result of one inventory fetch, merged with the launches recorded since.
+     */
+    static final class Snapshot {
+        private final long timestamp;
+        private final Map<String, Instance> instances;
+        private final ActiveIndex active;
+        private final List<SpotInstanceRequest> spotRequests;
+        private volatile Map<String, SpotInstanceRequest> spotRequestsById;
+
+        Snapshot(long timestamp, Map<String, Instance> instances, ActiveIndex active,
+                @CheckForNull List<SpotInstanceRequest> spotRequests) {
+            this.timestamp = timestamp;
+            this.instances = Collections.unmodifiableMap(instances);
+            this.active = active;
+            this.spotRequests = spotRequests == null ? null : Collections.unmodifiableList(spotRequests);
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        long getAge() {
+            return System.currentTimeMillis() - timestamp;
+        }
+
+        @NonNull
+        Collection<Instance> getInstances() {
+            return instances.values();
+        }
+
+        @CheckForNull
+        Instance getInstance(String instanceId) {
+            return instanceId == null ? null : instances.get(instanceId);
+        }
+
+        @NonNull
+        ActiveIndex getActive() {
+            return active;
+        }
+
+        /**
+         * @return {@code null} if the EC2 implementation does not support spot requests.
+         */
+        @CheckForNull
+        List<SpotInstanceRequest> getSpotInstanceRequests() {
+            return spotRequests;
+        }
+
+        @CheckForNull
+        SpotInstanceRequest getSpotInstanceRequest(String spotInstanceRequestId) {
+            if (spotRequests == null || spotInstanceRequestId == null) {
+                return null;
+            }
+            Map<String, SpotInstanceRequest> byId = spotRequestsById;
+            if (byId == null) {
+                byId = new HashMap<>();
+                for (SpotInstanceRequest sir : spotRequests) {
+                    byId.put(sir.getSpotInstanceRequestId(), sir);
+                }
+                spotRequestsById = byId;
+            }
+            return byId.get(spotInstanceRequestId);
+        }
+    }
+}
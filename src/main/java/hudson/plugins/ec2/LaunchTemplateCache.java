@@ -0,0 +1,192 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateLaunchTemplateRequest;
+import com.amazonaws.services.ec2.model.DeleteLaunchTemplateRequest;
+import com.amazonaws.services.ec2.model.DescribeLaunchTemplatesRequest;
+import com.amazonaws.services.ec2.model.DescribeLaunchTemplatesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.LaunchTemplate;
+import com.amazonaws.services.ec2.model.LaunchTemplateBlockDeviceMappingRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateEbsBlockDeviceRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateInstanceNetworkInterfaceSpecificationRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateTagSpecificationRequest;
+import com.amazonaws.services.ec2.model.RequestLaunchTemplateData;
+import com.amazonaws.services.ec2.model.Tag;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * EC2 launch templates created for the templates of one {@link EC2Cloud}, which EC2 Fleet requests refer to.
+ *
+ * <p>
+ * A launch template is named after its {@link SlaveTemplate} and a digest of its content, so the same content maps
+ * to the same launch template across restarts, and one that already exists is reused instead of created again. Once
+ * the content of a template changes, the launch templates created for its previous content are deleted, so they
+ * don't pile up against the per-region limit.
+ */
+final class LaunchTemplateCache {
+
+    private static final Logger LOGGER = Logger.getLogger(LaunchTemplateCache.class.getName());
+
+    static final String NAME_PREFIX = "jenkins-ec2-";
+
+    private final EC2Cloud cloud;
+
+    /**
+     * Launch template currently used by each template, by template identity.
+     */
+    private final Map<SlaveTemplate, LaunchTemplate> current = new ConcurrentHashMap<>();
+
+    LaunchTemplateCache(@NonNull EC2Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Returns the id of a launch template of the given template with the given content, creating it if needed.
+     */
+    @NonNull
+    String getLaunchTemplateId(@NonNull SlaveTemplate template, @NonNull RequestLaunchTemplateData data)
+            throws AmazonClientException {
+        String name = getName(template, data);
+        LaunchTemplate lt = current.get(template);
+        if (lt != null && lt.getLaunchTemplateName().equals(name)) {
+            return lt.getLaunchTemplateId();
+        }
+        synchronized (this) {
+            // Templates that share a description share their launch templates too
+            lt = getUsed(name);
+            AmazonEC2 ec2 = cloud.connect();
+            if (lt == null) {
+                lt = findOrCreate(ec2, name, data);
+            }
+            current.put(template, lt);
+            deleteUnused(ec2, getFamily(template));
+        }
+        return lt.getLaunchTemplateId();
+    }
+
+    /**
+     * Name of the launch templates of the template, without the content digest.
+     */
+    private String getFamily(SlaveTemplate template) {
+        return NAME_PREFIX + DigestUtils.sha256Hex(cloud.name + "\n" + template.description).substring(0, 16) + "-";
+    }
+
+    private String getName(SlaveTemplate template, RequestLaunchTemplateData data) {
+        return getFamily(template) + getDigest(data);
+    }
+
+    /**
+     * Digest of what instances are launched with. Lists that are sets in EC2 are sorted, so it does not depend on
+     * the order they were built in.
+     */
+    static String getDigest(RequestLaunchTemplateData data) {
+        StringBuilder key = new StringBuilder();
+        add(key, data.getImageId(), data.getInstanceType(), data.getEbsOptimized(), data.getKeyName(),
+                data.getUserData(), data.getInstanceInitiatedShutdownBehavior(),
+                data.getMonitoring() == null ? null : data.getMonitoring().getEnabled(),
+                data.getCreditSpecification() == null ? null : data.getCreditSpecification().getCpuCredits(),
+                data.getPlacement() == null ? null : data.getPlacement().getTenancy(),
+                data.getIamInstanceProfile() == null ? null : data.getIamInstanceProfile().getArn(),
+                sorted(data.getSecurityGroupIds()), sorted(data.getSecurityGroups()));
+        for (LaunchTemplateBlockDeviceMappingRequest mapping : data.getBlockDeviceMappings()) {
+            add(key, mapping.getDeviceName(), mapping.getVirtualName(), mapping.getNoDevice());
+            LaunchTemplateEbsBlockDeviceRequest ebs = mapping.getEbs();
+            if (ebs != null) {
+                add(key, ebs.getDeleteOnTermination(), ebs.getEncrypted(), ebs.getIops(), ebs.getKmsKeyId(),
+                        ebs.getSnapshotId(), ebs.getVolumeSize(), ebs.getVolumeType());
+            }
+        }
+        for (LaunchTemplateInstanceNetworkInterfaceSpecificationRequest net : data.getNetworkInterfaces()) {
+            add(key, net.getDeviceIndex(), net.getAssociatePublicIpAddress(), sorted(net.getGroups()));
+        }
+        for (LaunchTemplateTagSpecificationRequest spec : data.getTagSpecifications()) {
+            Collection<String> tags = new TreeSet<>();
+            for (Tag tag : spec.getTags()) {
+                tags.add(tag.getKey() + "=" + tag.getValue());
+            }
+            add(key, spec.getResourceType(), tags);
+        }
+        return DigestUtils.sha256Hex(key.toString()).substring(0, 40);
+    }
+
+    private static void add(StringBuilder key, Object... values) {
+        for (Object value : values) {
+            key.append(value == null ? "" : value).append('\n');
+        }
+    }
+
+    private static Collection<String> sorted(Collection<String> values) {
+        return values == null ? null : new TreeSet<>(values);
+    }
+
+    private static LaunchTemplate findOrCreate(AmazonEC2 ec2, String name, RequestLaunchTemplateData data) {
+        try {
+            LaunchTemplate created = ec2.createLaunchTemplate(new CreateLaunchTemplateRequest()
+                    .withLaunchTemplateName(name)
+                    .withLaunchTemplateData(data)).getLaunchTemplate();
+            LOGGER.log(Level.INFO, "Created launch template {0} ({1})", new Object[]{name, created.getLaunchTemplateId()});
+            return created;
+        } catch (AmazonServiceException e) {
+            if (!"InvalidLaunchTemplateName.AlreadyExistsException".equals(e.getErrorCode())) {
+                throw e;
+            }
+        }
+        List<LaunchTemplate> existing = ec2.describeLaunchTemplates(new DescribeLaunchTemplatesRequest()
+                .withLaunchTemplateNames(name)).getLaunchTemplates();
+        if (existing.isEmpty()) {
+            throw new AmazonClientException("Unable to find launch template " + name);
+        }
+        return existing.get(0);
+    }
+
+    /**
+     * Deletes the launch templates of the family that no template uses anymore, including those left over from before
+     * a restart. Failures are only logged, the next change of content tries again.
+     */
+    private void deleteUnused(AmazonEC2 ec2, String family) {
+        try {
+            List<LaunchTemplate> found = new ArrayList<>();
+            DescribeLaunchTemplatesRequest request = new DescribeLaunchTemplatesRequest()
+                    .withFilters(new Filter("launch-template-name").withValues(family + "*"));
+            do {
+                DescribeLaunchTemplatesResult result = ec2.describeLaunchTemplates(request);
+                found.addAll(result.getLaunchTemplates());
+                request.setNextToken(result.getNextToken());
+            } while (request.getNextToken() != null);
+
+            for (LaunchTemplate lt : found) {
+                if (getUsed(lt.getLaunchTemplateName()) == null) {
+                    ec2.deleteLaunchTemplate(new DeleteLaunchTemplateRequest().withLaunchTemplateId(lt.getLaunchTemplateId()));
+                    LOGGER.log(Level.INFO, "Deleted unused launch template {0} ({1})",
+                            new Object[]{lt.getLaunchTemplateName(), lt.getLaunchTemplateId()});
+                }
+            }
+        } catch (AmazonClientException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete the unused launch templates " + family + "*", e);
+        }
+    }
+
+    @CheckForNull
+    private LaunchTemplate getUsed(String name) {
+        for (LaunchTemplate lt : current.values()) {
+            if (lt.getLaunchTemplateName().equals(name)) {
+                return lt;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,281 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Computer;
+import hudson.model.Node;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for the instances of one {@link EC2Cloud} to reach the running state before they are handed to Jenkins.
+ *
+ * <p>
+ * Each planned node used to have its own thread polling EC2 for its own instance. This tracker instead keeps every
+ * instance in flight in one queue, and checks them all with a single batched DescribeInstances per tick. Ticks run on
+ * the shared {@link Timer} and only while something is tracked.
+ *
+ * <p>
+ * Spot requests of templates that fall back to on-demand are returned as soon as they are made. When EC2 reports it
+ * cannot fulfill some of them, a tick cancels them and launches on-demand instances in their place, which the same
+ * planned nodes then wait for. Instances the spot requests got before they were cancelled are terminated.
+ */
+final class PendingInstanceTracker {
+
+    private static final Logger LOGGER = Logger.getLogger(PendingInstanceTracker.class.getName());
+
+    /**
+     * How often (in milliseconds) pending instances are checked.
+     */
+    static final long POLL_INTERVAL = Long.getLong("jenkins.ec2.pendingPollIntervalMs", TimeUnit.SECONDS.toMillis(5));
+
+    /**
+     * How long (in milliseconds) EC2 may keep saying it does not know an instance it just launched.
+     */
+    static final long NOT_FOUND_GRACE = Long.getLong("jenkins.ec2.pendingNotFoundGraceMs", TimeUnit.SECONDS.toMillis(30));
+
+    private final EC2Cloud cloud;
+
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    PendingInstanceTracker(@NonNull EC2Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Starts tracking a freshly provisioned agent.
+     *
+     * @return a future that completes with the agent once its instance runs, or with {@code null} if it never will.
+     */
+    CompletableFuture<Node> track(SlaveTemplate template, EC2AbstractSlave slave) {
+        Entry entry = new Entry(template, slave);
+        entries.add(entry);
+        schedule();
+        return entry.future;
+    }
+
+    /**
+     * Number of agents still waiting for their instance.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(this::run, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void run() {
+        try {
+            tick();
+        } finally {
+            scheduled.set(false);
+            if (!entries.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Checks every tracked instance once.
+     */
+    synchronized void tick() {
+        try (ApiCallStats.Scope scope = ApiCallStats.enter(ApiCallStats.Subsystem.PROVISIONING)) {
+            check();
+        } catch (Throwable t) {
+            // Keep tracking, the next tick retries
+            LOGGER.log(Level.WARNING, "Failed to check the pending instances of " + cloud.getDisplayName(), t);
+        }
+    }
+
+    private void check() throws AmazonClientException {
+        List<Entry> waiting = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        List<Entry> unfulfillable = new ArrayList<>();
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.future.isDone()) {
+                // Cancelled by the provisioner
+                it.remove();
+                continue;
+            }
+            String instanceId = entry.slave.getInstanceId();
+            if (entry.slave instanceof EC2SpotSlave) {
+                SpotInstanceRequest spotRequest = ((EC2SpotSlave) entry.slave).getSpotRequest();
+                if (EC2SpotSlave.isDead(spotRequest)) {
+                    LOGGER.log(Level.WARNING, "{0} Spot request died, can't do anything. Terminate provisioning", entry.template);
+                    complete(it, entry, null);
+                    continue;
+                }
+
+                // Spot Instance does not have instance id yet.
+                if (StringUtils.isEmpty(instanceId)) {
+                    if (isFallbackToOndemand(entry.template) && EC2SpotSlave.isUnfulfillable(spotRequest)) {
+                        unfulfillable.add(entry);
+                    }
+                    continue;
+                }
+            }
+            waiting.add(entry);
+            ids.add(instanceId);
+        }
+        if (!unfulfillable.isEmpty()) {
+            fallBackToOndemand(unfulfillable);
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        Map<String, Instance> instances = CloudHelper.getInstances(ids, cloud);
+        long now = System.currentTimeMillis();
+        for (Entry entry : waiting) {
+            Instance instance = instances.get(entry.slave.getInstanceId());
+            if (instance == null) {
+                if (entry.missingSince == 0) {
+                    entry.missingSince = now;
+                } else if (now - entry.missingSince >= NOT_FOUND_GRACE) {
+                    LOGGER.log(Level.WARNING, "{0} Can't find instance with instance id `{1}` in cloud {2}. Terminate provisioning ",
+                            new Object[]{entry.template, entry.slave.getInstanceId(), entry.slave.cloudName});
+                    complete(entry, null);
+                }
+                continue;
+            }
+            entry.missingSince = 0;
+
+            InstanceStateName state = InstanceStateName.fromValue(instance.getState().getName());
+            if (state.equals(InstanceStateName.Running)) {
+                //Spot instance are not reconnected automatically,
+                // but could be new orphans that has the option enable
+                Computer c = entry.slave.toComputer();
+                if (entry.slave.getStopOnTerminate() && (c != null)) {
+                    c.connect(false);
+                }
+
+                long startTime = TimeUnit.MILLISECONDS.toSeconds(now - instance.getLaunchTime().getTime());
+                LOGGER.log(Level.INFO, "{0} Node {1} moved to RUNNING state in {2} seconds and is ready to be connected by Jenkins",
+                        new Object[]{entry.template, entry.slave.getNodeName(), startTime});
+                complete(entry, entry.slave);
+            } else if (!state.equals(InstanceStateName.Pending)) {
+                LOGGER.log(Level.WARNING, "{0}. Node {1} is neither pending, neither running, it's {2}. Terminate provisioning",
+                        new Object[]{entry.template, entry.slave.getNodeName(), state});
+                complete(entry, null);
+            }
+        }
+    }
+
+    private static boolean isFallbackToOndemand(SlaveTemplate t) {
+        return t.spotConfig != null && t.spotConfig.fallbackToOndemand;
+    }
+
+    /**
+     * Cancels the spot requests of the given entries and launches on-demand instances for them instead.
+     */
+    private void fallBackToOndemand(List<Entry> unfulfillable) throws AmazonClientException {
+        List<String> requestIds = new ArrayList<>();
+        Map<SlaveTemplate, List<Entry>> byTemplate = new LinkedHashMap<>();
+        for (Entry entry : unfulfillable) {
+            requestIds.add(((EC2SpotSlave) entry.slave).getSpotInstanceRequestId());
+            byTemplate.computeIfAbsent(entry.template, t -> new ArrayList<>()).add(entry);
+        }
+        LOGGER.log(Level.INFO, "Spot requests {0} cannot be fulfilled, cancelling them", requestIds);
+        AmazonEC2 ec2 = cloud.connect();
+        ec2.cancelSpotInstanceRequests(new CancelSpotInstanceRequestsRequest(requestIds));
+        cloud.getSpotRequests().invalidate(requestIds);
+        terminateFulfilled(ec2, requestIds);
+
+        for (Map.Entry<SlaveTemplate, List<Entry>> e : byTemplate.entrySet()) {
+            List<EC2AbstractSlave> slaves = null;
+            try {
+                slaves = cloud.launchOndemandFallback(e.getKey(), e.getValue().size());
+            } catch (IOException | AmazonClientException ex) {
+                LOGGER.log(Level.WARNING, e.getKey() + ". Failed to fall back to on-demand instances", ex);
+            }
+            int launched = slaves == null ? 0 : slaves.size();
+            for (int i = 0; i < e.getValue().size(); i++) {
+                Entry entry = e.getValue().get(i);
+                if (i < launched) {
+                    entry.slave = slaves.get(i);
+                    entry.missingSince = 0;
+                } else {
+                    complete(entry, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Terminates the instances of cancelled spot requests that were fulfilled after they were last checked, as their
+     * planned nodes now wait for on-demand instances.
+     */
+    private static void terminateFulfilled(AmazonEC2 ec2, List<String> requestIds) {
+        List<String> instanceIds = new ArrayList<>();
+        try {
+            DescribeSpotInstanceRequestsRequest request = new DescribeSpotInstanceRequestsRequest()
+                    .withSpotInstanceRequestIds(requestIds);
+            for (SpotInstanceRequest spotRequest : ec2.describeSpotInstanceRequests(request).getSpotInstanceRequests()) {
+                if (StringUtils.isNotEmpty(spotRequest.getInstanceId())) {
+                    instanceIds.add(spotRequest.getInstanceId());
+                }
+            }
+            if (!instanceIds.isEmpty()) {
+                LOGGER.log(Level.INFO, "Cancelled spot requests got instances {0} meanwhile, terminating them", instanceIds);
+                ec2.terminateInstances(new TerminateInstancesRequest(instanceIds));
+            }
+        } catch (AmazonClientException e) {
+            LOGGER.log(Level.WARNING, "Failed to terminate the instances of the cancelled spot requests " + requestIds, e);
+        }
+    }
+
+    private void complete(Iterator<Entry> it, Entry entry, Node node) {
+        it.remove();
+        entry.future.complete(node);
+    }
+
+    private void complete(Entry entry, Node node) {
+        entries.remove(entry);
+        entry.future.complete(node);
+    }
+
+    private static final class Entry {
+        private final SlaveTemplate template;
+        /**
+         * The agent to hand to Jenkins, replaced by an on-demand one when its spot request cannot be fulfilled.
+         */
+        private volatile EC2AbstractSlave slave;
+        private final CompletableFuture<Node> future = new CompletableFuture<>();
+        /**
+         * When EC2 first failed to report the instance, or 0.
+         */
+        private long missingSince;
+
+        private Entry(SlaveTemplate template, EC2AbstractSlave slave) {
+            this.template = template;
+            this.slave = slave;
+        }
+    }
+}
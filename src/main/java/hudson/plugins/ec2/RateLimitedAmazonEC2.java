@@ -0,0 +1,129 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.ec2.AmazonEC2;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import org.apache.commons.lang.StringUtils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * {@link AmazonEC2} that makes its API calls through an {@link ApiRateLimiter}, and counts them in {@link ApiCallStats}.
+ *
+ * <p>
+ * Calls EC2 throttles are tried again, up to {@link #MAX_ATTEMPTS} times, once the limiter slowed down.
+ */
+final class RateLimitedAmazonEC2 implements InvocationHandler {
+
+    static final int MAX_ATTEMPTS = Integer.getInteger("jenkins.ec2.throttledCallAttempts", 4);
+
+    private final AmazonEC2 delegate;
+
+    private final ApiRateLimiter limiter;
+
+    private final ApiCallStats stats;
+
+    private RateLimitedAmazonEC2(AmazonEC2 delegate, ApiRateLimiter limiter, ApiCallStats stats) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+        this.stats = stats;
+    }
+
+    static AmazonEC2 wrap(AmazonEC2 client, ApiRateLimiter limiter, ApiCallStats stats) {
+        if (client == null || Proxy.isProxyClass(client.getClass())
+                && Proxy.getInvocationHandler(client) instanceof RateLimitedAmazonEC2) {
+            return client;
+        }
+        return (AmazonEC2) Proxy.newProxyInstance(RateLimitedAmazonEC2.class.getClassLoader(),
+                new Class<?>[]{AmazonEC2.class}, new RateLimitedAmazonEC2(client, limiter, stats));
+    }
+
+    /**
+     * Returns the client the given one makes its calls with.
+     */
+    static AmazonEC2 unwrap(AmazonEC2 client) {
+        if (client != null && Proxy.isProxyClass(client.getClass())
+                && Proxy.getInvocationHandler(client) instanceof RateLimitedAmazonEC2) {
+            return ((RateLimitedAmazonEC2) Proxy.getInvocationHandler(client)).delegate;
+        }
+        return client;
+    }
+
+    /**
+     * Category of an API call, {@code null} for the methods of the client that do not call EC2.
+     */
+    @CheckForNull
+    static ApiRateLimiter.Category getCategory(Method method) {
+        if (method.getDeclaringClass() != AmazonEC2.class || method.getName().equals("getCachedResponseMetadata")) {
+            return null;
+        }
+        Class<?>[] params = method.getParameterTypes();
+        boolean apiCall = params.length == 1 && AmazonWebServiceRequest.class.isAssignableFrom(params[0])
+                || params.length == 0 && method.getName().startsWith("describe");
+        if (!apiCall) {
+            return null;
+        }
+        String name = method.getName();
+        if (name.startsWith("describe") || name.startsWith("get")) {
+            return ApiRateLimiter.Category.DESCRIBE;
+        }
+        if (name.equals("createTags") || name.equals("deleteTags")) {
+            return ApiRateLimiter.Category.TAG;
+        }
+        return ApiRateLimiter.Category.MUTATE;
+    }
+
+    /**
+     * Name of the EC2 operation a method calls, such as {@code DescribeInstances}.
+     */
+    static String getOperation(Method method) {
+        return StringUtils.capitalize(method.getName());
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        ApiRateLimiter.Category category = getCategory(method);
+        ApiCallStats.Subsystem subsystem = ApiCallStats.current();
+        for (int attempt = 1;; attempt++) {
+            if (category != null) {
+                try {
+                    limiter.acquire(category);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AmazonClientException("Interrupted while waiting to call " + method.getName(), e);
+                }
+            }
+            long start = System.nanoTime();
+            try {
+                Object result = method.invoke(delegate, args);
+                if (category != null) {
+                    stats.record(getOperation(method), subsystem, System.nanoTime() - start, null, false);
+                    limiter.succeeded(category);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (category == null) {
+                    throw cause;
+                }
+                boolean throttled = cause instanceof AmazonServiceException
+                        && ApiRateLimiter.isThrottling((AmazonServiceException) cause);
+                String errorCode = cause instanceof AmazonServiceException
+                        ? ((AmazonServiceException) cause).getErrorCode() : cause.getClass().getSimpleName();
+                stats.record(getOperation(method), subsystem, System.nanoTime() - start, errorCode, throttled);
+                if (throttled) {
+                    limiter.throttled(category);
+                    if (attempt < MAX_ATTEMPTS) {
+                        continue;
+                    }
+                }
+                throw cause;
+            }
+        }
+    }
+}
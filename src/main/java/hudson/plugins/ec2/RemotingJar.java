@@ -0,0 +1,108 @@
+package hudson.plugins.ec2;
+
+import com.trilead.ssh2.SCPClient;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import jenkins.model.Jenkins;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@code remoting.jar} the launchers copy to the agents.
+ *
+ * <p>
+ * Next to its copy of the jar, an agent keeps a {@link #DIGEST_FILE} with the SHA-256 digest of the jar. Launchers
+ * only copy the jar again when that digest does not match the jar of this controller.
+ *
+ * <p>
+ * The jar is read from the Jenkins war once per controller version, and all launches share that {@link Payload}, so
+ * that many agents connecting at once do not each inflate and buffer a copy of the jar.
+ */
+public final class RemotingJar {
+
+    public static final String NAME = "remoting.jar";
+
+    public static final String DIGEST_FILE = NAME + ".sha256";
+
+    @CheckForNull
+    private static volatile Payload payload;
+
+    private RemotingJar() {
+    }
+
+    /**
+     * The jar of this controller, read once per controller version.
+     */
+    public static Payload getPayload() throws IOException {
+        Payload p = payload;
+        if (p == null || !p.version.equals(getVersion())) {
+            synchronized (RemotingJar.class) {
+                p = payload;
+                if (p == null || !p.version.equals(getVersion())) {
+                    p = new Payload(getVersion(), Jenkins.get().getJnlpJars(NAME).readFully());
+                    payload = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * SHA-256 digest (in hex) of the jar.
+     */
+    public static String getDigest() throws IOException {
+        return getPayload().getDigest();
+    }
+
+    /**
+     * Contents of the {@link #DIGEST_FILE} to write next to a fresh copy of the jar.
+     */
+    public static byte[] getDigestFile() throws IOException {
+        return getDigest().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Whether the copy of the jar an agent has matches the jar of this controller.
+     *
+     * @param remoteDigest contents of the {@link #DIGEST_FILE} of the agent, {@code null} if it has none
+     */
+    public static boolean isCurrent(@CheckForNull String remoteDigest) throws IOException {
+        return remoteDigest != null && remoteDigest.trim().equalsIgnoreCase(getDigest());
+    }
+
+    private static String getVersion() {
+        return String.valueOf(Jenkins.VERSION);
+    }
+
+    /**
+     * Contents of the jar, with their digest. Immutable, its bytes are never handed out for writing.
+     */
+    public static final class Payload {
+        private final String version;
+        private final byte[] bytes;
+        private final String digest;
+
+        private Payload(String version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+            this.digest = DigestUtils.sha256Hex(bytes);
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes);
+        }
+
+        /**
+         * Copies the jar to the given directory of an agent.
+         */
+        public void put(SCPClient scp, String remoteTargetDirectory) throws IOException {
+            scp.put(bytes, NAME, remoteTargetDirectory);
+        }
+    }
+}
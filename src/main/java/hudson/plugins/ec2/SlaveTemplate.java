@@ -23,6 +23,8 @@ import java.io.PrintStream;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -50,6 +52,8 @@ import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.*;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
 import hudson.Extension;
 import hudson.Util;
 import hudson.model.*;
@@ -67,6 +71,11 @@ import hudson.util.ListBoxModel;
 public class SlaveTemplate implements Describable<SlaveTemplate> {
     private static final Logger LOGGER = Logger.getLogger(SlaveTemplate.class.getName());
 
+    /**
+     * How long (in milliseconds) the security group ids resolved for a subnet are reused.
+     */
+    static final long SECURITY_GROUP_CACHE_TTL = Long.getLong("jenkins.ec2.securityGroupCacheTtlMs", TimeUnit.MINUTES.toMillis(10));
+
     public String ami;
 
     public final String description;
@@ -137,7 +146,19 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     public int maxTotalUses;
 
-    public int nextSubnet;
+    private int warmPoolSize;
+
+    private boolean fleetProvisioning;
+
+    private String alternativeInstanceTypes;
+
+    private boolean singleScriptBootstrap;
+
+    /**
+     * @deprecated subnets are picked by the {@link SubnetSelector} now. Read from old configurations and ignored.
+     */
+    @Deprecated
+    public transient int nextSubnet;
 
     public String currentSubnetId;
 
@@ -145,6 +166,10 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     private transient/* almost final */Set<String> securityGroupSet;
 
+    private transient/* almost final */Map<String, ResolvedSecurityGroups> securityGroupCache;
+
+    private transient/* almost final */SubnetSelector subnetSelector;
+
     /*
      * Necessary to handle reading from old configurations. The UnixData object is created in readResolve()
      */
@@ -211,7 +236,6 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         this.connectBySSHProcess = connectBySSHProcess;
         this.maxTotalUses = maxTotalUses;
         this.monitoring = monitoring;
-        this.nextSubnet = 0;
 
         this.usePrivateDnsName = this.connectionStrategy.equals(ConnectionStrategy.PRIVATE_DNS);
         this.connectUsingPublicIp = this.connectionStrategy.equals(ConnectionStrategy.PUBLIC_IP);
@@ -390,17 +414,44 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     }
 
     public String chooseSubnetId() {
-        if (StringUtils.isBlank(subnetId)) {
+        return chooseSubnetId(null);
+    }
+
+    private String chooseSubnetId(@CheckForNull SpotPriceCache.Choice spotChoice) {
+        List<String> subnets = rankSubnetIds(spotChoice);
+        if (subnets.isEmpty()) {
             return null;
         } else {
-            String[] subnetIdList= getSubnetId().split(" ");
+            currentSubnetId = subnets.get(0);
+            return currentSubnetId;
+        }
+    }
 
-            // Round-robin subnet selection.
-            currentSubnetId = subnetIdList[nextSubnet];
-            nextSubnet = (nextSubnet + 1) % subnetIdList.length;
+    /**
+     * Orders the subnets of the template, the one to launch into first. Subnets are taken round-robin, but those that
+     * recently failed to take instances go last.
+     */
+    private List<String> rankSubnetIds() {
+        if (StringUtils.isBlank(subnetId)) {
+            return Collections.emptyList();
+        }
+        return subnetSelector.rank(Arrays.asList(StringUtils.split(subnetId)));
+    }
 
-            return currentSubnetId;
+    /**
+     * Same as {@link #rankSubnetIds()}, but the subnets in the availability zone of the spot choice come first, as that
+     * is where its price was seen.
+     */
+    private List<String> rankSubnetIds(@CheckForNull SpotPriceCache.Choice spotChoice) {
+        List<String> subnets = rankSubnetIds();
+        EC2Cloud cloud = getParent();
+        if (spotChoice == null || subnets.size() < 2 || cloud == null) {
+            return subnets;
         }
+        SpotPriceCache prices = cloud.getSpotPrices();
+        List<String> ranked = new ArrayList<>(subnets);
+        ranked.sort(Comparator.comparing(s -> !spotChoice.getZone().equals(prices.getZone(s))));
+        return ranked;
     }
 
     public String getSubnetId() {
@@ -524,7 +575,111 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return maxTotalUses;
     }
 
-    public enum ProvisionOptions { ALLOW_CREATE, FORCE_CREATE }
+    public int getWarmPoolSize() {
+        return warmPoolSize;
+    }
+
+    @DataBoundSetter
+    public void setWarmPoolSize(int warmPoolSize) {
+        this.warmPoolSize = Math.max(0, warmPoolSize);
+    }
+
+    /**
+     * A warm pool is made of stopped instances, so it only applies to on-demand templates that stop their instances.
+     */
+    boolean isWarmPoolEnabled() {
+        return warmPoolSize > 0 && stopOnTerminate && spotConfig == null;
+    }
+
+    public boolean isFleetProvisioning() {
+        return fleetProvisioning;
+    }
+
+    @DataBoundSetter
+    public void setFleetProvisioning(boolean fleetProvisioning) {
+        this.fleetProvisioning = fleetProvisioning;
+    }
+
+    /**
+     * Fleet provisioning only launches new instances, so it does not apply to templates that stop their instances to
+     * start them again.
+     */
+    boolean isFleetProvisioningEnabled() {
+        return fleetProvisioning && !stopOnTerminate;
+    }
+
+    public boolean isSingleScriptBootstrap() {
+        return singleScriptBootstrap;
+    }
+
+    @DataBoundSetter
+    public void setSingleScriptBootstrap(boolean singleScriptBootstrap) {
+        this.singleScriptBootstrap = singleScriptBootstrap;
+    }
+
+    public String getAlternativeInstanceTypes() {
+        return alternativeInstanceTypes;
+    }
+
+    @DataBoundSetter
+    public void setAlternativeInstanceTypes(String alternativeInstanceTypes) {
+        this.alternativeInstanceTypes = Util.fixEmptyAndTrim(alternativeInstanceTypes);
+    }
+
+    /**
+     * The instance type of the template, followed by the alternative ones.
+     */
+    List<String> getInstanceTypes() {
+        Set<String> types = new LinkedHashSet<>();
+        types.add(type.toString());
+        if (alternativeInstanceTypes != null) {
+            types.addAll(Arrays.asList(StringUtils.split(alternativeInstanceTypes)));
+        }
+        return new ArrayList<>(types);
+    }
+
+    /**
+     * Instance type and availability zone a spot launch should use: the cheapest per vCPU among the instance types of
+     * the template, as last seen by {@link SpotPriceCache}, in the zone or the zones of the subnets of the template, and
+     * within its bid. {@code null} when no such price is known yet, or the zones of the subnets are not.
+     */
+    @CheckForNull
+    SpotPriceCache.Choice chooseSpotInstanceType() {
+        EC2Cloud cloud = getParent();
+        if (spotConfig == null || cloud == null) {
+            return null;
+        }
+        SpotPriceCache prices = cloud.getSpotPrices();
+        Collection<String> zones = null;
+        if (StringUtils.isNotBlank(getZone())) {
+            zones = Collections.singleton(getZone());
+        } else if (StringUtils.isNotBlank(getSubnetId())) {
+            zones = new HashSet<>();
+            for (String subnet : StringUtils.split(getSubnetId())) {
+                String zone = prices.getZone(subnet);
+                if (zone == null) {
+                    return null;
+                }
+                zones.add(zone);
+            }
+        }
+        String bid = spotConfig.useBidPrice ? getSpotMaxBidPrice() : null;
+        double maxPrice = bid == null ? Double.MAX_VALUE : Double.parseDouble(bid);
+        return prices.getCheapest(getInstanceTypes(), zones, SpotPriceCache.getProductDescription(this), maxPrice);
+    }
+
+    /**
+     * Whether a launch may be placed in the availability zone of a {@link SpotPriceCache.Choice}. Templates with
+     * subnets launch in the zones of their subnets.
+     */
+    private boolean canChooseZone() {
+        return StringUtils.isBlank(getZone()) && StringUtils.isBlank(getSubnetId());
+    }
+
+    /**
+     * {@link #WARM_POOL} launches new instances only: stopped instances already are the warm pool.
+     */
+    public enum ProvisionOptions { ALLOW_CREATE, FORCE_CREATE, WARM_POOL }
 
     /**
      * Provisions a new EC2 slave or starts a previously stopped on-demand instance.
@@ -532,6 +687,11 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
      * @return always non-null. This needs to be then added to {@link Hudson#addNode(Node)}.
      */
     public List<EC2AbstractSlave> provision(int number, EnumSet<ProvisionOptions> provisionOptions) throws AmazonClientException, IOException {
+        if (isFleetProvisioningEnabled()) {
+            if (provisionOptions.contains(ProvisionOptions.ALLOW_CREATE) || provisionOptions.contains(ProvisionOptions.FORCE_CREATE))
+                return provisionFleet(number);
+            return null;
+        }
         if (this.spotConfig != null) {
             if (provisionOptions.contains(ProvisionOptions.ALLOW_CREATE) || provisionOptions.contains(ProvisionOptions.FORCE_CREATE))
                 return provisionSpot(number, provisionOptions);
@@ -585,6 +745,16 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return provisionOndemand(number, provisionOptions, false, false);
     }
 
+    /**
+     * Provisions On-demand EC2 slaves in place of spot requests EC2 could not fulfill.
+     *
+     * @see PendingInstanceTracker
+     */
+    List<EC2AbstractSlave> provisionOndemandFallback(int number) throws IOException {
+        LOGGER.info(this + ". There is no spot capacity available matching your request, falling back to " + number + " on-demand instances.");
+        return provisionOndemand(number, EnumSet.of(ProvisionOptions.ALLOW_CREATE));
+    }
+
     /**
      * Provisions an On-demand EC2 slave by launching a new instance or starting a previously-stopped instance.
      */
@@ -594,7 +764,13 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
         logProvisionInfo("Considering launching");
 
-        RunInstancesRequest riRequest = new RunInstancesRequest(ami, 1, number).withInstanceType(type);
+        SpotPriceCache.Choice spotChoice = spotWithoutBidPrice ? chooseSpotInstanceType() : null;
+        if (spotChoice != null) {
+            logProvisionInfo("Cheapest spot instance type per vCPU is " + spotChoice);
+        }
+        String instanceType = spotChoice == null ? type.toString() : spotChoice.getInstanceType();
+
+        RunInstancesRequest riRequest = new RunInstancesRequest(ami, 1, number).withInstanceType(instanceType);
         riRequest.setEbsOptimized(ebsOptimized);
         riRequest.setMonitoring(monitoring);
 
@@ -616,9 +792,9 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
         List<Filter> diFilters = new ArrayList<>();
         diFilters.add(new Filter("image-id").withValues(ami));
-        diFilters.add(new Filter("instance-type").withValues(type.toString()));
+        diFilters.add(new Filter("instance-type").withValues(instanceType));
 
-        KeyPair keyPair = getKeyPair(ec2);
+        KeyPair keyPair = getKeyPair();
         riRequest.setUserData(Base64.encodeBase64String(userData.getBytes(StandardCharsets.UTF_8)));
         riRequest.setKeyName(keyPair.getKeyName());
         diFilters.add(new Filter("key-name").withValues(keyPair.getKeyName()));
@@ -631,35 +807,24 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             }
             riRequest.setPlacement(placement);
             diFilters.add(new Filter("availability-zone").withValues(getZone()));
+        } else if (spotChoice != null && canChooseZone()) {
+            Placement placement = new Placement(spotChoice.getZone());
+            if (getUseDedicatedTenancy()) {
+                placement.setTenancy("dedicated");
+            }
+            riRequest.setPlacement(placement);
         }
 
-        String subnetId = chooseSubnetId();
+        List<String> subnets = rankSubnetIds(spotChoice);
 
         InstanceNetworkInterfaceSpecification net = new InstanceNetworkInterfaceSpecification();
-        if (StringUtils.isNotBlank(subnetId)) {
-            if (getAssociatePublicIp()) {
-                net.setSubnetId(subnetId);
-            } else {
-                riRequest.setSubnetId(subnetId);
-            }
+        if (!subnets.isEmpty()) {
+            String subnetId = subnets.get(0);
+            List<String> groupIds = useSubnet(ec2, subnetId, riRequest, net);
 
             diFilters.add(new Filter("subnet-id").withValues(subnetId));
-
-            /*
-             * If we have a subnet ID then we can only use VPC security groups
-             */
-            if (!securityGroupSet.isEmpty()) {
-                List<String> groupIds = getEc2SecurityGroups(ec2);
-
-                if (!groupIds.isEmpty()) {
-                    if (getAssociatePublicIp()) {
-                        net.setGroups(groupIds);
-                    } else {
-                        riRequest.setSecurityGroupIds(groupIds);
-                    }
-
-                    diFilters.add(new Filter("instance.group-id").withValues(groupIds));
-                }
+            if (!groupIds.isEmpty()) {
+                diFilters.add(new Filter("instance.group-id").withValues(groupIds));
             }
         } else {
             /* No subnet: we can use standard security groups by name */
@@ -680,12 +845,12 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             diFilters.add(new Filter("tag:" + tag.getKey()).withValues(tag.getValue()));
         }
 
-        DescribeInstancesRequest diRequest = new DescribeInstancesRequest().withFilters(diFilters);
+        logProvisionInfo("Looking for existing instances in the inventory matching: " + diFilters);
 
-        logProvisionInfo("Looking for existing instances with describe-instance: " + diRequest);
-
-        DescribeInstancesResult diResult = ec2.describeInstances(diRequest);
-        List<Instance> orphansOrStopped = findOrphansOrStopped(diResult, number);
+        InstanceInventory inventory = getParent().getInventory();
+        List<Instance> orphansOrStopped = provisionOptions.contains(ProvisionOptions.WARM_POOL)
+                ? Collections.emptyList()
+                : findOrphansOrStopped(inventory.get().getInstances(), diFilters, number);
 
         if (orphansOrStopped.isEmpty() && !provisionOptions.contains(ProvisionOptions.FORCE_CREATE) &&
                 !provisionOptions.contains(ProvisionOptions.ALLOW_CREATE)) {
@@ -694,6 +859,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         }
 
         wakeOrphansOrStoppedUp(ec2, orphansOrStopped);
+        inventory.recordLaunched(orphansOrStopped, instTags);
 
         if (orphansOrStopped.size() == number) {
             return toSlaves(orphansOrStopped);
@@ -721,20 +887,22 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             }
             riRequest.setInstanceMarketOptions(instanceMarketOptionsRequest);
             try {
-                newInstances = ec2.runInstances(riRequest).getReservation().getInstances();
+                newInstances = runInstances(ec2, riRequest, net, subnets);
             } catch (AmazonEC2Exception e) {
                 if (fallbackSpotToOndemand && e.getErrorCode().equals("InsufficientInstanceCapacity")) {
                     logProvisionInfo("There is no spot capacity available matching your request, falling back to on-demand instance.");
                     riRequest.setInstanceMarketOptions(new InstanceMarketOptionsRequest());
-                    newInstances = ec2.runInstances(riRequest).getReservation().getInstances();
+                    riRequest.setInstanceType(type);
+                    newInstances = runInstances(ec2, riRequest, net, rankSubnetIds());
                 } else {
                     throw e;
                 }
             }
         } else {
-            newInstances = ec2.runInstances(riRequest).getReservation().getInstances();
+            newInstances = runInstances(ec2, riRequest, net, subnets);
         }
         // Have to create a new instance
+        inventory.recordLaunched(newInstances, instTags);
 
         if (newInstances.isEmpty()) {
             logProvisionInfo("No new instances were created");
@@ -745,6 +913,66 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return toSlaves(newInstances);
     }
 
+    /**
+     * Launches into the given subnets, best first. A launch that fails because the subnet or its zone lacks capacity
+     * is retried in the next subnet.
+     */
+    private List<Instance> runInstances(AmazonEC2 ec2, RunInstancesRequest riRequest,
+            InstanceNetworkInterfaceSpecification net, List<String> subnets) throws AmazonClientException {
+        if (subnets.isEmpty()) {
+            return ec2.runInstances(riRequest).getReservation().getInstances();
+        }
+        for (int i = 0;; i++) {
+            String subnetId = subnets.get(i);
+            useSubnet(ec2, subnetId, riRequest, net);
+            try {
+                List<Instance> instances = ec2.runInstances(riRequest).getReservation().getInstances();
+                subnetSelector.launched(subnetId, instances.size());
+                return instances;
+            } catch (AmazonServiceException e) {
+                if (!SubnetSelector.isCapacityError(e)) {
+                    throw e;
+                }
+                subnetSelector.failed(subnetId);
+                if (i + 1 == subnets.size()) {
+                    throw e;
+                }
+                logProvisionInfo("Launch in subnet " + subnetId + " failed with " + e.getErrorCode() + ", trying subnet " + subnets.get(i + 1));
+            }
+        }
+    }
+
+    /**
+     * Points the launch at the subnet. If we have a subnet ID then we can only use VPC security groups. The groups
+     * resolved for a previous subnet are dropped, as they may belong to another VPC.
+     *
+     * @return the ids of the security groups of the launch
+     */
+    private List<String> useSubnet(AmazonEC2 ec2, String subnetId, RunInstancesRequest riRequest,
+            InstanceNetworkInterfaceSpecification net) throws AmazonClientException {
+        currentSubnetId = subnetId;
+        net.setGroups(null);
+        riRequest.setSecurityGroupIds(null);
+        if (getAssociatePublicIp()) {
+            net.setSubnetId(subnetId);
+        } else {
+            riRequest.setSubnetId(subnetId);
+        }
+
+        if (securityGroupSet.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> groupIds = getEc2SecurityGroups(ec2);
+        if (!groupIds.isEmpty()) {
+            if (getAssociatePublicIp()) {
+                net.setGroups(groupIds);
+            } else {
+                riRequest.setSecurityGroupIds(groupIds);
+            }
+        }
+        return groupIds;
+    }
+
     private void wakeOrphansOrStoppedUp(AmazonEC2 ec2, List<Instance> orphansOrStopped) {
         List<String> instances = new ArrayList<>();
         for(Instance instance : orphansOrStopped) {
@@ -780,125 +1008,69 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         }
     }
 
-    private List<Instance> findOrphansOrStopped(DescribeInstancesResult diResult, int number) {
+    private List<Instance> findOrphansOrStopped(Collection<Instance> instances, List<Filter> filters, int number) {
         List<Instance> orphansOrStopped = new ArrayList<>();
         int count = 0;
-        for (Reservation reservation : diResult.getReservations()) {
-            for (Instance instance : reservation.getInstances()) {
-                if (!isSameIamInstanceProfile(instance)) {
-                    logInstanceCheck(instance, ". false - IAM Instance profile does not match: " + instance.getIamInstanceProfile());
-                    continue;
-                }
+        for (Instance instance : instances) {
+            if (!InstanceInventory.matches(instance, filters)) {
+                continue;
+            }
 
-                if (isTerminatingOrShuttindDown(instance.getState().getName())) {
-                    logInstanceCheck(instance, ". false - Instance is terminated or shutting down");
-                    continue;
-                }
+            if (!isSameIamInstanceProfile(instance)) {
+                logInstanceCheck(instance, ". false - IAM Instance profile does not match: " + instance.getIamInstanceProfile());
+                continue;
+            }
 
-                if (checkInstance(instance)) {
-                    logProvisionInfo("Found existing instance: " + instance);
-                    orphansOrStopped.add(instance);
-                    count++;
-                }
+            if (isTerminatingOrShuttindDown(instance.getState().getName())) {
+                logInstanceCheck(instance, ". false - Instance is terminated or shutting down");
+                continue;
+            }
 
-                if (count == number) {
-                    return orphansOrStopped;
-                }
+            if (checkInstance(instance)) {
+                logProvisionInfo("Found existing instance: " + instance);
+                orphansOrStopped.add(instance);
+                count++;
+            }
+
+            if (count == number) {
+                return orphansOrStopped;
             }
         }
         return orphansOrStopped;
     }
 
     private void setupRootDevice(List<BlockDeviceMapping> deviceMappings) {
-        if (deleteRootOnTermination && getImage().getRootDeviceType().equals("ebs")) {
-            // get the root device (only one expected in the blockmappings)
-            final List<BlockDeviceMapping> rootDeviceMappings = getAmiBlockDeviceMappings();
-            if (rootDeviceMappings.size() == 0) {
+        if (!deleteRootOnTermination) {
+            return;
+        }
+        ImageCache.Entry image = getParent().getImageCache().get(ami);
+        if (image.isEbsRoot()) {
+            BlockDeviceMapping newMapping = image.getRootDeviceMapping();
+            if (newMapping == null) {
                 LOGGER.warning("AMI missing block devices");
                 return;
             }
-            BlockDeviceMapping rootMapping = rootDeviceMappings.get(0);
-            LOGGER.info("AMI had " + rootMapping.getDeviceName());
-            LOGGER.info(rootMapping.getEbs().toString());
+            LOGGER.info("AMI had " + newMapping.getDeviceName());
+            LOGGER.info(newMapping.getEbs().toString());
 
             // Check if the root device is already in the mapping and update it
             for (final BlockDeviceMapping mapping : deviceMappings) {
                 LOGGER.info("Request had " + mapping.getDeviceName());
-                if (rootMapping.getDeviceName().equals(mapping.getDeviceName())) {
+                if (newMapping.getDeviceName().equals(mapping.getDeviceName())) {
                     mapping.getEbs().setDeleteOnTermination(Boolean.TRUE);
                     return;
                 }
             }
 
-            // Create a shadow of the AMI mapping (doesn't like reusing rootMapping directly)
-            BlockDeviceMapping newMapping = rootMapping.clone();
-            newMapping.getEbs().setDeleteOnTermination(Boolean.TRUE);
-            //Per the documentation, "If you are creating a volume from a snapshot, you can't specify an encryption value. This is because only blank volumes can be encrypted on creation. "
-            //The root volume will always have a snapshot, so this value needs to be set to null to work correctly
-            newMapping.getEbs().setEncrypted(null);
             deviceMappings.add(0, newMapping);
         }
     }
 
-    private List<BlockDeviceMapping> getNewEphemeralDeviceMapping() {
-
-        final List<BlockDeviceMapping> oldDeviceMapping = getAmiBlockDeviceMappings();
-
-        final Set<String> occupiedDevices = new HashSet<>();
-        for (final BlockDeviceMapping mapping : oldDeviceMapping) {
-
-            occupiedDevices.add(mapping.getDeviceName());
-        }
-
-        final List<String> available = new ArrayList<>(
-                Arrays.asList("ephemeral0", "ephemeral1", "ephemeral2", "ephemeral3"));
-
-        final List<BlockDeviceMapping> newDeviceMapping = new ArrayList<>(4);
-        for (char suffix = 'b'; suffix <= 'z' && !available.isEmpty(); suffix++) {
-
-            final String deviceName = String.format("/dev/xvd%s", suffix);
-
-            if (occupiedDevices.contains(deviceName))
-                continue;
-
-            final BlockDeviceMapping newMapping = new BlockDeviceMapping().withDeviceName(deviceName).withVirtualName(
-                    available.get(0));
-
-            newDeviceMapping.add(newMapping);
-            available.remove(0);
-        }
-
-        return newDeviceMapping;
-    }
-
     private void setupEphemeralDeviceMapping(List<BlockDeviceMapping> deviceMappings) {
         // Don't wipe out pre-existing mappings
-        deviceMappings.addAll(getNewEphemeralDeviceMapping());
-    }
-
-    private List<BlockDeviceMapping> getAmiBlockDeviceMappings() {
-
-        /*
-         * AmazonEC2#describeImageAttribute does not work due to a bug
-         * https://forums.aws.amazon.com/message.jspa?messageID=231972
-         */
-        return getImage().getBlockDeviceMappings();
-    }
-
-    private Image getImage() {
-        DescribeImagesRequest request = new DescribeImagesRequest().withImageIds(ami);
-        for (final Image image : getParent().connect().describeImages(request).getImages()) {
-
-            if (ami.equals(image.getImageId())) {
-
-                return image;
-            }
-        }
-
-        throw new AmazonClientException("Unable to find AMI " + ami);
+        deviceMappings.addAll(getParent().getImageCache().get(ami).getEphemeralDeviceMappings());
     }
 
-
     private void setupCustomDeviceMapping(List<BlockDeviceMapping> deviceMappings) {
         if (StringUtils.isNotBlank(customDeviceMapping)) {
             deviceMappings.addAll(DeviceMappingParser.parse(customDeviceMapping));
@@ -919,7 +1091,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         try {
             LOGGER.info("Launching " + ami + " for template " + description);
 
-            KeyPair keyPair = getKeyPair(ec2);
+            KeyPair keyPair = getKeyPair();
 
             RequestSpotInstancesRequest spotRequest = new RequestSpotInstancesRequest();
 
@@ -933,18 +1105,26 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
             LaunchSpecification launchSpecification = new LaunchSpecification();
 
+            SpotPriceCache.Choice spotChoice = chooseSpotInstanceType();
+            if (spotChoice != null) {
+                logProvisionInfo("Cheapest spot instance type per vCPU is " + spotChoice);
+            }
+            String instanceType = spotChoice == null ? type.toString() : spotChoice.getInstanceType();
+
             launchSpecification.setImageId(ami);
-            launchSpecification.setInstanceType(type);
+            launchSpecification.setInstanceType(instanceType);
             launchSpecification.setEbsOptimized(ebsOptimized);
             launchSpecification.setMonitoringEnabled(monitoring);
 
             if (StringUtils.isNotBlank(getZone())) {
                 SpotPlacement placement = new SpotPlacement(getZone());
                 launchSpecification.setPlacement(placement);
+            } else if (spotChoice != null && canChooseZone()) {
+                launchSpecification.setPlacement(new SpotPlacement(spotChoice.getZone()));
             }
 
             InstanceNetworkInterfaceSpecification net = new InstanceNetworkInterfaceSpecification();
-            String subnetId = chooseSubnetId();
+            String subnetId = chooseSubnetId(spotChoice);
             if (StringUtils.isNotBlank(subnetId)) {
                 if (getAssociatePublicIp()) {
                     net.setSubnetId(subnetId);
@@ -984,7 +1164,6 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
             launchSpecification.setUserData(userDataString);
             launchSpecification.setKeyName(keyPair.getKeyName());
-            launchSpecification.setInstanceType(type.toString());
 
             if (getAssociatePublicIp()) {
                 net.setAssociatePublicIpAddress(true);
@@ -1019,32 +1198,12 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                 if (spotInstReq == null) {
                     throw new AmazonClientException("Spot instance request is null");
                 }
-                String slaveName = spotInstReq.getSpotInstanceRequestId();
-
-                if (spotConfig.fallbackToOndemand) {
-                    for (int i = 0; i < 2 && spotInstReq.getStatus().getCode().equals("pending-evaluation"); i++) {
-                        LOGGER.info("Spot request " + slaveName + " is still pending evaluation");
-                        Thread.sleep(5000);
-                        LOGGER.info("Fetching info about spot request " + slaveName);
-                        DescribeSpotInstanceRequestsRequest describeRequest = new DescribeSpotInstanceRequestsRequest().withSpotInstanceRequestIds(slaveName);
-                        spotInstReq = ec2.describeSpotInstanceRequests(describeRequest).getSpotInstanceRequests().get(0);
-                    }
-
-                    List<String> spotRequestBadCodes = Arrays.asList("capacity-not-available", "capacity-oversubscribed", "price-too-low");
-                    if (spotRequestBadCodes.contains(spotInstReq.getStatus().getCode())) {
-                        LOGGER.info("There is no spot capacity available matching your request, falling back to on-demand instance.");
-                        List<String> requestsToCancel = reqInstances.stream().map(SpotInstanceRequest::getSpotInstanceRequestId).collect(Collectors.toList());
-                        CancelSpotInstanceRequestsRequest cancelRequest = new CancelSpotInstanceRequestsRequest(requestsToCancel);
-                        ec2.cancelSpotInstanceRequests(cancelRequest);
-                        return provisionOndemand(number, provisionOptions);
-                    }
-                }
-
                 // Now that we have our Spot request, we can set tags on it
                 updateRemoteTags(ec2, instTags, "InvalidSpotInstanceRequestID.NotFound", spotInstReq.getSpotInstanceRequestId());
 
                 // That was a remote request - we should also update our local instance data
                 spotInstReq.setTags(instTags);
+                getParent().getSpotRequests().record(spotInstReq);
 
                 LOGGER.info("Spot instance id in provision: " + spotInstReq.getSpotInstanceRequestId());
 
@@ -1062,6 +1221,236 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         }
     }
 
+    /**
+     * Provisions with a single instant EC2 Fleet request, which launches whatever it can of the requested number
+     * across every instance type and subnet of the template. Spot fleets pick the pools with the most spare capacity.
+     */
+    private List<EC2AbstractSlave> provisionFleet(int number) throws IOException {
+        AmazonEC2 ec2 = getParent().connect();
+        boolean spot = spotConfig != null;
+
+        logProvisionInfo("Launching " + number + " instances with an EC2 Fleet");
+
+        HashSet<Tag> instTags = buildTags(spot ? EC2Cloud.EC2_SLAVE_TYPE_SPOT : EC2Cloud.EC2_SLAVE_TYPE_DEMAND);
+        List<String> subnets = rankSubnetIds();
+        if (!subnets.isEmpty()) {
+            currentSubnetId = subnets.get(0);
+        }
+        String launchTemplateId = getParent().getLaunchTemplates()
+                .getLaunchTemplateId(this, buildLaunchTemplateData(ec2, !subnets.isEmpty(), instTags));
+
+        // On-demand capacity is taken from the overrides in order: the preferred instance type, in the best subnet first
+        List<FleetLaunchTemplateOverridesRequest> overrides = new ArrayList<>();
+        for (String instanceType : getInstanceTypes()) {
+            if (subnets.isEmpty()) {
+                overrides.add(newFleetOverride(instanceType, overrides.size()).withAvailabilityZone(StringUtils.trimToNull(getZone())));
+            } else {
+                for (String subnet : subnets) {
+                    overrides.add(newFleetOverride(instanceType, overrides.size()).withSubnetId(subnet));
+                }
+            }
+        }
+
+        CreateFleetRequest fleetRequest = new CreateFleetRequest()
+                .withType("instant")
+                .withLaunchTemplateConfigs(new FleetLaunchTemplateConfigRequest()
+                        .withLaunchTemplateSpecification(new FleetLaunchTemplateSpecificationRequest()
+                                .withLaunchTemplateId(launchTemplateId)
+                                .withVersion("$Latest"))
+                        .withOverrides(overrides))
+                .withTargetCapacitySpecification(new TargetCapacitySpecificationRequest()
+                        .withTotalTargetCapacity(number)
+                        .withDefaultTargetCapacityType(spot ? "spot" : "on-demand"));
+        if (spot) {
+            fleetRequest.setSpotOptions(new SpotOptionsRequest().withAllocationStrategy("capacity-optimized"));
+        } else {
+            fleetRequest.setOnDemandOptions(new OnDemandOptionsRequest().withAllocationStrategy("prioritized"));
+        }
+
+        CreateFleetResult fleetResult = ec2.createFleet(fleetRequest);
+        String fleetId = fleetResult.getFleetId();
+        logProvisionInfo("EC2 Fleet " + fleetId + " requested");
+        for (CreateFleetError error : fleetResult.getErrors()) {
+            FleetLaunchTemplateOverrides override = error.getLaunchTemplateAndOverrides() == null ? null
+                    : error.getLaunchTemplateAndOverrides().getOverrides();
+            String pool = override == null ? "" : " for " + override.getInstanceType() + " in "
+                    + StringUtils.defaultString(override.getSubnetId(), override.getAvailabilityZone());
+            LOGGER.warning("EC2 Fleet " + fleetId + " failed to launch" + pool + ": " + error.getErrorCode() + " "
+                    + error.getErrorMessage());
+            if (override != null && override.getSubnetId() != null && SubnetSelector.isCapacityError(error.getErrorCode())) {
+                subnetSelector.failed(override.getSubnetId());
+            }
+        }
+
+        try {
+            List<Instance> instances = describeFleetInstances(ec2, fleetResult);
+            logProvisionInfo("EC2 Fleet " + fleetId + " launched " + instances.size() + " of " + number + " instances");
+            getParent().getInventory().recordLaunched(instances, instTags);
+            for (Instance instance : instances) {
+                if (instance.getSubnetId() != null) {
+                    subnetSelector.launched(instance.getSubnetId(), 1);
+                }
+            }
+            if (!spot) {
+                return toSlaves(instances);
+            }
+
+            List<EC2AbstractSlave> slaves = new ArrayList<>(instances.size());
+            List<String> spotRequestIds = new ArrayList<>(instances.size());
+            for (Instance instance : instances) {
+                if (instance.getSpotInstanceRequestId() == null) {
+                    // Not launched on the spot market after all
+                    slaves.add(newOndemandSlave(instance));
+                    continue;
+                }
+                SpotInstanceRequest spotInstReq = new SpotInstanceRequest()
+                        .withSpotInstanceRequestId(instance.getSpotInstanceRequestId())
+                        .withInstanceId(instance.getInstanceId())
+                        .withState(SpotInstanceState.Active)
+                        .withTags(instTags);
+                getParent().getSpotRequests().record(spotInstReq);
+                spotRequestIds.add(spotInstReq.getSpotInstanceRequestId());
+                slaves.add(newSpotSlave(spotInstReq));
+            }
+            if (!spotRequestIds.isEmpty()) {
+                updateRemoteTags(ec2, instTags, "InvalidSpotInstanceRequestID.NotFound", spotRequestIds.toArray(new String[0]));
+            }
+            return slaves;
+        } catch (FormException e) {
+            throw new AssertionError(); // we should have discovered all
+                                        // configuration issues upfront
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private FleetLaunchTemplateOverridesRequest newFleetOverride(String instanceType, int priority) {
+        FleetLaunchTemplateOverridesRequest override = new FleetLaunchTemplateOverridesRequest()
+                .withInstanceType(instanceType)
+                .withPriority((double) priority);
+        if (spotConfig != null && spotConfig.useBidPrice) {
+            override.setMaxPrice(getSpotMaxBidPrice());
+        }
+        return override;
+    }
+
+    /**
+     * Instant fleets launch synchronously, and return the ids of the instances they launched. Those are described in
+     * one call, which tells their spot request ids; should they not be visible yet, what the fleet returned is used.
+     */
+    private static List<Instance> describeFleetInstances(AmazonEC2 ec2, CreateFleetResult fleetResult) {
+        Map<String, Instance> instances = new LinkedHashMap<>();
+        for (CreateFleetInstance launched : fleetResult.getInstances()) {
+            FleetLaunchTemplateOverrides override = launched.getLaunchTemplateAndOverrides() == null ? null
+                    : launched.getLaunchTemplateAndOverrides().getOverrides();
+            for (String instanceId : launched.getInstanceIds()) {
+                Instance instance = new Instance()
+                        .withInstanceId(instanceId)
+                        .withInstanceType(launched.getInstanceType())
+                        .withState(new com.amazonaws.services.ec2.model.InstanceState().withName(InstanceStateName.Pending));
+                if (override != null) {
+                    instance.setSubnetId(override.getSubnetId());
+                    if (override.getAvailabilityZone() != null) {
+                        instance.setPlacement(new Placement(override.getAvailabilityZone()));
+                    }
+                }
+                instances.put(instanceId, instance);
+            }
+        }
+        if (instances.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withInstanceIds(instances.keySet());
+        try {
+            do {
+                DescribeInstancesResult result = ec2.describeInstances(request);
+                for (Reservation reservation : result.getReservations()) {
+                    for (Instance instance : reservation.getInstances()) {
+                        instances.put(instance.getInstanceId(), instance);
+                    }
+                }
+                request.setNextToken(result.getNextToken());
+            } while (request.getNextToken() != null);
+        } catch (AmazonServiceException e) {
+            LOGGER.log(Level.FINE, "Instances of EC2 Fleet " + fleetResult.getFleetId() + " are not visible yet", e);
+        }
+        return new ArrayList<>(instances.values());
+    }
+
+    /**
+     * What the instances of a fleet are launched with, apart from the instance type and the subnet.
+     */
+    private RequestLaunchTemplateData buildLaunchTemplateData(AmazonEC2 ec2, boolean inVpc, Set<Tag> instTags)
+            throws IOException {
+        RequestLaunchTemplateData data = new RequestLaunchTemplateData()
+                .withImageId(ami)
+                .withInstanceType(type.toString())
+                .withEbsOptimized(ebsOptimized)
+                .withMonitoring(new LaunchTemplatesMonitoringRequest().withEnabled(monitoring))
+                .withKeyName(getKeyPair().getKeyName())
+                .withUserData(Base64.encodeBase64String(userData.getBytes(StandardCharsets.UTF_8)))
+                .withInstanceInitiatedShutdownBehavior(ShutdownBehavior.Terminate)
+                .withTagSpecifications(
+                        new LaunchTemplateTagSpecificationRequest().withResourceType(ResourceType.Instance).withTags(instTags),
+                        new LaunchTemplateTagSpecificationRequest().withResourceType(ResourceType.Volume).withTags(instTags));
+
+        if (t2Unlimited) {
+            data.setCreditSpecification(new CreditSpecificationRequest().withCpuCredits("unlimited"));
+        }
+        if (getUseDedicatedTenancy()) {
+            data.setPlacement(new LaunchTemplatePlacementRequest().withTenancy("dedicated"));
+        }
+        if (StringUtils.isNotBlank(getIamInstanceProfile())) {
+            data.setIamInstanceProfile(new LaunchTemplateIamInstanceProfileSpecificationRequest().withArn(getIamInstanceProfile()));
+        }
+
+        List<BlockDeviceMapping> deviceMappings = new ArrayList<>();
+        setupBlockDeviceMappings(deviceMappings);
+        for (BlockDeviceMapping mapping : deviceMappings) {
+            data.withBlockDeviceMappings(toLaunchTemplateMapping(mapping));
+        }
+
+        if (inVpc) {
+            /*
+             * If we have a subnet ID then we can only use VPC security groups
+             */
+            List<String> groupIds = securityGroupSet.isEmpty() ? Collections.emptyList() : getEc2SecurityGroups(ec2);
+            if (getAssociatePublicIp()) {
+                data.withNetworkInterfaces(new LaunchTemplateInstanceNetworkInterfaceSpecificationRequest()
+                        .withDeviceIndex(0)
+                        .withAssociatePublicIpAddress(true)
+                        .withGroups(groupIds));
+            } else if (!groupIds.isEmpty()) {
+                data.setSecurityGroupIds(groupIds);
+            }
+        } else if (!securityGroupSet.isEmpty()) {
+            /* No subnet: we can use standard security groups by name */
+            data.setSecurityGroups(securityGroupSet);
+        }
+        return data;
+    }
+
+    private static LaunchTemplateBlockDeviceMappingRequest toLaunchTemplateMapping(BlockDeviceMapping mapping) {
+        LaunchTemplateBlockDeviceMappingRequest request = new LaunchTemplateBlockDeviceMappingRequest()
+                .withDeviceName(mapping.getDeviceName())
+                .withVirtualName(mapping.getVirtualName())
+                .withNoDevice(mapping.getNoDevice());
+        EbsBlockDevice ebs = mapping.getEbs();
+        if (ebs != null) {
+            request.setEbs(new LaunchTemplateEbsBlockDeviceRequest()
+                    .withDeleteOnTermination(ebs.getDeleteOnTermination())
+                    .withEncrypted(ebs.getEncrypted())
+                    .withIops(ebs.getIops())
+                    .withKmsKeyId(ebs.getKmsKeyId())
+                    .withSnapshotId(ebs.getSnapshotId())
+                    .withVolumeSize(ebs.getVolumeSize())
+                    .withVolumeType(ebs.getVolumeType()));
+        }
+        return request;
+    }
+
     private void setupBlockDeviceMappings(List<BlockDeviceMapping> blockDeviceMappings) {
         setupRootDevice(blockDeviceMappings);
         if (useEphemeralDevices) {
@@ -1113,8 +1502,8 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     /**
      * Get a KeyPair from the configured information for the slave template
      */
-    private KeyPair getKeyPair(AmazonEC2 ec2) throws IOException, AmazonClientException {
-        KeyPair keyPair = parent.getPrivateKey().find(ec2);
+    private KeyPair getKeyPair() throws IOException, AmazonClientException {
+        KeyPair keyPair = getParent().getKeyPair();
         if (keyPair == null) {
             throw new AmazonClientException("No matching keypair found on EC2. Is the EC2 private key a valid one?");
         }
@@ -1150,9 +1539,17 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     }
 
     /**
-     * Get a list of security group ids for the slave
+     * Resolves the security groups of the template to the ids of VPC groups usable in the current subnet. The result
+     * is reused for {@link #SECURITY_GROUP_CACHE_TTL}, per subnet. Saving the template creates a new one, which
+     * resolves them again.
      */
     private List<String> getEc2SecurityGroups(AmazonEC2 ec2) throws AmazonClientException {
+        String subnet = StringUtils.defaultString(getCurrentSubnetId());
+        ResolvedSecurityGroups resolved = securityGroupCache.get(subnet);
+        if (resolved != null && System.currentTimeMillis() - resolved.resolvedAt < SECURITY_GROUP_CACHE_TTL) {
+            return resolved.groupIds;
+        }
+
         List<String> groupIds = new ArrayList<>();
 
         DescribeSecurityGroupsResult groupResult = getSecurityGroupsBy("group-name", securityGroupSet, ec2);
@@ -1160,19 +1557,33 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             groupResult = getSecurityGroupsBy("group-id", securityGroupSet, ec2);
         }
 
+        Set<String> vpcIds = new HashSet<>();
         for (SecurityGroup group : groupResult.getSecurityGroups()) {
             if (group.getVpcId() != null && !group.getVpcId().isEmpty()) {
-                List<Filter> filters = new ArrayList<>();
-                filters.add(new Filter("vpc-id").withValues(group.getVpcId()));
-                filters.add(new Filter("state").withValues("available"));
-                filters.add(new Filter("subnet-id").withValues(getCurrentSubnetId()));
+                vpcIds.add(group.getVpcId());
+            }
+        }
 
-                DescribeSubnetsRequest subnetReq = new DescribeSubnetsRequest();
-                subnetReq.withFilters(filters);
-                DescribeSubnetsResult subnetResult = ec2.describeSubnets(subnetReq);
+        if (!vpcIds.isEmpty()) {
+            // One lookup of the subnet tells which of the VPCs it is available in
+            List<Filter> filters = new ArrayList<>();
+            filters.add(new Filter("vpc-id").withValues(vpcIds));
+            filters.add(new Filter("state").withValues("available"));
+            filters.add(new Filter("subnet-id").withValues(getCurrentSubnetId()));
 
-                List<Subnet> subnets = subnetResult.getSubnets();
-                if (subnets != null && !subnets.isEmpty()) {
+            DescribeSubnetsRequest subnetReq = new DescribeSubnetsRequest();
+            subnetReq.withFilters(filters);
+            DescribeSubnetsResult subnetResult = ec2.describeSubnets(subnetReq);
+
+            Set<String> subnetVpcIds = new HashSet<>();
+            List<Subnet> subnets = subnetResult.getSubnets();
+            if (subnets != null) {
+                for (Subnet s : subnets) {
+                    subnetVpcIds.add(s.getVpcId());
+                }
+            }
+            for (SecurityGroup group : groupResult.getSecurityGroups()) {
+                if (subnetVpcIds.contains(group.getVpcId())) {
                     groupIds.add(group.getGroupId());
                 }
             }
@@ -1182,9 +1593,20 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             throw new AmazonClientException("Security groups must all be VPC security groups to work in a VPC context");
         }
 
+        groupIds = Collections.unmodifiableList(groupIds);
+        securityGroupCache.put(subnet, new ResolvedSecurityGroups(groupIds));
         return groupIds;
     }
 
+    private static final class ResolvedSecurityGroups {
+        private final List<String> groupIds;
+        private final long resolvedAt = System.currentTimeMillis();
+
+        private ResolvedSecurityGroups(List<String> groupIds) {
+            this.groupIds = groupIds;
+        }
+    }
+
     private DescribeSecurityGroupsResult getSecurityGroupsBy(String filterName, Set<String> filterValues, AmazonEC2 ec2) {
         DescribeSecurityGroupsRequest groupReq = new DescribeSecurityGroupsRequest();
         groupReq.withFilters(new Filter(filterName).withValues(filterValues));
@@ -1219,6 +1641,8 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
         labelSet = Label.parse(labels);
         securityGroupSet = parseSecurityGroups();
+        securityGroupCache = new ConcurrentHashMap<>();
+        subnetSelector = new SubnetSelector();
 
         /**
          * In releases of this plugin prior to 1.18, template-specific instance caps could be configured but were not
@@ -1463,6 +1887,19 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             return EC2AbstractSlave.fillZoneItems(credentialsProvider, region);
         }
 
+        /*
+         * Validate the alternative instance types, which are separated by spaces, to ensure they look like instance
+         * types
+         */
+        public FormValidation doCheckAlternativeInstanceTypes(@QueryParameter String value) {
+            for (String instanceType : StringUtils.split(Util.fixNull(value))) {
+                if (!instanceType.matches("[a-z0-9-]+\\.[a-z0-9-]+")) {
+                    return FormValidation.error("Not an instance type: " + instanceType);
+                }
+            }
+            return FormValidation.ok();
+        }
+
         /*
          * Validate the Spot Max Bid Price to ensure that it is a floating point number >= .001
          */
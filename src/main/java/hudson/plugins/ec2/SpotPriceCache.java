@@ -0,0 +1,276 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSpotPriceHistoryRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotPriceHistoryResult;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.SpotPrice;
+import com.amazonaws.services.ec2.model.Subnet;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Latest spot prices in the region of one {@link EC2Cloud}, for the instance types its spot templates may launch.
+ *
+ * <p>
+ * Prices are keyed by instance type, availability zone and product description. They are fetched in the background
+ * by {@link SpotPriceUpdater}, so that provisioning can pick the cheapest instance type and availability zone without
+ * calling EC2. Prices older than {@link #MAX_AGE} are not used anymore. The availability zones of the subnets of spot
+ * templates are fetched along, as templates with subnets can only launch in those zones.
+ */
+final class SpotPriceCache {
+
+    private static final Logger LOGGER = Logger.getLogger(SpotPriceCache.class.getName());
+
+    /**
+     * How long (in milliseconds) fetched prices are used before they are considered out of date.
+     */
+    static final long MAX_AGE = Long.getLong("jenkins.ec2.spotPriceMaxAgeMs", TimeUnit.MINUTES.toMillis(30));
+
+    static final String LINUX = "Linux/UNIX";
+
+    static final String WINDOWS = "Windows";
+
+    private final EC2Cloud cloud;
+
+    private volatile Prices prices = new Prices(Collections.emptyMap(), Collections.emptyMap(), 0);
+
+    SpotPriceCache(@NonNull EC2Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Product description the spot prices of the template are published under.
+     */
+    static String getProductDescription(SlaveTemplate t) {
+        return t.isWindowsSlave() ? WINDOWS : LINUX;
+    }
+
+    /**
+     * Rough number of vCPUs of an instance type, from its size: a large has 2 vCPUs, an xlarge 4, a 2xlarge 8 and so
+     * on, smaller sizes 1. Burstable types are a bit off, which does not matter for comparing prices. {@code 0} for
+     * sizes that do not tell, like bare metal.
+     */
+    static int getVcpus(String instanceType) {
+        String size = StringUtils.substringAfter(instanceType, ".");
+        switch (size) {
+        case "nano":
+        case "micro":
+        case "small":
+        case "medium":
+            return 1;
+        case "large":
+            return 2;
+        case "xlarge":
+            return 4;
+        default:
+            if (size.endsWith("xlarge")) {
+                try {
+                    return 4 * Integer.parseInt(StringUtils.removeEnd(size, "xlarge"));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Fetches the current spot price of the instance types of every spot template of the cloud, and the availability
+     * zones of their subnets.
+     */
+    void refresh() throws AmazonClientException {
+        Set<String> types = new TreeSet<>();
+        Set<String> products = new TreeSet<>();
+        Set<String> subnets = new TreeSet<>();
+        for (SlaveTemplate t : cloud.getTemplates()) {
+            if (t.spotConfig != null) {
+                types.addAll(t.getInstanceTypes());
+                products.add(getProductDescription(t));
+                if (StringUtils.isNotBlank(t.getSubnetId())) {
+                    subnets.addAll(Arrays.asList(StringUtils.split(t.getSubnetId())));
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (types.isEmpty()) {
+            prices = new Prices(Collections.emptyMap(), Collections.emptyMap(), now);
+            return;
+        }
+
+        // Starting now, only the price in effect in each zone is returned
+        DescribeSpotPriceHistoryRequest request = new DescribeSpotPriceHistoryRequest()
+                .withStartTime(new Date(now))
+                .withInstanceTypes(types)
+                .withProductDescriptions(products);
+        Map<Key, Double> fetched = new HashMap<>();
+        AmazonEC2 ec2 = cloud.connect();
+        do {
+            DescribeSpotPriceHistoryResult result = ec2.describeSpotPriceHistory(request);
+            for (SpotPrice price : result.getSpotPriceHistory()) {
+                Key key = new Key(price.getInstanceType(), price.getAvailabilityZone(), price.getProductDescription());
+                try {
+                    // Most recent first
+                    fetched.putIfAbsent(key, Double.parseDouble(price.getSpotPrice()));
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.FINE, "Ignoring spot price " + price, e);
+                }
+            }
+            request.setNextToken(result.getNextToken());
+        } while (StringUtils.isNotEmpty(request.getNextToken()));
+
+        Map<String, String> subnetZones = new HashMap<>();
+        if (!subnets.isEmpty()) {
+            try {
+                for (Subnet subnet : ec2.describeSubnets(new DescribeSubnetsRequest().withSubnetIds(subnets)).getSubnets()) {
+                    subnetZones.put(subnet.getSubnetId(), subnet.getAvailabilityZone());
+                }
+            } catch (AmazonServiceException e) {
+                // A subnet that does not exist fails the whole lookup: its templates stick to their instance type
+                LOGGER.log(Level.WARNING, "Failed to look up the availability zones of the subnets " + subnets, e);
+            }
+        }
+
+        prices = new Prices(fetched, subnetZones, now);
+        LOGGER.log(Level.FINE, "Fetched {0} spot prices for {1}", new Object[]{fetched.size(), cloud.name});
+    }
+
+    /**
+     * Availability zone of the subnet of a spot template, {@code null} if it is not known.
+     */
+    @CheckForNull
+    String getZone(String subnetId) {
+        return prices.subnetZones.get(subnetId);
+    }
+
+    /**
+     * Returns the instance type and availability zone with the lowest price per vCPU among the given instance types,
+     * or {@code null} if none of them has a known price.
+     *
+     * @param zones the availability zones to choose in, {@code null} for any
+     * @param maxPrice the highest price to pay, as spot requests priced above their bid are never fulfilled
+     */
+    @CheckForNull
+    Choice getCheapest(Collection<String> instanceTypes, @CheckForNull Collection<String> zones,
+            String productDescription, double maxPrice) {
+        Prices p = prices;
+        if (!p.isFresh()) {
+            return null;
+        }
+        Choice cheapest = null;
+        for (Map.Entry<Key, Double> e : p.byKey.entrySet()) {
+            Key key = e.getKey();
+            if (!instanceTypes.contains(key.instanceType) || !productDescription.equals(key.productDescription)
+                    || (zones != null && !zones.contains(key.zone)) || e.getValue() > maxPrice) {
+                continue;
+            }
+            Choice choice = new Choice(key.instanceType, key.zone, e.getValue());
+            if (cheapest == null || choice.getPricePerVcpu() < cheapest.getPricePerVcpu()) {
+                cheapest = choice;
+            }
+        }
+        return cheapest;
+    }
+
+    /**
+     * An instance type in an availability zone, with its spot price.
+     */
+    static final class Choice {
+        private final String instanceType;
+        private final String zone;
+        private final double price;
+
+        Choice(String instanceType, String zone, double price) {
+            this.instanceType = instanceType;
+            this.zone = zone;
+            this.price = price;
+        }
+
+        String getInstanceType() {
+            return instanceType;
+        }
+
+        String getZone() {
+            return zone;
+        }
+
+        double getPrice() {
+            return price;
+        }
+
+        /**
+         * The price divided by the vCPUs. Instance types whose vCPUs are not known come last.
+         */
+        double getPricePerVcpu() {
+            int vcpus = getVcpus(instanceType);
+            return vcpus == 0 ? Double.MAX_VALUE : price / vcpus;
+        }
+
+        @Override
+        public String toString() {
+            return instanceType + " in " + zone + " at " + price;
+        }
+    }
+
+    private static final class Prices {
+        private final Map<Key, Double> byKey;
+        private final Map<String, String> subnetZones;
+        private final long fetchedAt;
+
+        private Prices(Map<Key, Double> byKey, Map<String, String> subnetZones, long fetchedAt) {
+            this.byKey = byKey;
+            this.subnetZones = subnetZones;
+            this.fetchedAt = fetchedAt;
+        }
+
+        private boolean isFresh() {
+            return System.currentTimeMillis() - fetchedAt < MAX_AGE;
+        }
+    }
+
+    private static final class Key {
+        private final String instanceType;
+        private final String zone;
+        private final String productDescription;
+
+        private Key(String instanceType, String zone, String productDescription) {
+            this.instanceType = instanceType;
+            this.zone = zone;
+            this.productDescription = productDescription;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(instanceType, other.instanceType) && Objects.equals(zone, other.zone)
+                    && Objects.equals(productDescription, other.productDescription);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(instanceType, zone, productDescription);
+        }
+    }
+}
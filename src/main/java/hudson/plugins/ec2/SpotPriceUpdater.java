@@ -0,0 +1,61 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Refreshes the {@link SpotPriceCache} of every cloud with spot templates.
+ */
+@Extension
+public class SpotPriceUpdater extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(SpotPriceUpdater.class.getName());
+
+    private final Long recurrencePeriod;
+
+    public SpotPriceUpdater() {
+        super("EC2 spot price updater");
+        recurrencePeriod = Long.getLong("jenkins.ec2.spotPriceRefreshPeriod", TimeUnit.MINUTES.toMillis(5));
+        LOGGER.log(Level.FINE, "EC2 spot price refresh period is {0}ms", recurrencePeriod);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return recurrencePeriod;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (Cloud c : Jenkins.get().clouds) {
+            if (!(c instanceof EC2Cloud)) {
+                continue;
+            }
+            EC2Cloud cloud = (EC2Cloud) c;
+            if (!hasSpotTemplates(cloud)) {
+                continue;
+            }
+            try (ApiCallStats.Scope scope = ApiCallStats.enter(ApiCallStats.Subsystem.MONITOR)) {
+                cloud.getSpotPrices().refresh();
+            } catch (AmazonClientException e) {
+                LOGGER.log(Level.WARNING, "Failed to fetch the spot prices of " + cloud.name, e);
+            }
+        }
+    }
+
+    private static boolean hasSpotTemplates(EC2Cloud cloud) {
+        for (SlaveTemplate t : cloud.getTemplates()) {
+            if (t.spotConfig != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
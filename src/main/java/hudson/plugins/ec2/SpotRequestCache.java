@@ -0,0 +1,125 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of the spot requests of one {@link EC2Cloud}.
+ *
+ * <p>
+ * Spot agents look up their request for their instance id, their state, their type and their readiness, and the
+ * computer list and the launchers do that over and over. Instead of one DescribeSpotInstanceRequests per lookup, the
+ * cache refreshes every request asked for recently in one batched call, at most once per {@link #TTL}.
+ */
+final class SpotRequestCache {
+
+    /**
+     * How old (in milliseconds) a cached request may get before it is fetched again.
+     */
+    static final long TTL = Long.getLong("jenkins.ec2.spotRequestCacheTtlMs", TimeUnit.SECONDS.toMillis(10));
+
+    /**
+     * Requests nobody asked for during that long are no longer refreshed.
+     */
+    private static final long FORGET_AFTER = TimeUnit.MINUTES.toMillis(10);
+
+    private final EC2Cloud cloud;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final Object refreshLock = new Object();
+
+    SpotRequestCache(@NonNull EC2Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Returns the given request as fetched at most {@link #TTL} ago.
+     *
+     * @return {@code null} if EC2 does not know the request.
+     */
+    @CheckForNull
+    SpotInstanceRequest get(@NonNull String spotInstanceRequestId) throws AmazonClientException {
+        Entry entry = entries.computeIfAbsent(spotInstanceRequestId, id -> new Entry());
+        entry.lastAccess = System.currentTimeMillis();
+        if (!entry.isFresh()) {
+            synchronized (refreshLock) {
+                // Another caller may have refreshed it meanwhile
+                if (!entry.isFresh()) {
+                    refresh(entry, spotInstanceRequestId);
+                }
+            }
+        }
+        return entry.request;
+    }
+
+    /**
+     * Stores requests EC2 just returned, typically from RequestSpotInstances.
+     */
+    void record(@NonNull SpotInstanceRequest request) {
+        Entry entry = entries.computeIfAbsent(request.getSpotInstanceRequestId(), id -> new Entry());
+        entry.lastAccess = System.currentTimeMillis();
+        entry.set(request, entry.lastAccess);
+    }
+
+    /**
+     * Forces the next lookup of the given requests to go to EC2, typically because Jenkins just changed their state.
+     */
+    void invalidate(Iterable<String> spotInstanceRequestIds) {
+        for (String id : spotInstanceRequestIds) {
+            Entry entry = entries.get(id);
+            if (entry != null) {
+                entry.fetchedAt = 0;
+            }
+        }
+    }
+
+    private void refresh(Entry asked, String askedId) throws AmazonClientException {
+        long now = System.currentTimeMillis();
+        List<String> ids = new ArrayList<>();
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getValue() != asked && now - e.getValue().lastAccess >= FORGET_AFTER) {
+                it.remove();
+            } else {
+                ids.add(e.getKey());
+            }
+        }
+        if (!ids.contains(askedId)) {
+            ids.add(askedId);
+        }
+
+        Map<String, SpotInstanceRequest> found = CloudHelper.getSpotInstanceRequests(ids, cloud);
+        asked.set(found.get(askedId), now);
+        for (String id : ids) {
+            Entry entry = entries.get(id);
+            if (entry != null) {
+                entry.set(found.get(id), now);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private volatile SpotInstanceRequest request;
+        private volatile long fetchedAt;
+        private volatile long lastAccess;
+
+        private boolean isFresh() {
+            return fetchedAt != 0 && System.currentTimeMillis() - fetchedAt < TTL;
+        }
+
+        private void set(SpotInstanceRequest request, long fetchedAt) {
+            this.request = request;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
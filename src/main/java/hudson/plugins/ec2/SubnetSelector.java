@@ -0,0 +1,141 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonServiceException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the subnet a template launches into next.
+ *
+ * <p>
+ * Subnets are tried round-robin, except that subnets which recently ran out of capacity for the instance type or of
+ * free addresses go last, and so do subnets that just got instances launched into them. Both are remembered as counts
+ * that halve every {@link #FAILURE_HALF_LIFE} and {@link #LAUNCH_HALF_LIFE}, so a subnet is tried again once it had
+ * time to recover.
+ */
+final class SubnetSelector {
+
+    /**
+     * How long (in milliseconds) it takes for the penalty of a failed launch to halve.
+     */
+    static final long FAILURE_HALF_LIFE = Long.getLong("jenkins.ec2.subnetFailureHalfLifeMs", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * How long (in milliseconds) it takes for the weight of a launch to halve, roughly the time an instance needs to
+     * boot.
+     */
+    static final long LAUNCH_HALF_LIFE = Long.getLong("jenkins.ec2.subnetLaunchHalfLifeMs", TimeUnit.MINUTES.toMillis(1));
+
+    /**
+     * Decayed counts below that are forgotten.
+     */
+    private static final double NEGLIGIBLE = 0.05;
+
+    private final Map<String, SubnetState> subnets = new ConcurrentHashMap<>();
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Whether the error means the subnet, or its availability zone, cannot take the instances right now, so that
+     * another subnet may.
+     */
+    static boolean isCapacityError(AmazonServiceException e) {
+        return isCapacityError(e.getErrorCode());
+    }
+
+    /**
+     * Same as {@link #isCapacityError(AmazonServiceException)}, for errors reported by code, like those of EC2 Fleet.
+     */
+    static boolean isCapacityError(String errorCode) {
+        return "InsufficientInstanceCapacity".equals(errorCode)
+                || "InsufficientFreeAddressesInSubnet".equals(errorCode);
+    }
+
+    /**
+     * Orders the given subnets, best first.
+     */
+    List<String> rank(List<String> subnetIds) {
+        int size = subnetIds.size();
+        if (size < 2) {
+            return subnetIds;
+        }
+        long now = System.currentTimeMillis();
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        List<Ranked> ranked = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String subnetId = subnetIds.get((start + i) % size);
+            SubnetState state = subnets.get(subnetId);
+            ranked.add(state == null ? new Ranked(subnetId, 0, 0) : state.rank(subnetId, now));
+        }
+        ranked.sort(Comparator.<Ranked>comparingDouble(r -> r.failures).thenComparingDouble(r -> r.launches));
+        List<String> result = new ArrayList<>(size);
+        for (Ranked r : ranked) {
+            result.add(r.subnetId);
+        }
+        return result;
+    }
+
+    /**
+     * Records instances launched into the subnet.
+     */
+    void launched(String subnetId, int count) {
+        getState(subnetId).add(count, 0, System.currentTimeMillis());
+    }
+
+    /**
+     * Records a launch into the subnet that failed for lack of capacity.
+     */
+    void failed(String subnetId) {
+        getState(subnetId).add(0, 1, System.currentTimeMillis());
+    }
+
+    private SubnetState getState(String subnetId) {
+        return subnets.computeIfAbsent(subnetId, id -> new SubnetState());
+    }
+
+    private static double decay(double value, long age, long halfLife) {
+        return value * Math.pow(0.5, (double) age / halfLife);
+    }
+
+    private static double forgetNegligible(double value) {
+        return value < NEGLIGIBLE ? 0 : value;
+    }
+
+    private static final class SubnetState {
+        private double launches;
+        private double failures;
+        private long updatedAt;
+
+        private synchronized void add(int launches, int failures, long now) {
+            long age = Math.max(0, now - updatedAt);
+            this.launches = decay(this.launches, age, LAUNCH_HALF_LIFE) + launches;
+            this.failures = decay(this.failures, age, FAILURE_HALF_LIFE) + failures;
+            this.updatedAt = now;
+        }
+
+        private synchronized Ranked rank(String subnetId, long now) {
+            long age = Math.max(0, now - updatedAt);
+            return new Ranked(subnetId,
+                    forgetNegligible(decay(failures, age, FAILURE_HALF_LIFE)),
+                    forgetNegligible(decay(launches, age, LAUNCH_HALF_LIFE)));
+        }
+    }
+
+    private static final class Ranked {
+        private final String subnetId;
+        private final double failures;
+        private final double launches;
+
+        private Ranked(String subnetId, double failures, double launches) {
+            this.subnetId = subnetId;
+            this.failures = failures;
+            this.launches = launches;
+        }
+    }
+}
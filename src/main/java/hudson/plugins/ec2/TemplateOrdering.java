@@ -0,0 +1,59 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Order in which a provisioning round tries the templates matching a label. Demand a template cannot serve, because
+ * it reached its instance cap or EC2 has no capacity for it, spills over to the next template.
+ */
+public enum TemplateOrdering {
+    PRIORITY("Configuration order"),
+    REMAINING_CAPACITY("Most remaining capacity first"),
+    CHEAPEST("Cheapest first");
+
+    private final String name;
+
+    TemplateOrdering(String name) {
+        this.name = name;
+    }
+
+    public String toString() {
+        return this.name;
+    }
+
+    /**
+     * Sorts the templates of the cloud. Templates that compare equal keep their configuration order.
+     */
+    List<SlaveTemplate> sort(List<SlaveTemplate> templates, EC2Cloud cloud) {
+        if (this == PRIORITY || templates.size() < 2) {
+            return templates;
+        }
+        List<SlaveTemplate> sorted = new ArrayList<>(templates);
+        if (this == REMAINING_CAPACITY) {
+            CapacityLedger ledger = cloud.getCapacityLedger();
+            sorted.sort(Comparator.comparingLong(t -> -((long) t.getInstanceCap() - ledger.getCount(t))));
+        } else {
+            sorted.sort(Comparator.comparingDouble(TemplateOrdering::getPrice));
+        }
+        return sorted;
+    }
+
+    /**
+     * What an instance of the template costs. Spot templates cost the latest spot price of the instance type they would
+     * launch, or when it is not known yet at most their bid, or the on-demand price without a bid. On-demand templates
+     * come last.
+     */
+    private static double getPrice(SlaveTemplate t) {
+        if (t.spotConfig == null) {
+            return Double.MAX_VALUE;
+        }
+        SpotPriceCache.Choice choice = t.chooseSpotInstanceType();
+        if (choice != null) {
+            return choice.getPrice();
+        }
+        String bid = t.spotConfig.useBidPrice ? SpotConfiguration.normalizeBid(t.spotConfig.spotMaxBidPrice) : null;
+        return bid == null ? Double.MAX_VALUE / 2 : Double.parseDouble(bid);
+    }
+}
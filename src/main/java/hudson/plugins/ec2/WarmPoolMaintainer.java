@@ -0,0 +1,188 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Tag;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps {@link SlaveTemplate#getWarmPoolSize()} stopped instances ready for each template that asks for a warm pool.
+ *
+ * <p>
+ * Missing instances are launched in the background and added to Jenkins like any other agent, so that they run
+ * their init script and get the agent installed. They do not accept tasks meanwhile, and as soon as they are online
+ * they are stopped. Provisioning then finds them as stopped instances, and only has to start them again.
+ */
+@Extension
+public class WarmPoolMaintainer extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(WarmPoolMaintainer.class.getName());
+
+    /**
+     * How long a warming node may take to come online before it no longer counts as part of the pool.
+     */
+    private static final long WARMING_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * Names of the warming nodes that are being stopped.
+     */
+    private static final Set<String> STOPPING = ConcurrentHashMap.newKeySet();
+
+    private final Long recurrencePeriod;
+
+    public WarmPoolMaintainer() {
+        super("EC2 warm pool maintainer");
+        recurrencePeriod = Long.getLong("jenkins.ec2.warmPoolCheckPeriod", TimeUnit.MINUTES.toMillis(1));
+        LOGGER.log(Level.FINE, "EC2 warm pool check period is {0}ms", recurrencePeriod);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return recurrencePeriod;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Jenkins jenkins = Jenkins.get();
+        if (jenkins.isQuietingDown() || jenkins.isTerminating()) {
+            return;
+        }
+        pruneWarming();
+        for (Cloud c : jenkins.clouds) {
+            if (!(c instanceof EC2Cloud)) {
+                continue;
+            }
+            EC2Cloud cloud = (EC2Cloud) c;
+            for (SlaveTemplate t : cloud.getTemplates()) {
+                if (!t.isWarmPoolEnabled()) {
+                    continue;
+                }
+                try (ApiCallStats.Scope scope = ApiCallStats.enter(ApiCallStats.Subsystem.PROVISIONING)) {
+                    refill(cloud, t);
+                } catch (AmazonClientException e) {
+                    LOGGER.log(Level.WARNING, t + ". Failed to refill the warm pool", e);
+                }
+            }
+        }
+    }
+
+    private void refill(EC2Cloud cloud, SlaveTemplate t) throws IOException {
+        int missing = t.getWarmPoolSize() - countStopped(t, cloud.getInventory().get()) - countWarming(cloud, t);
+        if (missing <= 0) {
+            return;
+        }
+        LOGGER.log(Level.INFO, "{0}. Launching {1} instances for the warm pool", new Object[]{t, missing});
+        List<EC2AbstractSlave> slaves = cloud.launchWarm(t, missing);
+        if (slaves == null) {
+            return;
+        }
+        for (EC2AbstractSlave slave : slaves) {
+            slave.setWarming(true);
+            Jenkins.get().addNode(slave);
+        }
+    }
+
+    /**
+     * Number of stopped instances of the template, which provisioning can start right away.
+     */
+    static int countStopped(SlaveTemplate t, InstanceInventory.Snapshot snapshot) {
+        String slaveType = EC2Cloud.getSlaveTypeTagValue(EC2Cloud.EC2_SLAVE_TYPE_DEMAND, t.description);
+        int count = 0;
+        for (Instance instance : snapshot.getInstances()) {
+            String state = instance.getState().getName();
+            if (!state.equals(InstanceStateName.Stopped.toString()) && !state.equals(InstanceStateName.Stopping.toString())) {
+                continue;
+            }
+            if (!t.getAmi().equals(instance.getImageId())) {
+                continue;
+            }
+            for (Tag tag : instance.getTags()) {
+                if (EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE.equals(tag.getKey()) && slaveType.equals(tag.getValue())) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int countWarming(EC2Cloud cloud, SlaveTemplate t) {
+        int count = 0;
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof EC2AbstractSlave) {
+                EC2AbstractSlave slave = (EC2AbstractSlave) node;
+                if (slave.isWarming() && cloud.name.equals(slave.cloudName)
+                        && Objects.equals(slave.templateDescription, t.description)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gives up on the warming nodes that never came online.
+     */
+    private static void pruneWarming() {
+        long now = System.currentTimeMillis();
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof EC2AbstractSlave) {
+                EC2AbstractSlave slave = (EC2AbstractSlave) node;
+                if (slave.isWarming() && now - slave.getWarmingSince() >= WARMING_TIMEOUT) {
+                    LOGGER.log(Level.INFO, "Warm pool node {0} did not come online in time", slave.getNodeName());
+                    stopWarming(slave);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the node is not warming anymore.
+     */
+    private static void stopWarming(EC2AbstractSlave node) {
+        node.setWarming(false);
+        try {
+            Jenkins.get().updateNode(node);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save warm pool node " + node.getNodeName(), e);
+        }
+    }
+
+    /**
+     * Stops a warm pool node once it is fully initialized and online.
+     */
+    static void onOnline(EC2Computer computer) {
+        final EC2AbstractSlave node = computer.getNode();
+        if (node == null) {
+            return;
+        }
+        if (!node.isWarming() || !STOPPING.add(node.getNodeName())) {
+            return;
+        }
+        LOGGER.log(Level.INFO, "Warm pool node {0} is initialized, stopping it", node.getNodeName());
+        // Still warming, so not accepting tasks, until it is stopped
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                node.stop();
+                stopWarming(node);
+            } finally {
+                STOPPING.remove(node.getNodeName());
+            }
+        });
+    }
+}
@@ -0,0 +1,42 @@
+package hudson.plugins.ec2.ssh;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter between the attempts of a launch: the delay doubles with each attempt up to a
+ * maximum, and a random part of up to half of it keeps agents launched together from retrying in lockstep.
+ */
+final class Backoff {
+
+    private final long min;
+
+    private final long max;
+
+    private long next;
+
+    /**
+     * @param min delay (in milliseconds) before the second attempt
+     * @param max longest delay (in milliseconds)
+     */
+    Backoff(long min, long max) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.next = this.min;
+    }
+
+    /**
+     * Delay (in milliseconds) to wait before the next attempt.
+     */
+    long next() {
+        long delay = next;
+        next = Math.min(max, next * 2);
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Starts over with the shortest delay, once the launch made progress.
+     */
+    void reset() {
+        next = min;
+    }
+}
@@ -0,0 +1,165 @@
+package hudson.plugins.ec2.ssh;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import hudson.plugins.ec2.RemotingJar;
+
+/**
+ * Shell script that prepares a Unix agent for launch in a single SSH session: it creates the temporary directory,
+ * runs the init script once, makes sure Java is installed and checks whether the copy of {@code remoting.jar} on the
+ * agent is current, see {@link RemotingJar}.
+ *
+ * <p>
+ * The script travels in the command of the session itself, as a here-document, so that writing and running it take a
+ * single round trip. It reports its outcome with its exit status, see {@link Status}.
+ */
+final class BootstrapScript {
+
+    /**
+     * Name of the script in the temporary directory of the agent.
+     */
+    static final String NAME = "ec2-bootstrap.sh";
+
+    /**
+     * Longest command (in UTF-8 bytes) sent to run the script. Linux refuses a single argument of 128 KiB or more,
+     * terminator included, so the default leaves room for the shell's own arguments. Agents with larger init scripts
+     * are prepared with separate commands instead.
+     */
+    static final int MAX_COMMAND_LENGTH = Integer.getInteger("jenkins.ec2.bootstrapScriptMaxLength", 100 * 1024);
+
+    /**
+     * Outcome of the script.
+     */
+    enum Status {
+        /** The agent is ready, and its {@code remoting.jar} is current. */
+        READY(0, true),
+        /** The agent is ready, but its {@code remoting.jar} is missing or outdated. */
+        COPY_JAR(64, true),
+        INIT_SCRIPT_FAILED(65, false),
+        INIT_MARKER_FAILED(66, false),
+        JAVA_MISSING(67, false),
+        SCP_MISSING(68, false),
+        /** Any other exit status, e.g. the shell could not run the script. */
+        FAILED(-1, false);
+
+        private final int exitCode;
+        private final boolean successful;
+
+        Status(int exitCode, boolean successful) {
+            this.exitCode = exitCode;
+            this.successful = successful;
+        }
+
+        int getExitCode() {
+            return exitCode;
+        }
+
+        boolean isSuccessful() {
+            return successful;
+        }
+
+        static Status of(int exitCode) {
+            for (Status s : values()) {
+                if (s != FAILED && s.exitCode == exitCode) {
+                    return s;
+                }
+            }
+            return FAILED;
+        }
+    }
+
+    private final String tmpDir;
+
+    private final String initScript;
+
+    private final String rootCommandPrefix;
+
+    private final String jarDigest;
+
+    /**
+     * @param tmpDir            temporary directory of the agent, as written in the template
+     * @param initScript        init script of the template, {@code null} if there is none
+     * @param rootCommandPrefix prefix of the commands that need root, such as {@code sudo}, empty if none is needed
+     * @param jarDigest         SHA-256 digest (in hex) of the {@code remoting.jar} of this controller
+     */
+    BootstrapScript(String tmpDir, @CheckForNull String initScript, String rootCommandPrefix, String jarDigest) {
+        this.tmpDir = tmpDir;
+        this.initScript = Util.fixEmptyAndTrim(initScript) == null ? null : initScript;
+        this.rootCommandPrefix = rootCommandPrefix.trim().isEmpty() ? "" : rootCommandPrefix.trim() + " ";
+        this.jarDigest = jarDigest;
+    }
+
+    String getScript() {
+        StringBuilder s = new StringBuilder();
+        s.append("#!/bin/sh\n");
+        s.append("# Generated by the EC2 plugin, see BootstrapScript.Status for the exit codes\n");
+        s.append("tmp_dir=").append(tmpDir).append('\n');
+        if (initScript != null) {
+            String eof = delimiter("EC2_INIT_EOF", initScript);
+            s.append("if [ ! -e ~/.hudson-run-init ]; then\n");
+            s.append("  echo 'Executing init script'\n");
+            s.append("  cat > \"$tmp_dir/init.sh\" <<'").append(eof).append("'\n");
+            s.append(withTrailingNewline(initScript));
+            s.append(eof).append('\n');
+            s.append("  chmod 700 \"$tmp_dir/init.sh\" || exit ").append(Status.INIT_SCRIPT_FAILED.exitCode).append('\n');
+            s.append("  ").append(rootCommandPrefix).append("\"$tmp_dir/init.sh\" < /dev/null")
+                    .append(" || { echo \"init script failed: exit code=$?\"; exit ")
+                    .append(Status.INIT_SCRIPT_FAILED.exitCode).append("; }\n");
+            s.append("  echo 'Creating ~/.hudson-run-init'\n");
+            s.append("  ").append(rootCommandPrefix).append("touch ~/.hudson-run-init || exit ")
+                    .append(Status.INIT_MARKER_FAILED.exitCode).append('\n');
+            s.append("fi\n");
+        }
+        s.append("if ! java -fullversion; then\n");
+        s.append("  echo 'Installing: sudo yum install -y java-1.8.0-openjdk.x86_64'\n");
+        s.append("  sudo yum install -y java-1.8.0-openjdk.x86_64 || exit ").append(Status.JAVA_MISSING.exitCode).append('\n');
+        s.append("fi\n");
+        s.append("if [ -f \"$tmp_dir/").append(RemotingJar.NAME).append("\" ] && [ \"$(cat \"$tmp_dir/")
+                .append(RemotingJar.DIGEST_FILE).append("\" 2> /dev/null)\" = '").append(jarDigest).append("' ]; then\n");
+        s.append("  echo 'remoting.jar is up to date'\n");
+        s.append("  exit ").append(Status.READY.exitCode).append('\n');
+        s.append("fi\n");
+        s.append("if ! command -v scp > /dev/null 2>&1; then\n");
+        s.append("  echo 'Installing: sudo yum install -y openssh-clients'\n");
+        s.append("  sudo yum install -y openssh-clients || exit ").append(Status.SCP_MISSING.exitCode).append('\n');
+        s.append("fi\n");
+        s.append("exit ").append(Status.COPY_JAR.exitCode).append('\n');
+        return s.toString();
+    }
+
+    /**
+     * Command that writes the script to the temporary directory of the agent and runs it.
+     */
+    String getCommand() {
+        String script = getScript();
+        String eof = delimiter("EC2_BOOTSTRAP_EOF", script);
+        return "mkdir -p " + tmpDir + " && cat > " + tmpDir + "/" + NAME + " <<'" + eof + "'\n"
+                + script
+                + eof + "\n"
+                + "sh " + tmpDir + "/" + NAME + "\n";
+    }
+
+    /**
+     * Here-document delimiter that does not appear as a line of the given text.
+     */
+    static String delimiter(String base, String text) {
+        String eof = base;
+        for (int i = 1; containsLine(text, eof); i++) {
+            eof = base + "_" + i;
+        }
+        return eof;
+    }
+
+    private static boolean containsLine(String text, String line) {
+        for (String l : text.split("\r?\n", -1)) {
+            if (l.equals(line)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String withTrailingNewline(String text) {
+        return text.endsWith("\n") ? text : text + "\n";
+    }
+}
@@ -34,6 +34,7 @@ import hudson.remoting.Channel.Listener;
 import hudson.slaves.CommandLauncher;
 import hudson.slaves.ComputerLauncher;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -45,10 +46,9 @@ import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import jenkins.model.Jenkins;
 
-import org.apache.commons.io.IOUtils;
-
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.KeyPair;
@@ -68,20 +68,30 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
     private static final Logger LOGGER = Logger.getLogger(EC2UnixLauncher.class.getName());
 
     private static final String BOOTSTRAP_AUTH_SLEEP_MS = "jenkins.ec2.bootstrapAuthSleepMs";
+    private static final String BOOTSTRAP_AUTH_MIN_SLEEP_MS = "jenkins.ec2.bootstrapAuthMinSleepMs";
     private static final String BOOTSTRAP_AUTH_TRIES= "jenkins.ec2.bootstrapAuthTries";
     private static final String READINESS_SLEEP_MS = "jenkins.ec2.readinessSleepMs";
     private static final String READINESS_TRIES= "jenkins.ec2.readinessTries";
 
+    // Authentication retries wait from the minimum, doubling up to bootstrapAuthSleepMs. They go on for as long as
+    // bootstrapAuthTries waits of bootstrapAuthSleepMs would take, more often at first
+    private static int bootstrapAuthMinSleepMs = 1000;
     private static int bootstrapAuthSleepMs = 30000;
     private static int bootstrapAuthTries = 30;
 
     private static int readinessSleepMs = 1000;
     private static int readinessTries = 120;
 
+    private static final long sshRetryMinDelayMs = Long.getLong("jenkins.ec2.sshRetryMinDelayMs", 500);
+    private static final long sshRetryMaxDelayMs = Long.getLong("jenkins.ec2.sshRetryMaxDelayMs", 10000);
+
     static  {
         String prop = System.getProperty(BOOTSTRAP_AUTH_SLEEP_MS);
         if (prop != null)
             bootstrapAuthSleepMs = Integer.parseInt(prop);
+        prop = System.getProperty(BOOTSTRAP_AUTH_MIN_SLEEP_MS);
+        if (prop != null)
+            bootstrapAuthMinSleepMs = Integer.parseInt(prop);
         prop = System.getProperty(BOOTSTRAP_AUTH_TRIES);
         if (prop != null)
             bootstrapAuthTries = Integer.parseInt(prop);
@@ -158,17 +168,9 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         logInfo(computer, listener, "Launching instance: " + node.getInstanceId());
 
         try {
-            boolean isBootstrapped = bootstrap(computer, listener);
-            if (isBootstrapped) {
-                // connect fresh as ROOT
-                logInfo(computer, listener, "connect fresh as root");
-                cleanupConn = connectToSsh(computer, listener);
-                KeyPair key = computer.getCloud().getKeyPair();
-                if (!cleanupConn.authenticateWithPublicKey(computer.getRemoteAdmin(), key.getKeyMaterial().toCharArray(), "")) {
-                    logWarning(computer, listener, "Authentication failed");
-                    return; // failed to connect as root.
-                }
-            } else {
+            // The connection bootstrap authenticated is the one the agent is launched with
+            cleanupConn = bootstrap(computer, listener);
+            if (cleanupConn == null) {
                 logWarning(computer, listener, "bootstrapresult failed");
                 return; // bootstrap closed for us.
             }
@@ -177,59 +179,32 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
             SCPClient scp = conn.createSCPClient();
             String initScript = node.initScript;
             String tmpDir = (Util.fixEmptyAndTrim(node.tmpDir) != null ? node.tmpDir : "/tmp");
+            SlaveTemplate slaveTemplate = computer.getSlaveTemplate();
 
-            logInfo(computer, listener, "Creating tmp directory (" + tmpDir + ") if it does not exist");
-            conn.exec("mkdir -p " + tmpDir, logger);
-
-            if (initScript != null && initScript.trim().length() > 0
-                    && conn.exec("test -e ~/.hudson-run-init", logger) != 0) {
-                logInfo(computer, listener, "Executing init script");
-                scp.put(initScript.getBytes("UTF-8"), "init.sh", tmpDir, "0700");
-                Session sess = conn.openSession();
-                sess.requestDumbPTY(); // so that the remote side bundles stdout
-                                       // and stderr
-                sess.execCommand(buildUpCommand(computer, tmpDir + "/init.sh"));
-
-                sess.getStdin().close(); // nothing to write here
-                sess.getStderr().close(); // we are not supposed to get anything
-                                          // from stderr
-                IOUtils.copy(sess.getStdout(), logger);
-
-                int exitStatus = waitCompletion(sess);
-                if (exitStatus != 0) {
-                    logWarning(computer, listener, "init script failed: exit code=" + exitStatus);
-                    return;
-                }
-                sess.close();
-
-                logInfo(computer, listener, "Creating ~/.hudson-run-init");
-
-                // Needs a tty to run sudo.
-                sess = conn.openSession();
-                sess.requestDumbPTY(); // so that the remote side bundles stdout
-                                       // and stderr
-                sess.execCommand(buildUpCommand(computer, "touch ~/.hudson-run-init"));
-
-                sess.getStdin().close(); // nothing to write here
-                sess.getStderr().close(); // we are not supposed to get anything
-                                          // from stderr
-                IOUtils.copy(sess.getStdout(), logger);
-
-                exitStatus = waitCompletion(sess);
-                if (exitStatus != 0) {
-                    logWarning(computer, listener, "init script failed: exit code=" + exitStatus);
-                    return;
+            BootstrapScript.Status status = null;
+            if (slaveTemplate != null && slaveTemplate.isSingleScriptBootstrap()) {
+                String remoteAdmin = computer.getRemoteAdmin();
+                String rootCommandPrefix = remoteAdmin != null && !remoteAdmin.equals("root") ? computer.getRootCommandPrefix() : "";
+                BootstrapScript script = new BootstrapScript(tmpDir, initScript, rootCommandPrefix, RemotingJar.getDigest());
+                String command = script.getCommand();
+                if (command.getBytes(StandardCharsets.UTF_8).length <= BootstrapScript.MAX_COMMAND_LENGTH) {
+                    status = runBootstrapScript(computer, conn, tmpDir, command, logger, listener);
+                    if (!status.isSuccessful()) {
+                        return;
+                    }
+                } else {
+                    logInfo(computer, listener, "Init script too long for the bootstrap script, running separate commands");
                 }
-                sess.close();
+            }
+            if (status == null && !prepareAgent(computer, conn, scp, initScript, tmpDir, logger, listener)) {
+                return;
             }
 
-            // TODO: parse the version number. maven-enforcer-plugin might help
-            executeRemote(computer, conn, "java -fullversion", "sudo yum install -y java-1.8.0-openjdk.x86_64", logger, listener);
-            executeRemote(computer, conn, "which scp", "sudo yum install -y openssh-clients", logger, listener);
-
-            // Always copy so we get the most recent slave.jar
-            logInfo(computer, listener, "Copying remoting.jar to: " + tmpDir);
-            scp.put(Jenkins.get().getJnlpJars("remoting.jar").readFully(), "remoting.jar", tmpDir);
+            if (updateRemotingJar(conn, scp, tmpDir, status)) {
+                logInfo(computer, listener, "Copied remoting.jar to: " + tmpDir);
+            } else {
+                logInfo(computer, listener, "remoting.jar in " + tmpDir + " is up to date");
+            }
 
             final String jvmopts = node.jvmopts;
             final String prefix = computer.getSlaveCommandPrefix();
@@ -239,8 +214,6 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
             String launchString = prefix + " java " + (jvmopts != null ? jvmopts : "") + " -jar " + tmpDir + "/remoting.jar -workDir " + workDir + suffix;
            // launchString = launchString.trim();
 
-            SlaveTemplate slaveTemplate = computer.getSlaveTemplate();
-
             if (slaveTemplate != null && slaveTemplate.isConnectBySSHProcess()) {
                 File identityKeyFile = createIdentityKeyFile(computer);
 
@@ -276,12 +249,98 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         }
     }
 
+    /**
+     * Prepares the agent with one remote command per step.
+     *
+     * @return whether the agent can be launched.
+     */
+    private boolean prepareAgent(EC2Computer computer, Connection conn, SCPClient scp, String initScript, String tmpDir,
+            PrintStream logger, TaskListener listener) throws IOException, InterruptedException {
+        logInfo(computer, listener, "Creating tmp directory (" + tmpDir + ") if it does not exist");
+        RemoteCommand.run(conn, "mkdir -p " + tmpDir, logger);
+
+        if (initScript != null && initScript.trim().length() > 0
+                && RemoteCommand.run(conn, "test -e ~/.hudson-run-init", logger) != 0) {
+            logInfo(computer, listener, "Executing init script");
+            scp.put(initScript.getBytes("UTF-8"), "init.sh", tmpDir, "0700");
+            int exitStatus = RemoteCommand.runWithPty(conn, buildUpCommand(computer, tmpDir + "/init.sh"), logger);
+            if (exitStatus != 0) {
+                logWarning(computer, listener, "init script failed: exit code=" + exitStatus);
+                return false;
+            }
+
+            logInfo(computer, listener, "Creating ~/.hudson-run-init");
+
+            // Needs a tty to run sudo.
+            exitStatus = RemoteCommand.runWithPty(conn, buildUpCommand(computer, "touch ~/.hudson-run-init"), logger);
+            if (exitStatus != 0) {
+                logWarning(computer, listener, "init script failed: exit code=" + exitStatus);
+                return false;
+            }
+        }
+
+        // TODO: parse the version number. maven-enforcer-plugin might help
+        executeRemote(computer, conn, "java -fullversion", "sudo yum install -y java-1.8.0-openjdk.x86_64", logger, listener);
+        executeRemote(computer, conn, "which scp", "sudo yum install -y openssh-clients", logger, listener);
+        return true;
+    }
+
+    /**
+     * Prepares the agent with a {@link BootstrapScript}, in a single session.
+     */
+    private BootstrapScript.Status runBootstrapScript(EC2Computer computer, Connection conn, String tmpDir, String command,
+            PrintStream logger, TaskListener listener) throws IOException, InterruptedException {
+        logInfo(computer, listener, "Running bootstrap script " + tmpDir + "/" + BootstrapScript.NAME);
+        int exitStatus = RemoteCommand.runWithPty(conn, command, logger);
+        BootstrapScript.Status status = BootstrapScript.Status.of(exitStatus);
+        if (!status.isSuccessful()) {
+            logWarning(computer, listener, "bootstrap script failed: " + status + ", exit code=" + exitStatus);
+        }
+        return status;
+    }
+
+    /**
+     * Copies remoting.jar to the agent, unless its copy is current: as the bootstrap script found, or else as the
+     * digest file next to it tells.
+     *
+     * @param status what the bootstrap script found, {@code null} if the agent was prepared without it
+     * @return whether the jar was copied.
+     */
+    static boolean updateRemotingJar(Connection conn, SCPClient scp, String tmpDir,
+            @CheckForNull BootstrapScript.Status status) throws IOException, InterruptedException {
+        if (status == BootstrapScript.Status.READY
+                || status == null && RemotingJar.isCurrent(readRemoteDigest(conn, tmpDir))) {
+            return false;
+        }
+        // The digest goes last, so that it never vouches for a partial copy
+        RemotingJar.getPayload().put(scp, tmpDir);
+        scp.put(RemotingJar.getDigestFile(), RemotingJar.DIGEST_FILE, tmpDir);
+        return true;
+    }
+
+    /**
+     * Reads the digest file of the agent's copy of remoting.jar. A digest left behind by a jar that was deleted since
+     * does not count.
+     *
+     * @return the contents of the digest file, {@code null} if the jar or the digest file is missing.
+     */
+    @CheckForNull
+    private static String readRemoteDigest(Connection conn, String tmpDir) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String command = "test -f " + tmpDir + "/" + RemotingJar.NAME + " && cat " + tmpDir + "/" + RemotingJar.DIGEST_FILE
+                + " 2> /dev/null";
+        if (RemoteCommand.run(conn, command, out) != 0) {
+            return null;
+        }
+        return out.toString("UTF-8");
+    }
+
     private boolean executeRemote(EC2Computer computer, Connection conn, String checkCommand,  String command, PrintStream logger, TaskListener listener)
             throws IOException, InterruptedException {
         logInfo(computer, listener,"Verifying: " + checkCommand);
-        if (conn.exec(checkCommand, logger) != 0) {
+        if (RemoteCommand.run(conn, checkCommand, logger) != 0) {
             logInfo(computer, listener, "Installing: " + command);
-            if (conn.exec(command, logger) != 0) {
+            if (RemoteCommand.run(conn, command, logger) != 0) {
                 logWarning(computer, listener, "Failed to install: " + command);
                 return false;
             }
@@ -314,42 +373,47 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         }
     }
 
-    private boolean bootstrap(EC2Computer computer, TaskListener listener) throws IOException,
+    /**
+     * Connects to the agent and authenticates as its remote admin, trying again with growing delays until the
+     * instance accepts the key.
+     *
+     * @return the authenticated connection, {@code null} if authentication kept failing.
+     */
+    @CheckForNull
+    private Connection bootstrap(EC2Computer computer, TaskListener listener) throws IOException,
             InterruptedException, AmazonClientException {
         logInfo(computer, listener, "bootstrap()");
-        Connection bootstrapConn = null;
-        try {
-            int tries = bootstrapAuthTries;
+        long deadline = System.currentTimeMillis() + (long) bootstrapAuthTries * bootstrapAuthSleepMs;
+        Backoff backoff = new Backoff(bootstrapAuthMinSleepMs, bootstrapAuthSleepMs);
+        logInfo(computer, listener, "Getting keypair...");
+        KeyPair key = computer.getCloud().getKeyPair();
+        logInfo(computer, listener,
+            String.format("Using private key %s (SHA-1 fingerprint %s)", key.getKeyName(), key.getKeyFingerprint()));
+        while (true) {
+            logInfo(computer, listener, "Authenticating as " + computer.getRemoteAdmin());
+            Connection bootstrapConn = null;
             boolean isAuthenticated = false;
-            logInfo(computer, listener, "Getting keypair...");
-            KeyPair key = computer.getCloud().getKeyPair();
-            logInfo(computer, listener,
-                String.format("Using private key %s (SHA-1 fingerprint %s)", key.getKeyName(), key.getKeyFingerprint()));
-            while (tries-- > 0) {
-                logInfo(computer, listener, "Authenticating as " + computer.getRemoteAdmin());
-                try {
-                    bootstrapConn = connectToSsh(computer, listener);
-                    isAuthenticated = bootstrapConn.authenticateWithPublicKey(computer.getRemoteAdmin(), key.getKeyMaterial().toCharArray(), "");
-                } catch(IOException e) {
-                    logException(computer, listener, "Exception trying to authenticate", e);
-                    bootstrapConn.close();
-                }
-                if (isAuthenticated) {
-                    break;
-                }
-                logWarning(computer, listener, "Authentication failed. Trying again...");
-                Thread.sleep(bootstrapAuthSleepMs);
+            try {
+                bootstrapConn = connectToSsh(computer, listener);
+                isAuthenticated = bootstrapConn.authenticateWithPublicKey(computer.getRemoteAdmin(), key.getKeyMaterial().toCharArray(), "");
+            } catch(IOException e) {
+                logException(computer, listener, "Exception trying to authenticate", e);
             }
-            if (!isAuthenticated) {
-                logWarning(computer, listener, "Authentication failed");
-                return false;
+            if (isAuthenticated) {
+                return bootstrapConn;
             }
-        } finally {
             if (bootstrapConn != null) {
                 bootstrapConn.close();
             }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                logWarning(computer, listener, "Authentication failed");
+                return null;
+            }
+            long delay = Math.min(backoff.next(), remaining);
+            logWarning(computer, listener, "Authentication failed. Trying again in " + delay + "ms...");
+            Thread.sleep(delay);
         }
-        return true;
     }
 
     private Connection connectToSsh(EC2Computer computer, TaskListener listener) throws AmazonClientException,
@@ -357,6 +421,8 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         final EC2AbstractSlave node = computer.getNode();
         final long timeout = node == null ? 0L : node.getLaunchTimeoutInMillis();
         final long startTime = System.currentTimeMillis();
+        final Backoff backoff = new Backoff(sshRetryMinDelayMs, sshRetryMaxDelayMs);
+        String host = null;
         while (true) {
             try {
                 long waitTime = System.currentTimeMillis() - startTime;
@@ -365,27 +431,36 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                             + " seconds of waiting for ssh to become available. (maximum timeout configured is "
                             + (timeout / 1000) + ")");
                 }
-                String host = getEC2HostAddress(computer);
 
-                if ((node instanceof EC2SpotSlave) && computer.getInstanceId() == null) {
-                     // getInstanceId() on EC2SpotSlave can return null if the spot request doesn't yet know
-                     // the instance id that it is starting. Continue to wait until the instanceId is set.
-                    logInfo(computer, listener, "empty instanceId for Spot Slave.");
-                    throw new IOException("goto sleep");
-                }
+                if (host == null) {
+                    if ((node instanceof EC2SpotSlave) && computer.getInstanceId() == null) {
+                         // getInstanceId() on EC2SpotSlave can return null if the spot request doesn't yet know
+                         // the instance id that it is starting. Continue to wait until the instanceId is set.
+                        logInfo(computer, listener, "empty instanceId for Spot Slave.");
+                        throw new IOException("goto sleep");
+                    }
 
-                if ("0.0.0.0".equals(host)) {
-                    logWarning(computer, listener, "Invalid host 0.0.0.0, your host is most likely waiting for an ip address.");
-                    throw new IOException("goto sleep");
+                    String address = getEC2HostAddress(computer);
+                    if (Util.fixEmptyAndTrim(address) == null || "0.0.0.0".equals(address)) {
+                        logWarning(computer, listener, "Invalid host " + address + ", your host is most likely waiting for an ip address.");
+                        throw new IOException("goto sleep");
+                    }
+                    // The address does not change while the instance runs, no need to describe it again
+                    host = address;
+                    backoff.reset();
                 }
 
                 int port = computer.getSshPort();
                 Integer slaveConnectTimeout = Integer.getInteger("jenkins.ec2.slaveConnectTimeout", 10000);
+                ProxyConfiguration proxyConfig = Jenkins.get().proxy;
+                Proxy proxy = proxyConfig == null ? Proxy.NO_PROXY : proxyConfig.createProxy(host);
+                // Only the proxy can tell whether the port is open when there is one
+                if (proxy.equals(Proxy.NO_PROXY) && !SshPortProber.get().isOpen(host, port, slaveConnectTimeout)) {
+                    throw new IOException("port " + port + " of " + host + " does not accept connections yet");
+                }
                 logInfo(computer, listener, "Connecting to " + host + " on port " + port + ", with timeout " + slaveConnectTimeout
                         + ".");
                 Connection conn = new Connection(host, port);
-                ProxyConfiguration proxyConfig = Jenkins.get().proxy;
-                Proxy proxy = proxyConfig == null ? Proxy.NO_PROXY : proxyConfig.createProxy(host);
                 if (!proxy.equals(Proxy.NO_PROXY) && proxy.address() instanceof InetSocketAddress) {
                     InetSocketAddress address = (InetSocketAddress) proxy.address();
                     HTTPProxyData proxyData = null;
@@ -410,9 +485,10 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                 return conn; // successfully connected
             } catch (IOException e) {
                 // keep retrying until SSH comes up
+                long delay = backoff.next();
                 logInfo(computer, listener, "Failed to connect via ssh: " + e.getMessage());
-                logInfo(computer, listener, "Waiting for SSH to come up. Sleeping 5.");
-                Thread.sleep(5000);
+                logInfo(computer, listener, "Waiting for SSH to come up. Sleeping " + delay + "ms.");
+                Thread.sleep(delay);
             }
         }
     }
@@ -423,18 +499,6 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         return EC2HostAddressProvider.unix(instance, strategy);
     }
 
-    private int waitCompletion(Session session) throws InterruptedException {
-        // I noticed that the exit status delivery often gets delayed. Wait up
-        // to 1 sec.
-        for (int i = 0; i < 10; i++) {
-            Integer r = session.getExitStatus();
-            if (r != null)
-                return r;
-            Thread.sleep(100);
-        }
-        return -1;
-    }
-
     @Override
     public Descriptor<ComputerLauncher> getDescriptor() {
         throw new UnsupportedOperationException();
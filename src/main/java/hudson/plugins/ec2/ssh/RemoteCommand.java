@@ -0,0 +1,127 @@
+package hudson.plugins.ec2.ssh;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Runs commands on an agent, each in its own session of an SSH connection.
+ *
+ * <p>
+ * The output of the command is copied as it comes, and its exit status awaited, by waiting on the conditions of the
+ * session rather than polling it. A command that is still running is never mistaken for a failed one, unless it
+ * outlives {@link #TIMEOUT}.
+ */
+final class RemoteCommand {
+
+    /**
+     * How long (in milliseconds) a command may run, 0 to wait for it as long as it takes.
+     */
+    static final long TIMEOUT = Long.getLong("jenkins.ec2.remoteCommandTimeoutMs", 0);
+
+    /**
+     * Exit status reported for commands that timed out or did not report any.
+     */
+    static final int NO_EXIT_STATUS = -1;
+
+    private static final int OUTPUT = ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA;
+
+    private RemoteCommand() {
+    }
+
+    /**
+     * Runs a command with a dumb terminal, so that its output and errors come bundled, and {@code sudo} works.
+     *
+     * @return the exit status of the command.
+     */
+    static int runWithPty(Connection conn, String command, OutputStream out) throws IOException, InterruptedException {
+        return run(conn, command, true, out);
+    }
+
+    /**
+     * Runs a command.
+     *
+     * @return the exit status of the command.
+     */
+    static int run(Connection conn, String command, OutputStream out) throws IOException, InterruptedException {
+        return run(conn, command, false, out);
+    }
+
+    private static int run(Connection conn, String command, boolean pty, OutputStream out)
+            throws IOException, InterruptedException {
+        Session sess = conn.openSession();
+        try {
+            if (pty) {
+                sess.requestDumbPTY();
+            }
+            sess.execCommand(command);
+            sess.getStdin().close(); // nothing to write here
+            return waitFor(sess, out, TIMEOUT);
+        } finally {
+            sess.close();
+        }
+    }
+
+    /**
+     * Copies the output and errors of a session to the given stream until the command ends, and returns its exit
+     * status.
+     *
+     * @param timeout how long (in milliseconds) to wait for the command, 0 to wait as long as it takes
+     */
+    static int waitFor(Session sess, OutputStream out, long timeout) throws IOException, InterruptedException {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        InputStream stdout = sess.getStdout();
+        InputStream stderr = sess.getStderr();
+        byte[] buffer = new byte[8192];
+        while (true) {
+            if (stdout.available() == 0 && stderr.available() == 0) {
+                long wait = remaining(deadline);
+                if (wait < 0) {
+                    return NO_EXIT_STATUS;
+                }
+                int conditions = sess.waitForCondition(OUTPUT | ChannelCondition.EOF, wait);
+                if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                    return NO_EXIT_STATUS;
+                }
+                if ((conditions & OUTPUT) == 0 && (conditions & ChannelCondition.EOF) != 0) {
+                    break;
+                }
+            }
+            copyAvailable(stdout, out, buffer);
+            copyAvailable(stderr, out, buffer);
+        }
+        out.flush();
+        // The exit status may come after the end of the output
+        long wait = remaining(deadline);
+        if (wait >= 0) {
+            sess.waitForCondition(ChannelCondition.EXIT_STATUS | ChannelCondition.CLOSED, wait);
+        }
+        Integer status = sess.getExitStatus();
+        return status == null ? NO_EXIT_STATUS : status;
+    }
+
+    /**
+     * Time left (in milliseconds) until the deadline, 0 if there is none, negative once it passed.
+     */
+    private static long remaining(long deadline) {
+        if (deadline == 0) {
+            return 0;
+        }
+        long wait = deadline - System.currentTimeMillis();
+        return wait > 0 ? wait : -1;
+    }
+
+    private static void copyAvailable(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        while (in.available() > 0) {
+            int n = in.read(buffer, 0, Math.min(buffer.length, in.available()));
+            if (n < 0) {
+                return;
+            }
+            out.write(buffer, 0, n);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package hudson.plugins.ec2.ssh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks whether the SSH port of an agent accepts TCP connections yet, which is much cheaper than a full SSH
+ * handshake.
+ *
+ * <p>
+ * All launches share one selector, served by a single daemon thread, that connects non-blocking sockets and closes
+ * them as soon as the connection is established, refused or timed out.
+ */
+final class SshPortProber {
+
+    private static final Logger LOGGER = Logger.getLogger(SshPortProber.class.getName());
+
+    /**
+     * How long (in milliseconds) past the timeout of a probe its caller waits for the prober thread to report it.
+     */
+    private static final long MARGIN = 1000;
+
+    private static SshPortProber instance;
+
+    private final Selector selector;
+
+    private final Queue<Probe> pending = new ConcurrentLinkedQueue<>();
+
+    private SshPortProber() throws IOException {
+        selector = Selector.open();
+        Thread thread = new Thread(this::run, "EC2 SSH port prober");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static synchronized SshPortProber get() throws IOException {
+        if (instance == null) {
+            instance = new SshPortProber();
+        }
+        return instance;
+    }
+
+    /**
+     * Whether the given port accepts connections, waiting at most the given time (in milliseconds) for it to answer.
+     * A probe the prober thread does not report in time counts as closed.
+     */
+    boolean isOpen(String host, int port, long timeout) throws InterruptedException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            return false;
+        }
+        Probe probe = new Probe(address, System.currentTimeMillis() + timeout);
+        pending.add(probe);
+        selector.wakeup();
+        try {
+            return probe.result.get(timeout + MARGIN, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Probe probe;
+                while ((probe = pending.poll()) != null) {
+                    probe.start(selector);
+                }
+                long now = System.currentTimeMillis();
+                long wait = 1000;
+                for (SelectionKey key : selector.keys()) {
+                    Probe p = (Probe) key.attachment();
+                    if (p.deadline <= now) {
+                        p.complete(false);
+                    } else {
+                        wait = Math.min(wait, p.deadline - now);
+                    }
+                }
+                selector.select(Math.max(1, wait));
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    Probe p = (Probe) key.attachment();
+                    try {
+                        p.complete(key.isValid() && ((SocketChannel) key.channel()).finishConnect());
+                    } catch (IOException e) {
+                        // Refused or unreachable
+                        p.complete(false);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to probe SSH ports", e);
+            }
+        }
+    }
+
+    private static final class Probe {
+        private final InetSocketAddress address;
+        private final long deadline;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private SocketChannel channel;
+
+        private Probe(InetSocketAddress address, long deadline) {
+            this.address = address;
+            this.deadline = deadline;
+        }
+
+        private void start(Selector selector) {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    complete(true);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                complete(false);
+            }
+        }
+
+        private void complete(boolean open) {
+            result.complete(open);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close the probe of " + address, e);
+                }
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import hudson.plugins.ec2.EC2AbstractSlave;
 import hudson.plugins.ec2.EC2Computer;
 import hudson.plugins.ec2.EC2ComputerLauncher;
 import hudson.plugins.ec2.EC2HostAddressProvider;
+import hudson.plugins.ec2.RemotingJar;
 import hudson.plugins.ec2.win.winrm.WindowsProcess;
 import hudson.remoting.Channel;
 import hudson.remoting.Channel.Listener;
@@ -14,12 +15,12 @@ import hudson.Util;
 import hudson.os.WindowsUtil;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 
-import jenkins.model.Jenkins;
 import org.apache.commons.io.IOUtils;
 
 import com.amazonaws.AmazonClientException;
@@ -28,7 +29,7 @@ import com.amazonaws.services.ec2.model.GetPasswordDataRequest;
 import com.amazonaws.services.ec2.model.GetPasswordDataResult;
 
 public class EC2WindowsLauncher extends EC2ComputerLauncher {
-    private static final String AGENT_JAR = "remoting.jar";
+    private static final String AGENT_JAR = RemotingJar.NAME;
 
     final long sleepBetweenAttempts = TimeUnit.SECONDS.toMillis(10);
 
@@ -77,12 +78,12 @@ public class EC2WindowsLauncher extends EC2ComputerLauncher {
                 logger.println("init script ran successfully");
             }
 
-            try(OutputStream agentJar = connection.putFile(tmpDir + AGENT_JAR)) {
-                agentJar.write(Jenkins.get().getJnlpJars(AGENT_JAR).readFully());
+            if (updateAgentJar(connection, tmpDir)) {
+                logger.println("remoting.jar sent remotely. Bootstrapping it");
+            } else {
+                logger.println("remoting.jar is up to date. Bootstrapping it");
             }
 
-            logger.println("remoting.jar sent remotely. Bootstrapping it");
-
             final String jvmopts = node.jvmopts;
             final String remoteFS = WindowsUtil.quoteArgument(node.getRemoteFS());
             final String workDir = Util.fixEmptyAndTrim(remoteFS) != null ? remoteFS : tmpDir;
@@ -104,6 +105,35 @@ public class EC2WindowsLauncher extends EC2ComputerLauncher {
         }
     }
 
+    /**
+     * Sends remoting.jar to the agent, unless the digest file next to its copy tells it is current.
+     *
+     * @return whether the jar was sent.
+     */
+    static boolean updateAgentJar(WinConnection connection, String tmpDir) throws IOException {
+        if (isAgentJarCurrent(connection, tmpDir)) {
+            return false;
+        }
+        try(OutputStream agentJar = connection.putFile(tmpDir + AGENT_JAR)) {
+            RemotingJar.getPayload().writeTo(agentJar);
+        }
+        // The digest goes last, so that it never vouches for a partial copy
+        try(OutputStream digest = connection.putFile(tmpDir + RemotingJar.DIGEST_FILE)) {
+            digest.write(RemotingJar.getDigestFile());
+        }
+        return true;
+    }
+
+    private static boolean isAgentJarCurrent(WinConnection connection, String tmpDir) throws IOException {
+        String digestFile = tmpDir + RemotingJar.DIGEST_FILE;
+        if (!connection.exists(tmpDir + AGENT_JAR) || !connection.exists(digestFile)) {
+            return false;
+        }
+        try (InputStream digest = connection.getFile(digestFile)) {
+            return RemotingJar.isCurrent(IOUtils.toString(digest, StandardCharsets.US_ASCII));
+        }
+    }
+
     private WinConnection connectToWinRM(EC2Computer computer, PrintStream logger) throws AmazonClientException,
             InterruptedException {
         EC2AbstractSlave node = computer.getNode();
@@ -67,7 +67,7 @@ public class AmazonEC2CloudTest {
         AmazonEC2Cloud cloud = r.jenkins.clouds.get(AmazonEC2Cloud.class);
         AmazonEC2 connection = cloud.connect();
         Assert.assertNotNull(connection);
-        Assert.assertTrue(Mockito.mockingDetails(connection).isMock());
+        Assert.assertTrue(Mockito.mockingDetails(RateLimitedAmazonEC2.unwrap(connection)).isMock());
     }
 
     @Test
@@ -0,0 +1,115 @@
+package hudson.plugins.ec2;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.powermock.reflect.Whitebox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CapacityLedgerTest {
+
+    private final SlaveTemplate a = Mockito.mock(SlaveTemplate.class);
+
+    private final SlaveTemplate b = Mockito.mock(SlaveTemplate.class);
+
+    @Test
+    public void reservesWithinBothCaps() {
+        CapacityLedger ledger = new CapacityLedger();
+        assertTrue(ledger.isStale());
+        ledger.reconcile(System.currentTimeMillis(), 3, Collections.singletonMap(a, 1));
+
+        CapacityLedger.Reservation r = ledger.reserve(a, 2, 10, 5);
+        assertNotNull(r);
+        assertEquals(1, r.getCount());
+        assertNull(ledger.reserve(a, 2, 10, 1));
+
+        CapacityLedger.Reservation other = ledger.reserve(b, 10, 5, 5);
+        assertNotNull(other);
+        assertEquals(1, other.getCount());
+        assertEquals(5, ledger.getCount());
+    }
+
+    @Test
+    public void templatesWithTheSameDescriptionAreCountedApart() {
+        Whitebox.setInternalState(a, "description", "same");
+        Whitebox.setInternalState(b, "description", "same");
+        CapacityLedger ledger = new CapacityLedger();
+        assertNotNull(ledger.reserve(a, 1, 10, 1));
+        assertNotNull(ledger.reserve(b, 1, 10, 1));
+        assertEquals(1, ledger.getCount(a));
+        assertEquals(1, ledger.getCount(b));
+        assertTrue(ledger.getProvisioningLock(a) != ledger.getProvisioningLock(b));
+    }
+
+    @Test
+    public void releaseGivesCapacityBack() {
+        CapacityLedger ledger = new CapacityLedger();
+        CapacityLedger.Reservation r = ledger.reserve(a, 2, 2, 2);
+        assertNotNull(r);
+        assertNull(ledger.reserve(a, 2, 2, 1));
+
+        r.release();
+        assertEquals(0, ledger.getCount(a));
+        assertNotNull(ledger.reserve(a, 2, 2, 1));
+    }
+
+    @Test
+    public void committedLaunchesAreHeldUntilARecountSeesThem() throws Exception {
+        CapacityLedger ledger = new CapacityLedger();
+        CapacityLedger.Reservation r = ledger.reserve(a, 10, 10, 3);
+        assertNotNull(r);
+        r.commit(2);
+        assertEquals(2, ledger.getCount(a));
+
+        // A recount started before the commit may have missed the new instances
+        ledger.reconcile(0, 0, Collections.emptyMap());
+        assertEquals(2, ledger.getCount());
+
+        Thread.sleep(5);
+        ledger.reconcile(System.currentTimeMillis(), 2, Collections.singletonMap(a, 2));
+        assertEquals(2, ledger.getCount());
+        assertEquals(2, ledger.getCount(a));
+
+        ledger.onRemoved(a);
+        assertEquals(1, ledger.getCount());
+        assertEquals(1, ledger.getCount(a));
+    }
+
+    @Test
+    public void concurrentReservationsNeverExceedTheCloudCap() throws Exception {
+        CapacityLedger ledger = new CapacityLedger();
+        SlaveTemplate[] templates = new SlaveTemplate[14];
+        for (int i = 0; i < templates.length; i++) {
+            templates[i] = Mockito.mock(SlaveTemplate.class);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> granted = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                SlaveTemplate template = templates[i % templates.length];
+                granted.add(executor.submit(() -> {
+                    CapacityLedger.Reservation r = ledger.reserve(template, 5, 50, 1);
+                    return r == null ? 0 : r.getCount();
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> f : granted) {
+                total += f.get();
+            }
+            assertEquals(50, total);
+            assertEquals(50, ledger.getCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -30,8 +30,24 @@ import org.jvnet.hudson.test.JenkinsRule;
 
 import java.io.IOException;
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeKeyPairsRequest;
+import com.amazonaws.services.ec2.model.DescribeKeyPairsResult;
+import com.amazonaws.services.ec2.model.KeyPair;
+import com.amazonaws.services.ec2.model.KeyPairInfo;
+import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
+import org.mockito.ArgumentCaptor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -92,4 +108,47 @@ public class EC2PrivateKeyTest {
         EC2PrivateKey k = new EC2PrivateKey("");
         k.getFingerprint();
     }
+
+    @Test
+    public void testFindAsksOnlyForMatchingKeyPairs() throws Exception {
+        EC2PrivateKey k = getPrivateKey();
+        AmazonEC2 ec2 = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        doReturn(new DescribeKeyPairsResult().withKeyPairs(new KeyPairInfo().withKeyName("jenkins")
+                .withKeyFingerprint("e3:cc:f6:5d:0b:bb:8b:ca:32:12:fd:70:98:57:c0:21")))
+                .when(ec2).describeKeyPairs(any(DescribeKeyPairsRequest.class));
+
+        KeyPair keyPair = k.find(ec2);
+        assertEquals("jenkins", keyPair.getKeyName());
+        assertEquals(k.getPublicFingerprint(), keyPair.getKeyFingerprint());
+
+        ArgumentCaptor<DescribeKeyPairsRequest> request = ArgumentCaptor.forClass(DescribeKeyPairsRequest.class);
+        verify(ec2).describeKeyPairs(request.capture());
+        assertEquals("fingerprint", request.getValue().getFilters().get(0).getName());
+        assertTrue(request.getValue().getFilters().get(0).getValues().contains(k.getFingerprint()));
+        verify(ec2, never()).describeKeyPairs();
+    }
+
+    @Test
+    public void testFindListsAllKeyPairsOnlyWhenTheFilterIsNotSupported() throws Exception {
+        EC2PrivateKey k = getPrivateKey();
+        AmazonEC2 ec2 = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        AmazonServiceException unsupported = new AmazonServiceException("The filter 'fingerprint' is invalid");
+        unsupported.setErrorCode("InvalidParameterValue");
+        doThrow(unsupported).when(ec2).describeKeyPairs(any(DescribeKeyPairsRequest.class));
+        doReturn(new DescribeKeyPairsResult().withKeyPairs(new KeyPairInfo().withKeyName("jenkins")
+                .withKeyFingerprint(k.getFingerprint()))).when(ec2).describeKeyPairs();
+        assertEquals("jenkins", k.find(ec2).getKeyName());
+
+        ec2 = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        AmazonServiceException denied = new AmazonServiceException("Not authorized");
+        denied.setErrorCode("UnauthorizedOperation");
+        doThrow(denied).when(ec2).describeKeyPairs(any(DescribeKeyPairsRequest.class));
+        try {
+            k.find(ec2);
+            fail();
+        } catch (AmazonServiceException e) {
+            assertSame(denied, e);
+        }
+        verify(ec2, never()).describeKeyPairs();
+    }
 }
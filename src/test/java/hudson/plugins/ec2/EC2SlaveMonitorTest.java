@@ -0,0 +1,95 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class EC2SlaveMonitorTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private AmazonEC2 ec2;
+
+    private AmazonEC2Cloud cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        ec2 = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        AmazonEC2FactoryMockImpl.mock = ec2;
+        cloud = new AmazonEC2Cloud("us-east-1", true, "abc", "us-east-1", "ghi", "3", Collections.emptyList(), "roleArn", "roleSessionName");
+        r.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        AmazonEC2FactoryMockImpl.mock = null;
+    }
+
+    @Test
+    public void removesDeadNodesAfterOneBatchedCall() throws Exception {
+        doReturn(new DescribeInstancesResult().withReservations(new Reservation().withInstances(
+                instance("i-1", InstanceStateName.Running),
+                instance("i-2", InstanceStateName.Terminated))))
+                .when(ec2).describeInstances(any(DescribeInstancesRequest.class));
+        r.jenkins.addNode(slave("i-1"));
+        r.jenkins.addNode(slave("i-2"));
+        r.jenkins.addNode(slave("i-3"));
+
+        EC2SlaveMonitor monitor = new EC2SlaveMonitor();
+        monitor.execute(TaskListener.NULL);
+
+        assertNotNull(r.jenkins.getNode("i-1"));
+        assertNull(r.jenkins.getNode("i-2"));
+        // Missing once may just mean not visible yet
+        assertNotNull(r.jenkins.getNode("i-3"));
+        verify(ec2, never()).terminateInstances(any(TerminateInstancesRequest.class));
+        // Launchers may describe their own instance, but the monitor asks for all of them at once
+        ArgumentCaptor<DescribeInstancesRequest> requests = ArgumentCaptor.forClass(DescribeInstancesRequest.class);
+        verify(ec2, atLeastOnce()).describeInstances(requests.capture());
+        assertTrue(requests.getAllValues().stream().anyMatch(request -> !request.getFilters().isEmpty()
+                && request.getFilters().get(0).getValues().equals(Arrays.asList("i-1", "i-2", "i-3"))));
+
+        monitor.execute(TaskListener.NULL);
+
+        assertNotNull(r.jenkins.getNode("i-1"));
+        assertNull(r.jenkins.getNode("i-3"));
+        // The terminated instance is left alone, the missing one is terminated in case it still runs
+        verify(ec2).terminateInstances(new TerminateInstancesRequest(Collections.singletonList("i-3")));
+    }
+
+    private EC2OndemandSlave slave(String instanceId) throws Exception {
+        return new EC2OndemandSlave(instanceId, instanceId, "description", "remoteFS", 1, "labelString", Node.Mode.NORMAL, "initScript", "tmpDir", Collections.emptyList(), "remoteAdmin", "jvmopts", false, "30", "publicDNS", "privateDNS", Collections.emptyList(), cloud.name, false, 0, new UnixData("a", null, null, "b"), ConnectionStrategy.PRIVATE_IP, -1);
+    }
+
+    private static Instance instance(String id, InstanceStateName state) {
+        return new Instance().withInstanceId(id).withLaunchTime(new Date())
+                .withState(new com.amazonaws.services.ec2.model.InstanceState().withName(state));
+    }
+}
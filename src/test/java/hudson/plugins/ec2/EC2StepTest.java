@@ -77,7 +77,7 @@ public class EC2StepTest {
         // not expired ec2 client
         AmazonEC2 notExpiredClient = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
         AmazonEC2FactoryMockImpl.mock = notExpiredClient;
-        assertSame("EC2 client not expired should be reused", notExpiredClient, cl.connect());
+        assertSame("EC2 client not expired should be reused", notExpiredClient, RateLimitedAmazonEC2.unwrap(cl.connect()));
 
         // expired ec2 client
         //  based on a real exception
@@ -93,7 +93,7 @@ public class EC2StepTest {
         PeriodicWork work = PeriodicWork.all().get(EC2Cloud.EC2ConnectionUpdater.class);
         assertNotNull(work);
         work.run();
-        assertNotSame("EC2 client should be re-created when it is expired", expiredClient, cl.connect());
+        assertNotSame("EC2 client should be re-created when it is expired", expiredClient, RateLimitedAmazonEC2.unwrap(cl.connect()));
     }
 
     @Test
@@ -0,0 +1,141 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateFleetRequest;
+import com.amazonaws.services.ec2.model.CreateLaunchTemplateRequest;
+import com.amazonaws.services.ec2.model.DeleteLaunchTemplateRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeLaunchTemplatesRequest;
+import com.amazonaws.services.ec2.model.FleetLaunchTemplateOverridesRequest;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.ec2.model.KeyPair;
+import com.amazonaws.services.ec2.model.LaunchTemplate;
+import com.amazonaws.services.ec2.model.LaunchTemplateTagSpecificationRequest;
+import com.amazonaws.services.ec2.model.RequestLaunchTemplateData;
+import com.amazonaws.services.ec2.model.Tag;
+import hudson.model.Node;
+import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.ArgumentCaptor;
+import org.powermock.reflect.Whitebox;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class FleetProvisioningTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private AmazonEC2 ec2;
+
+    private SlaveTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        ec2 = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        AmazonEC2FactoryMockImpl.mockFleetLaunches(ec2);
+        AmazonEC2FactoryMockImpl.mock = ec2;
+
+        template = new SlaveTemplate("ami-1", EC2AbstractSlave.TEST_ZONE, null, "", "foo", InstanceType.M1Large, false, "linux", Node.Mode.NORMAL, "fleet", "bar", "bbb", "aaa", "1", "fff", null, "-Xmx1g", false, "subnet-1 subnet-2", null, null, false, null, "", false, false, "", false, "");
+        template.setFleetProvisioning(true);
+        template.setAlternativeInstanceTypes("m5.large");
+
+        AmazonEC2Cloud cloud = new AmazonEC2Cloud("us-east-1", false, "abc", "us-east-1", "ghi", "", Collections.singletonList(template), null, null);
+        Whitebox.setInternalState(cloud, "usableKeyPair", new KeyPair().withKeyName("jenkins"));
+        r.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        AmazonEC2FactoryMockImpl.mock = null;
+    }
+
+    @Test
+    public void launchesARoundWithOneFleetRequest() throws Exception {
+        List<EC2AbstractSlave> slaves = template.provision(3, EnumSet.of(SlaveTemplate.ProvisionOptions.ALLOW_CREATE));
+        assertEquals(3, slaves.size());
+        for (EC2AbstractSlave slave : slaves) {
+            assertTrue(slave instanceof EC2OndemandSlave);
+        }
+
+        ArgumentCaptor<CreateFleetRequest> captor = ArgumentCaptor.forClass(CreateFleetRequest.class);
+        verify(ec2, times(1)).createFleet(captor.capture());
+        CreateFleetRequest request = captor.getValue();
+        assertEquals("instant", request.getType());
+        assertEquals("on-demand", request.getTargetCapacitySpecification().getDefaultTargetCapacityType());
+        assertEquals(Integer.valueOf(3), request.getTargetCapacitySpecification().getTotalTargetCapacity());
+
+        // Every instance type in every subnet, the preferred instance type first
+        List<FleetLaunchTemplateOverridesRequest> overrides = request.getLaunchTemplateConfigs().get(0).getOverrides();
+        assertEquals(4, overrides.size());
+        assertEquals("m1.large", overrides.get(0).getInstanceType());
+        assertEquals("m1.large", overrides.get(1).getInstanceType());
+        assertEquals("m5.large", overrides.get(3).getInstanceType());
+
+        // The launch template is created once and then reused
+        template.provision(1, EnumSet.of(SlaveTemplate.ProvisionOptions.ALLOW_CREATE));
+        verify(ec2, times(2)).createFleet(any(CreateFleetRequest.class));
+        verify(ec2, times(1)).createLaunchTemplate(any(CreateLaunchTemplateRequest.class));
+    }
+
+    @Test
+    public void deletesTheLaunchTemplateOfThePreviousContent() throws Exception {
+        ArgumentCaptor<CreateLaunchTemplateRequest> created = ArgumentCaptor.forClass(CreateLaunchTemplateRequest.class);
+        template.provision(1, EnumSet.of(SlaveTemplate.ProvisionOptions.ALLOW_CREATE));
+        template.setAmi("ami-2");
+        template.provision(1, EnumSet.of(SlaveTemplate.ProvisionOptions.ALLOW_CREATE));
+
+        verify(ec2, times(2)).createLaunchTemplate(created.capture());
+        String first = created.getAllValues().get(0).getLaunchTemplateName();
+        String second = created.getAllValues().get(1).getLaunchTemplateName();
+        assertTrue(first.startsWith(LaunchTemplateCache.NAME_PREFIX));
+        assertNotEquals(first, second);
+        verify(ec2, times(1)).deleteLaunchTemplate(any(DeleteLaunchTemplateRequest.class));
+        List<LaunchTemplate> left = ec2.describeLaunchTemplates(new DescribeLaunchTemplatesRequest()
+                .withLaunchTemplateNames(first, second)).getLaunchTemplates();
+        assertEquals(1, left.size());
+        assertEquals(second, left.get(0).getLaunchTemplateName());
+    }
+
+    @Test
+    public void launchTemplateDigestIgnoresTheOrderOfSets() {
+        RequestLaunchTemplateData data = new RequestLaunchTemplateData().withImageId("ami-1")
+                .withSecurityGroupIds("sg-1", "sg-2")
+                .withTagSpecifications(new LaunchTemplateTagSpecificationRequest().withTags(new Tag("a", "1"), new Tag("b", "2")));
+        RequestLaunchTemplateData reordered = new RequestLaunchTemplateData().withImageId("ami-1")
+                .withSecurityGroupIds("sg-2", "sg-1")
+                .withTagSpecifications(new LaunchTemplateTagSpecificationRequest().withTags(new Tag("b", "2"), new Tag("a", "1")));
+        assertEquals(LaunchTemplateCache.getDigest(data), LaunchTemplateCache.getDigest(reordered));
+        assertNotEquals(LaunchTemplateCache.getDigest(data), LaunchTemplateCache.getDigest(reordered.withImageId("ami-2")));
+    }
+
+    @Test
+    public void usesTheInstancesReturnedByTheFleet() throws Exception {
+        // Instances not visible yet are known from what the fleet returned
+        AmazonServiceException notFound = new AmazonServiceException("The instance IDs do not exist");
+        notFound.setErrorCode("InvalidInstanceID.NotFound");
+        doThrow(notFound).when(ec2).describeInstances(argThat((DescribeInstancesRequest request) -> request.getInstanceIds().size() > 1));
+
+        List<EC2AbstractSlave> slaves = template.provision(2, EnumSet.of(SlaveTemplate.ProvisionOptions.ALLOW_CREATE));
+        assertEquals(2, slaves.size());
+        for (EC2AbstractSlave slave : slaves) {
+            assertTrue(slave.getInstanceId().startsWith("i-"));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesResult;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+import com.amazonaws.services.ec2.model.Image;
+import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class ImageCacheTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private AmazonEC2 ec2;
+
+    private AmazonEC2Cloud cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        ec2 = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        AmazonEC2FactoryMockImpl.mock = ec2;
+        cloud = new AmazonEC2Cloud("us-east-1", true, "abc", "us-east-1", "ghi", "3", Collections.emptyList(), "roleArn", "roleSessionName");
+        r.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        AmazonEC2FactoryMockImpl.mock = null;
+    }
+
+    @Test
+    public void describesEachImageOnceAndHandsOutCopies() throws Exception {
+        Image image = new Image().withImageId("ami-1").withRootDeviceType("ebs").withBlockDeviceMappings(
+                new BlockDeviceMapping().withDeviceName("/dev/xvda").withEbs(new EbsBlockDevice().withEncrypted(true)),
+                new BlockDeviceMapping().withDeviceName("/dev/xvdb").withVirtualName("ephemeral0"));
+        doReturn(new DescribeImagesResult().withImages(image)).when(ec2).describeImages(any(DescribeImagesRequest.class));
+
+        ImageCache cache = new ImageCache(cloud);
+        ImageCache.Entry entry = cache.get("ami-1");
+        assertSame(entry, cache.get("ami-1"));
+        verify(ec2, times(1)).describeImages(any(DescribeImagesRequest.class));
+
+        BlockDeviceMapping root = entry.getRootDeviceMapping();
+        assertEquals("/dev/xvda", root.getDeviceName());
+        assertTrue(root.getEbs().getDeleteOnTermination());
+        assertNull(root.getEbs().getEncrypted());
+        root.getEbs().setVolumeSize(100);
+        assertNull(entry.getRootDeviceMapping().getEbs().getVolumeSize());
+        assertTrue(image.getBlockDeviceMappings().get(0).getEbs().getEncrypted());
+
+        List<BlockDeviceMapping> ephemeral = entry.getEphemeralDeviceMappings();
+        assertEquals(4, ephemeral.size());
+        assertEquals("/dev/xvdc", ephemeral.get(0).getDeviceName());
+        assertEquals("ephemeral0", ephemeral.get(0).getVirtualName());
+    }
+}
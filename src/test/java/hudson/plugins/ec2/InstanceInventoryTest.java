@@ -0,0 +1,123 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.GroupIdentifier;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
+import jenkins.model.JenkinsLocationConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class InstanceInventoryTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private AmazonEC2 ec2;
+
+    private AmazonEC2Cloud cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        ec2 = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        AmazonEC2FactoryMockImpl.mock = ec2;
+        doReturn(new DescribeSpotInstanceRequestsResult()).when(ec2).describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class));
+        cloud = new AmazonEC2Cloud("us-east-1", true, "abc", "us-east-1", "ghi", "3", Collections.emptyList(), "roleArn", "roleSessionName");
+        r.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        AmazonEC2FactoryMockImpl.mock = null;
+    }
+
+    @Test
+    public void fetchesAllPagesOnceWithinMaxAge() throws Exception {
+        DescribeInstancesResult first = new DescribeInstancesResult()
+                .withReservations(new Reservation().withInstances(instance("i-1", InstanceStateName.Running)))
+                .withNextToken("page-2");
+        DescribeInstancesResult second = new DescribeInstancesResult()
+                .withReservations(new Reservation().withInstances(instance("i-2", InstanceStateName.Stopped)));
+        doReturn(first, second).when(ec2).describeInstances(any(DescribeInstancesRequest.class));
+
+        InstanceInventory inventory = cloud.getInventory();
+        InstanceInventory.Snapshot snapshot = inventory.get();
+        assertEquals(2, snapshot.getInstances().size());
+        assertNotNull(snapshot.getInstance("i-2"));
+
+        assertEquals(Collections.singletonMap(EC2Cloud.EC2_SLAVE_TYPE_DEMAND,
+                Collections.singletonMap("ami-1", Collections.singleton("i-1"))), snapshot.getActive().getIds());
+
+        inventory.get();
+        inventory.get();
+        ArgumentCaptor<DescribeInstancesRequest> requests = ArgumentCaptor.forClass(DescribeInstancesRequest.class);
+        verify(ec2, times(2)).describeInstances(requests.capture());
+        DescribeInstancesRequest request = requests.getAllValues().get(0);
+        assertEquals(Integer.valueOf(InstanceInventory.PAGE_SIZE), request.getMaxResults());
+        assertTrue(request.getFilters().contains(new Filter("tag:" + EC2Tag.TAG_NAME_JENKINS_SERVER_URL)
+                .withValues(JenkinsLocationConfiguration.get().getUrl())));
+    }
+
+    @Test
+    public void launchedInstancesArePendingUntilSeen() throws Exception {
+        doReturn(new DescribeInstancesResult()).when(ec2).describeInstances(any(DescribeInstancesRequest.class));
+
+        InstanceInventory inventory = cloud.getInventory();
+        inventory.get();
+        Tag typeTag = new Tag(EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE, EC2Cloud.EC2_SLAVE_TYPE_DEMAND);
+        inventory.recordLaunched(Collections.singletonList(new Instance().withInstanceId("i-3")), Collections.singletonList(typeTag));
+
+        Instance pending = inventory.get().getInstance("i-3");
+        assertNotNull(pending);
+        assertEquals(InstanceStateName.Pending.toString(), pending.getState().getName());
+        assertEquals(Collections.singletonList(typeTag), pending.getTags());
+
+        inventory.evict("i-3");
+        assertNull(inventory.get().getInstance("i-3"));
+    }
+
+    @Test
+    public void matchesFiltersLocally() {
+        Instance instance = instance("i-4", InstanceStateName.Stopped)
+                .withSecurityGroups(new GroupIdentifier().withGroupId("sg-1").withGroupName("default"));
+
+        assertTrue(InstanceInventory.matches(instance, Arrays.asList(
+                new Filter("image-id").withValues("ami-1"),
+                new Filter("instance.group-id").withValues("sg-2", "sg-1"),
+                new Filter("tag:" + EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE).withValues(EC2Cloud.EC2_SLAVE_TYPE_DEMAND))));
+        assertFalse(InstanceInventory.matches(instance, Collections.singletonList(new Filter("image-id").withValues("ami-2"))));
+        assertFalse(InstanceInventory.matches(instance, Collections.singletonList(new Filter("unknown").withValues("x"))));
+    }
+
+    private static Instance instance(String id, InstanceStateName state) {
+        return new Instance().withInstanceId(id).withImageId("ami-1")
+                .withState(new com.amazonaws.services.ec2.model.InstanceState().withName(state))
+                .withTags(new Tag(EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE, EC2Cloud.EC2_SLAVE_TYPE_DEMAND),
+                        new Tag(EC2Tag.TAG_NAME_JENKINS_SERVER_URL, JenkinsLocationConfiguration.get().getUrl()));
+    }
+}
@@ -0,0 +1,182 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.ec2.model.KeyPair;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.SpotInstanceState;
+import com.amazonaws.services.ec2.model.SpotInstanceStatus;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import hudson.model.Node;
+import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.ArgumentCaptor;
+import org.powermock.reflect.Whitebox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class PendingInstanceTrackerTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private AmazonEC2 ec2;
+
+    private AmazonEC2Cloud cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        ec2 = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        AmazonEC2FactoryMockImpl.mock = ec2;
+        cloud = new AmazonEC2Cloud("us-east-1", true, "abc", "us-east-1", "ghi", "3", Collections.emptyList(), "roleArn", "roleSessionName");
+        r.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        AmazonEC2FactoryMockImpl.mock = null;
+    }
+
+    @Test
+    public void checksAllPendingInstancesInOneCall() throws Exception {
+        doReturn(new DescribeInstancesResult().withReservations(new Reservation().withInstances(
+                instance("i-1", InstanceStateName.Running),
+                instance("i-2", InstanceStateName.Pending),
+                instance("i-3", InstanceStateName.Terminated))))
+                .when(ec2).describeInstances(any(DescribeInstancesRequest.class));
+
+        PendingInstanceTracker tracker = new PendingInstanceTracker(cloud);
+        EC2OndemandSlave running = new EC2OndemandSlave("i-1");
+        CompletableFuture<Node> first = tracker.track(null, running);
+        CompletableFuture<Node> second = tracker.track(null, new EC2OndemandSlave("i-2"));
+        CompletableFuture<Node> third = tracker.track(null, new EC2OndemandSlave("i-3"));
+        tracker.tick();
+
+        assertSame(running, first.get());
+        assertFalse(second.isDone());
+        assertNull(third.get());
+        assertEquals(1, tracker.size());
+
+        ArgumentCaptor<DescribeInstancesRequest> request = ArgumentCaptor.forClass(DescribeInstancesRequest.class);
+        verify(ec2, times(1)).describeInstances(request.capture());
+        assertEquals(Arrays.asList("i-1", "i-2", "i-3"), request.getValue().getFilters().get(0).getValues());
+    }
+
+    @Test
+    public void waitsForInstancesEC2DoesNotReportYet() throws Exception {
+        doReturn(new DescribeInstancesResult()).when(ec2).describeInstances(any(DescribeInstancesRequest.class));
+
+        PendingInstanceTracker tracker = new PendingInstanceTracker(cloud);
+        CompletableFuture<Node> future = tracker.track(null, new EC2OndemandSlave("i-4"));
+        tracker.tick();
+        tracker.tick();
+
+        assertFalse(future.isDone());
+        future.cancel(false);
+        tracker.tick();
+        assertTrue(future.isCancelled());
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void unfulfillableSpotRequestsFallBackToOndemand() throws Exception {
+        doReturn(new DescribeSpotInstanceRequestsResult().withSpotInstanceRequests(new SpotInstanceRequest()
+                .withSpotInstanceRequestId("sir-1").withState(SpotInstanceState.Cancelled)))
+                .when(ec2).describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class));
+        SlaveTemplate template = new SlaveTemplate("ami-1", "", new SpotConfiguration(true, "0.1", true, "0"), "", "foo", InstanceType.M1Large, false, "linux", Node.Mode.NORMAL, "spot", "bar", "bbb", "aaa", "1", "fff", null, "-Xmx1g", false, "", null, null, false, null, "", false, false, "", false, "");
+        AmazonEC2Cloud spotCloud = new AmazonEC2Cloud("spot", false, "abc", "us-east-1", "ghi", "", Collections.singletonList(template), null, null);
+        Whitebox.setInternalState(spotCloud, "usableKeyPair", new KeyPair().withKeyName("jenkins"));
+        r.jenkins.clouds.add(spotCloud);
+
+        SpotInstanceRequest spotRequest = new SpotInstanceRequest().withSpotInstanceRequestId("sir-1")
+                .withState(SpotInstanceState.Open)
+                .withStatus(new SpotInstanceStatus().withCode("capacity-not-available"));
+        spotCloud.getSpotRequests().record(spotRequest);
+        doReturn(new RunInstancesResult().withReservation(new Reservation().withInstances(new Instance().withInstanceId("i-5"))))
+                .when(ec2).runInstances(any(RunInstancesRequest.class));
+        doReturn(new DescribeInstancesResult()).when(ec2).describeInstances(any(DescribeInstancesRequest.class));
+
+        PendingInstanceTracker tracker = new PendingInstanceTracker(spotCloud);
+        CompletableFuture<Node> future = tracker.track(template, template.newSpotSlave(spotRequest));
+        tracker.tick();
+
+        ArgumentCaptor<CancelSpotInstanceRequestsRequest> cancel = ArgumentCaptor.forClass(CancelSpotInstanceRequestsRequest.class);
+        verify(ec2).cancelSpotInstanceRequests(cancel.capture());
+        assertEquals(Collections.singletonList("sir-1"), cancel.getValue().getSpotInstanceRequestIds());
+        ArgumentCaptor<RunInstancesRequest> run = ArgumentCaptor.forClass(RunInstancesRequest.class);
+        verify(ec2).runInstances(run.capture());
+        assertNull(run.getValue().getInstanceMarketOptions());
+        assertFalse(future.isDone());
+        verify(ec2, never()).terminateInstances(any(TerminateInstancesRequest.class));
+
+        // The planned node now waits for the on-demand instance
+        doReturn(new DescribeInstancesResult().withReservations(new Reservation().withInstances(instance("i-5", InstanceStateName.Running))))
+                .when(ec2).describeInstances(any(DescribeInstancesRequest.class));
+        tracker.tick();
+        Node node = future.get();
+        assertTrue(node instanceof EC2OndemandSlave);
+        assertEquals("i-5", ((EC2OndemandSlave) node).getInstanceId());
+    }
+
+    @Test
+    public void instancesOfCancelledSpotRequestsAreTerminated() throws Exception {
+        // Fulfilled between the last check and the cancellation
+        doReturn(new DescribeSpotInstanceRequestsResult().withSpotInstanceRequests(new SpotInstanceRequest()
+                .withSpotInstanceRequestId("sir-2").withState(SpotInstanceState.Cancelled).withInstanceId("i-6")))
+                .when(ec2).describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class));
+        SlaveTemplate template = new SlaveTemplate("ami-1", "", new SpotConfiguration(true, "0.1", true, "0"), "", "foo", InstanceType.M1Large, false, "linux", Node.Mode.NORMAL, "spot", "bar", "bbb", "aaa", "1", "fff", null, "-Xmx1g", false, "", null, null, false, null, "", false, false, "", false, "");
+        AmazonEC2Cloud spotCloud = new AmazonEC2Cloud("spot", false, "abc", "us-east-1", "ghi", "", Collections.singletonList(template), null, null);
+        Whitebox.setInternalState(spotCloud, "usableKeyPair", new KeyPair().withKeyName("jenkins"));
+        r.jenkins.clouds.add(spotCloud);
+
+        SpotInstanceRequest spotRequest = new SpotInstanceRequest().withSpotInstanceRequestId("sir-2")
+                .withState(SpotInstanceState.Open)
+                .withStatus(new SpotInstanceStatus().withCode("capacity-not-available"));
+        spotCloud.getSpotRequests().record(spotRequest);
+        doReturn(new RunInstancesResult().withReservation(new Reservation().withInstances(new Instance().withInstanceId("i-7"))))
+                .when(ec2).runInstances(any(RunInstancesRequest.class));
+        doReturn(new DescribeInstancesResult()).when(ec2).describeInstances(any(DescribeInstancesRequest.class));
+
+        PendingInstanceTracker tracker = new PendingInstanceTracker(spotCloud);
+        CompletableFuture<Node> future = tracker.track(template, template.newSpotSlave(spotRequest));
+        tracker.tick();
+
+        verify(ec2).terminateInstances(new TerminateInstancesRequest(Collections.singletonList("i-6")));
+        // The planned node still falls back to on-demand
+        verify(ec2).runInstances(any(RunInstancesRequest.class));
+        assertFalse(future.isDone());
+    }
+
+    private static Instance instance(String id, InstanceStateName state) {
+        return new Instance().withInstanceId(id).withLaunchTime(new Date())
+                .withState(new com.amazonaws.services.ec2.model.InstanceState().withName(state));
+    }
+}
@@ -0,0 +1,122 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AmazonEC2Exception;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class RateLimitedAmazonEC2Test {
+
+    @Test
+    public void callsAreCategorized() throws Exception {
+        assertEquals(ApiRateLimiter.Category.DESCRIBE, RateLimitedAmazonEC2.getCategory(AmazonEC2.class.getMethod("describeInstances", DescribeInstancesRequest.class)));
+        assertEquals(ApiRateLimiter.Category.DESCRIBE, RateLimitedAmazonEC2.getCategory(AmazonEC2.class.getMethod("describeInstances")));
+        assertEquals(ApiRateLimiter.Category.MUTATE, RateLimitedAmazonEC2.getCategory(AmazonEC2.class.getMethod("runInstances", RunInstancesRequest.class)));
+        assertEquals(ApiRateLimiter.Category.MUTATE, RateLimitedAmazonEC2.getCategory(AmazonEC2.class.getMethod("terminateInstances", TerminateInstancesRequest.class)));
+        assertEquals(ApiRateLimiter.Category.TAG, RateLimitedAmazonEC2.getCategory(AmazonEC2.class.getMethod("createTags", CreateTagsRequest.class)));
+        assertNull(RateLimitedAmazonEC2.getCategory(AmazonEC2.class.getMethod("shutdown")));
+        assertNull(RateLimitedAmazonEC2.getCategory(AmazonEC2.class.getMethod("setEndpoint", String.class)));
+    }
+
+    @Test
+    public void throttledCallsAreRetriedAtALowerRate() {
+        AmazonEC2 ec2 = Mockito.mock(AmazonEC2.class);
+        RunInstancesResult result = new RunInstancesResult();
+        doThrow(throttling()).doReturn(result).when(ec2).runInstances(any(RunInstancesRequest.class));
+        ApiRateLimiter limiter = new ApiRateLimiter();
+        ApiCallStats stats = new ApiCallStats();
+        AmazonEC2 client = RateLimitedAmazonEC2.wrap(ec2, limiter, stats);
+
+        try (ApiCallStats.Scope scope = ApiCallStats.enter(ApiCallStats.Subsystem.PROVISIONING)) {
+            assertSame(result, client.runInstances(new RunInstancesRequest()));
+        }
+        verify(ec2, times(2)).runInstances(any(RunInstancesRequest.class));
+        assertEquals(2, stats.getCalls("RunInstances"));
+        assertEquals(1, stats.getThrottles("RunInstances"));
+        assertEquals(2, stats.getCalls(ApiCallStats.Subsystem.PROVISIONING));
+        assertTrue(limiter.getRate(ApiRateLimiter.Category.MUTATE) < 5);
+        // Background describes make room for the mutating calls
+        assertTrue(limiter.getRate(ApiRateLimiter.Category.DESCRIBE) < 20);
+        assertSame(ec2, RateLimitedAmazonEC2.unwrap(client));
+    }
+
+    @Test
+    public void throttledCallsAreRetriedInOnePlace() {
+        AmazonEC2 ec2 = Mockito.mock(AmazonEC2.class);
+        AmazonEC2Exception error = throttling();
+        doThrow(error).when(ec2).runInstances(any(RunInstancesRequest.class));
+        AmazonEC2 client = RateLimitedAmazonEC2.wrap(ec2, new ApiRateLimiter(), new ApiCallStats());
+
+        try {
+            client.runInstances(new RunInstancesRequest());
+            fail();
+        } catch (AmazonEC2Exception e) {
+            assertSame(error, e);
+        }
+        verify(ec2, times(RateLimitedAmazonEC2.MAX_ATTEMPTS)).runInstances(any(RunInstancesRequest.class));
+        // The SDK leaves them to the proxy, but still retries server errors
+        assertFalse(EC2Cloud.RETRY_CONDITION.shouldRetry(new RunInstancesRequest(), throttling(), 0));
+        AmazonEC2Exception unavailable = new AmazonEC2Exception("Internal error");
+        unavailable.setErrorCode("InternalError");
+        unavailable.setStatusCode(500);
+        assertTrue(EC2Cloud.RETRY_CONDITION.shouldRetry(new RunInstancesRequest(), unavailable, 0));
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() {
+        AmazonEC2 ec2 = Mockito.mock(AmazonEC2.class);
+        AmazonEC2Exception error = new AmazonEC2Exception("Bad AMI");
+        error.setErrorCode("InvalidAMIID.NotFound");
+        doThrow(error).when(ec2).runInstances(any(RunInstancesRequest.class));
+        ApiCallStats stats = new ApiCallStats();
+        AmazonEC2 client = RateLimitedAmazonEC2.wrap(ec2, new ApiRateLimiter(), stats);
+
+        try {
+            client.runInstances(new RunInstancesRequest());
+            fail();
+        } catch (AmazonEC2Exception e) {
+            assertSame(error, e);
+        }
+        verify(ec2, times(1)).runInstances(any(RunInstancesRequest.class));
+        assertEquals(1, stats.getCalls(ApiCallStats.Subsystem.OTHER));
+        JSONObject json = stats.toJSON().getJSONObject("operations").getJSONObject("RunInstances");
+        assertEquals(1, json.getJSONObject("errors").getInt("InvalidAMIID.NotFound"));
+        assertEquals(0, json.getInt("throttles"));
+    }
+
+    @Test
+    public void rateGrowsBackAfterThrottling() {
+        ApiRateLimiter limiter = new ApiRateLimiter();
+        double max = limiter.getRate(ApiRateLimiter.Category.DESCRIBE);
+        limiter.throttled(ApiRateLimiter.Category.DESCRIBE);
+        assertEquals(max / 2, limiter.getRate(ApiRateLimiter.Category.DESCRIBE), 0.001);
+        for (int i = 0; i < 100; i++) {
+            limiter.succeeded(ApiRateLimiter.Category.DESCRIBE);
+        }
+        assertEquals(max, limiter.getRate(ApiRateLimiter.Category.DESCRIBE), 0.001);
+    }
+
+    private static AmazonEC2Exception throttling() {
+        AmazonEC2Exception e = new AmazonEC2Exception("Request limit exceeded.");
+        e.setErrorCode("RequestLimitExceeded");
+        e.setStatusCode(503);
+        return e;
+    }
+}
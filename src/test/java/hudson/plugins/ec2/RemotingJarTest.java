@@ -0,0 +1,41 @@
+package hudson.plugins.ec2;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RemotingJarTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void payloadIsSharedByLaunches() throws Exception {
+        RemotingJar.Payload payload = RemotingJar.getPayload();
+        assertSame(payload, RemotingJar.getPayload());
+
+        byte[] jar = r.jenkins.getJnlpJars(RemotingJar.NAME).readFully();
+        assertEquals(DigestUtils.sha256Hex(jar), payload.getDigest());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        payload.writeTo(out);
+        assertArrayEquals(jar, out.toByteArray());
+    }
+
+    @Test
+    public void digestFileIsCompared() throws Exception {
+        String digest = RemotingJar.getDigest();
+        assertTrue(RemotingJar.isCurrent(digest.toUpperCase() + "\n"));
+        assertFalse(RemotingJar.isCurrent(null));
+        assertFalse(RemotingJar.isCurrent(""));
+        assertEquals(digest, new String(RemotingJar.getDigestFile(), "US-ASCII"));
+    }
+}
@@ -36,6 +36,7 @@ import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -338,4 +339,42 @@ public class SlaveTemplateTest {
         assertEquals(subnet2, "subnet-456");
         assertEquals(subnet3, "subnet-123");
     }
+
+    @Test
+    public void testConfigRoundtripWarmPoolSize() throws Exception {
+        String description = "foo ami";
+        SlaveTemplate orig = new SlaveTemplate("ami1", EC2AbstractSlave.TEST_ZONE, null, "default", "foo", InstanceType.M1Large, false, "ttt", Node.Mode.NORMAL, description, "bar", "bbb", "aaa", "10", "fff", null, "-Xmx1g", true, "subnet 456", null, null, null, "", true, false, false, "", false, "", false, false, false, ConnectionStrategy.PRIVATE_IP, -1);
+        orig.setWarmPoolSize(3);
+        assertTrue(orig.isWarmPoolEnabled());
+
+        List<SlaveTemplate> templates = new ArrayList<SlaveTemplate>();
+        templates.add(orig);
+
+        AmazonEC2Cloud ac = new AmazonEC2Cloud("us-east-1", false, "abc", "us-east-1", "ghi", "3", templates, null, null);
+        r.jenkins.clouds.add(ac);
+
+        r.submit(r.createWebClient().goTo("configure").getFormByName("config"));
+        SlaveTemplate received = ((EC2Cloud) r.jenkins.clouds.iterator().next()).getTemplate(description);
+        r.assertEqualBeans(orig, received, "warmPoolSize");
+    }
+
+    @Test
+    public void testConfigRoundtripFleetProvisioning() throws Exception {
+        String description = "foo ami";
+        SlaveTemplate orig = new SlaveTemplate("ami1", EC2AbstractSlave.TEST_ZONE, null, "default", "foo", InstanceType.M1Large, false, "ttt", Node.Mode.NORMAL, description, "bar", "bbb", "aaa", "10", "fff", null, "-Xmx1g", false, "subnet-1 subnet-2", null, null, false, null, "", true, false, "", false, "");
+        orig.setFleetProvisioning(true);
+        orig.setAlternativeInstanceTypes("m5.large m5a.large");
+        assertTrue(orig.isFleetProvisioningEnabled());
+        assertEquals(Arrays.asList("m1.large", "m5.large", "m5a.large"), orig.getInstanceTypes());
+
+        List<SlaveTemplate> templates = new ArrayList<SlaveTemplate>();
+        templates.add(orig);
+
+        AmazonEC2Cloud ac = new AmazonEC2Cloud("us-east-1", false, "abc", "us-east-1", "ghi", "3", templates, null, null);
+        r.jenkins.clouds.add(ac);
+
+        r.submit(r.createWebClient().goTo("configure").getFormByName("config"));
+        SlaveTemplate received = ((EC2Cloud) r.jenkins.clouds.iterator().next()).getTemplate(description);
+        r.assertEqualBeans(orig, received, "fleetProvisioning,alternativeInstanceTypes");
+    }
 }
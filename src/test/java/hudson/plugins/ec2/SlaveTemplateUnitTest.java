@@ -4,7 +4,20 @@ import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.CreateTagsResult;
+import com.amazonaws.services.ec2.model.DescribeSecurityGroupsRequest;
+import com.amazonaws.services.ec2.model.DescribeSecurityGroupsResult;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.DescribeSubnetsResult;
+import com.amazonaws.services.ec2.model.AmazonEC2Exception;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceNetworkInterfaceSpecification;
 import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.SecurityGroup;
+import com.amazonaws.services.ec2.model.Subnet;
 import com.amazonaws.services.ec2.model.Tag;
 import hudson.model.Node;
 import org.junit.After;
@@ -13,8 +26,12 @@ import org.junit.Test;
 import org.powermock.reflect.Whitebox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
@@ -111,6 +128,127 @@ public class SlaveTemplateUnitTest {
             assertTrue(log.contains("Instance not found - InvalidInstanceRequestID.NotFound"));
         }
     }
+
+    @Test
+    public void testSecurityGroupsAreResolvedOncePerSubnet() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        AmazonEC2 ec2 = new AmazonEC2Client() {
+            @Override
+            public DescribeSecurityGroupsResult describeSecurityGroups(DescribeSecurityGroupsRequest request) {
+                calls.incrementAndGet();
+                return new DescribeSecurityGroupsResult().withSecurityGroups(
+                        new SecurityGroup().withGroupId("sg-1").withGroupName("default").withVpcId("vpc-1"));
+            }
+
+            @Override
+            public DescribeSubnetsResult describeSubnets(DescribeSubnetsRequest request) {
+                calls.incrementAndGet();
+                return new DescribeSubnetsResult().withSubnets(new Subnet().withSubnetId("subnet-1").withVpcId("vpc-1"));
+            }
+        };
+
+        SlaveTemplate orig = new SlaveTemplate("ami1", EC2AbstractSlave.TEST_ZONE, null, "default", "foo", InstanceType.M1Large, false, "ttt", Node.Mode.NORMAL, "foo ami", "bar", "bbb", "aaa", "10", "fff", null, "-Xmx1g", false, "subnet-1", null, null, false, null, "", true, false, "", false, "") {
+            @Override
+            protected Object readResolve() {
+                return null;
+            }
+        };
+        Whitebox.setInternalState(orig, "securityGroupSet", Collections.singleton("default"));
+        Whitebox.setInternalState(orig, "securityGroupCache", new ConcurrentHashMap<>());
+        Whitebox.setInternalState(orig, "subnetSelector", new SubnetSelector());
+        orig.chooseSubnetId();
+
+        assertEquals(Collections.singletonList("sg-1"), Whitebox.invokeMethod(orig, "getEc2SecurityGroups", ec2));
+        assertEquals(Collections.singletonList("sg-1"), Whitebox.invokeMethod(orig, "getEc2SecurityGroups", ec2));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testLaunchIsRetriedInTheNextSubnet() throws Exception {
+        final List<String> tried = new ArrayList<>();
+        AmazonEC2 ec2 = new AmazonEC2Client() {
+            @Override
+            public RunInstancesResult runInstances(RunInstancesRequest request) {
+                tried.add(request.getSubnetId());
+                if (request.getSubnetId().equals("subnet-1")) {
+                    AmazonEC2Exception e = new AmazonEC2Exception("No capacity");
+                    e.setErrorCode("InsufficientInstanceCapacity");
+                    throw e;
+                }
+                return new RunInstancesResult().withReservation(new Reservation().withInstances(new Instance().withInstanceId("i-1")));
+            }
+        };
+
+        SlaveTemplate orig = new SlaveTemplate("ami1", EC2AbstractSlave.TEST_ZONE, null, "default", "foo", InstanceType.M1Large, false, "ttt", Node.Mode.NORMAL, "foo ami", "bar", "bbb", "aaa", "10", "fff", null, "-Xmx1g", false, "subnet-1 subnet-2", null, null, false, null, "", true, false, "", false, "") {
+            @Override
+            protected Object readResolve() {
+                return null;
+            }
+        };
+        Whitebox.setInternalState(orig, "securityGroupSet", Collections.emptySet());
+        SubnetSelector selector = new SubnetSelector();
+        Whitebox.setInternalState(orig, "subnetSelector", selector);
+
+        List<Instance> instances = Whitebox.invokeMethod(orig, "runInstances", ec2, new RunInstancesRequest("ami1", 1, 1),
+                new InstanceNetworkInterfaceSpecification(), Arrays.asList("subnet-1", "subnet-2"));
+
+        assertEquals(1, instances.size());
+        assertEquals(Arrays.asList("subnet-1", "subnet-2"), tried);
+        assertEquals("subnet-2", orig.getCurrentSubnetId());
+        // The failed subnet is tried last until it recovers
+        assertEquals("subnet-2", selector.rank(Arrays.asList("subnet-1", "subnet-2")).get(0));
+        assertEquals("subnet-2", selector.rank(Arrays.asList("subnet-1", "subnet-2")).get(0));
+    }
+
+    @Test
+    public void testSecurityGroupsAreResolvedForEachSubnetTried() throws Exception {
+        final List<List<String>> groupsTried = new ArrayList<>();
+        AmazonEC2 ec2 = new AmazonEC2Client() {
+            @Override
+            public DescribeSecurityGroupsResult describeSecurityGroups(DescribeSecurityGroupsRequest request) {
+                // A group of the same name in each VPC
+                return new DescribeSecurityGroupsResult().withSecurityGroups(
+                        new SecurityGroup().withGroupId("sg-1").withGroupName("default").withVpcId("vpc-1"),
+                        new SecurityGroup().withGroupId("sg-2").withGroupName("default").withVpcId("vpc-2"));
+            }
+
+            @Override
+            public DescribeSubnetsResult describeSubnets(DescribeSubnetsRequest request) {
+                for (Filter filter : request.getFilters()) {
+                    if (filter.getName().equals("subnet-id") && filter.getValues().contains("subnet-1")) {
+                        return new DescribeSubnetsResult().withSubnets(new Subnet().withSubnetId("subnet-1").withVpcId("vpc-1"));
+                    }
+                }
+                return new DescribeSubnetsResult().withSubnets(new Subnet().withSubnetId("subnet-2").withVpcId("vpc-2"));
+            }
+
+            @Override
+            public RunInstancesResult runInstances(RunInstancesRequest request) {
+                groupsTried.add(new ArrayList<>(request.getSecurityGroupIds()));
+                if (request.getSubnetId().equals("subnet-1")) {
+                    AmazonEC2Exception e = new AmazonEC2Exception("No capacity");
+                    e.setErrorCode("InsufficientInstanceCapacity");
+                    throw e;
+                }
+                return new RunInstancesResult().withReservation(new Reservation().withInstances(new Instance().withInstanceId("i-1")));
+            }
+        };
+
+        SlaveTemplate orig = new SlaveTemplate("ami1", EC2AbstractSlave.TEST_ZONE, null, "default", "foo", InstanceType.M1Large, false, "ttt", Node.Mode.NORMAL, "foo ami", "bar", "bbb", "aaa", "10", "fff", null, "-Xmx1g", false, "subnet-1 subnet-2", null, null, false, null, "", false, false, "", false, "") {
+            @Override
+            protected Object readResolve() {
+                return null;
+            }
+        };
+        Whitebox.setInternalState(orig, "securityGroupSet", Collections.singleton("default"));
+        Whitebox.setInternalState(orig, "securityGroupCache", new ConcurrentHashMap<>());
+        Whitebox.setInternalState(orig, "subnetSelector", new SubnetSelector());
+
+        Whitebox.invokeMethod(orig, "runInstances", ec2, new RunInstancesRequest("ami1", 1, 1),
+                new InstanceNetworkInterfaceSpecification(), Arrays.asList("subnet-1", "subnet-2"));
+
+        assertEquals(Arrays.asList(Collections.singletonList("sg-1"), Collections.singletonList("sg-2")), groupsTried);
+    }
 }
 
 class TestHandler extends Handler {
@@ -0,0 +1,182 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSpotPriceHistoryRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotPriceHistoryResult;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.DescribeSubnetsResult;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.ec2.model.KeyPair;
+import com.amazonaws.services.ec2.model.RequestSpotInstancesRequest;
+import com.amazonaws.services.ec2.model.RequestSpotInstancesResult;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.SpotInstanceStatus;
+import com.amazonaws.services.ec2.model.SpotPrice;
+import com.amazonaws.services.ec2.model.Subnet;
+import hudson.model.Node;
+import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.ArgumentCaptor;
+import org.powermock.reflect.Whitebox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class SpotPriceCacheTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private AmazonEC2 ec2;
+
+    private AmazonEC2Cloud cloud;
+
+    private SlaveTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        ec2 = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        AmazonEC2FactoryMockImpl.mock = ec2;
+        doReturn(new DescribeSpotPriceHistoryResult().withSpotPriceHistory(
+                price("m1.large", "us-east-1a", "0.10"),
+                price("m5.large", "us-east-1a", "0.05"),
+                price("m5.large", "us-east-1b", "0.04"),
+                price("m5.xlarge", "us-east-1a", "0.06"),
+                price("m5.xlarge", "us-east-1b", "0.09")))
+                .when(ec2).describeSpotPriceHistory(any(DescribeSpotPriceHistoryRequest.class));
+        doReturn(new RequestSpotInstancesResult().withSpotInstanceRequests(new SpotInstanceRequest()
+                .withSpotInstanceRequestId("sir-1")
+                .withStatus(new SpotInstanceStatus().withCode("pending-evaluation"))))
+                .when(ec2).requestSpotInstances(any(RequestSpotInstancesRequest.class));
+
+        template = new SlaveTemplate("ami-1", "", new SpotConfiguration(true, "0.5", false, "0"), "", "foo", InstanceType.M1Large, false, "linux", Node.Mode.NORMAL, "spot", "bar", "bbb", "aaa", "1", "fff", null, "-Xmx1g", false, "", null, null, false, null, "", false, false, "", false, "");
+        template.setAlternativeInstanceTypes("m5.large m5.xlarge");
+
+        cloud = new AmazonEC2Cloud("us-east-1", false, "abc", "us-east-1", "ghi", "", Collections.singletonList(template), null, null);
+        Whitebox.setInternalState(cloud, "usableKeyPair", new KeyPair().withKeyName("jenkins"));
+        r.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        AmazonEC2FactoryMockImpl.mock = null;
+    }
+
+    @Test
+    public void vcpusFollowTheInstanceSize() {
+        assertEquals(1, SpotPriceCache.getVcpus("t2.micro"));
+        assertEquals(2, SpotPriceCache.getVcpus("m5.large"));
+        assertEquals(4, SpotPriceCache.getVcpus("m5.xlarge"));
+        assertEquals(96, SpotPriceCache.getVcpus("m5.24xlarge"));
+        assertEquals(0, SpotPriceCache.getVcpus("m5.metal"));
+    }
+
+    @Test
+    public void cheapestPerVcpuIsChosenFromTheCache() throws Exception {
+        assertNull(template.chooseSpotInstanceType());
+
+        new SpotPriceUpdater().execute(null);
+        ArgumentCaptor<DescribeSpotPriceHistoryRequest> captor = ArgumentCaptor.forClass(DescribeSpotPriceHistoryRequest.class);
+        verify(ec2).describeSpotPriceHistory(captor.capture());
+        assertEquals(Arrays.asList("m1.large", "m5.large", "m5.xlarge"), captor.getValue().getInstanceTypes());
+        assertEquals(Collections.singletonList(SpotPriceCache.LINUX), captor.getValue().getProductDescriptions());
+
+        SpotPriceCache.Choice choice = template.chooseSpotInstanceType();
+        assertEquals("m5.xlarge", choice.getInstanceType());
+        assertEquals("us-east-1a", choice.getZone());
+
+        List<String> types = template.getInstanceTypes();
+        assertEquals("m5.large", cloud.getSpotPrices().getCheapest(types, Collections.singleton("us-east-1b"), SpotPriceCache.LINUX, Double.MAX_VALUE).getInstanceType());
+        assertNull(cloud.getSpotPrices().getCheapest(types, null, SpotPriceCache.WINDOWS, Double.MAX_VALUE));
+    }
+
+    @Test
+    public void pricesAboveTheBidAreSkipped() throws Exception {
+        r.jenkins.clouds.clear();
+        template = new SlaveTemplate("ami-1", "", new SpotConfiguration(true, "0.055", false, "0"), "", "foo", InstanceType.M1Large, false, "linux", Node.Mode.NORMAL, "spot", "bar", "bbb", "aaa", "1", "fff", null, "-Xmx1g", false, "", null, null, false, null, "", false, false, "", false, "");
+        template.setAlternativeInstanceTypes("m5.large m5.xlarge");
+        cloud = new AmazonEC2Cloud("us-east-1", false, "abc", "us-east-1", "ghi", "", Collections.singletonList(template), null, null);
+        r.jenkins.clouds.add(cloud);
+        cloud.getSpotPrices().refresh();
+
+        // m5.xlarge is cheaper per vCPU, but priced above the bid in every zone
+        SpotPriceCache.Choice choice = template.chooseSpotInstanceType();
+        assertEquals("m5.large", choice.getInstanceType());
+        assertEquals("us-east-1b", choice.getZone());
+    }
+
+    @Test
+    public void templatesWithSubnetsChooseInTheZonesOfTheirSubnets() throws Exception {
+        doReturn(new DescribeSubnetsResult().withSubnets(
+                new Subnet().withSubnetId("subnet-1").withAvailabilityZone("us-east-1b"),
+                new Subnet().withSubnetId("subnet-2").withAvailabilityZone("us-east-1c")))
+                .when(ec2).describeSubnets(any(DescribeSubnetsRequest.class));
+        r.jenkins.clouds.clear();
+        template = new SlaveTemplate("ami-1", "", new SpotConfiguration(true, "0.5", false, "0"), "", "foo", InstanceType.M1Large, false, "linux", Node.Mode.NORMAL, "spot", "bar", "bbb", "aaa", "1", "fff", null, "-Xmx1g", false, "subnet-1 subnet-2", null, null, false, null, "", false, false, "", false, "");
+        template.setAlternativeInstanceTypes("m5.large m5.xlarge");
+        cloud = new AmazonEC2Cloud("us-east-1", false, "abc", "us-east-1", "ghi", "", Collections.singletonList(template), null, null);
+        r.jenkins.clouds.add(cloud);
+        cloud.getSpotPrices().refresh();
+
+        SpotPriceCache.Choice choice = template.chooseSpotInstanceType();
+        assertEquals("m5.large", choice.getInstanceType());
+        assertEquals("us-east-1b", choice.getZone());
+    }
+
+    @Test
+    public void templatesWithSubnetsOfUnknownZonesKeepTheirInstanceType() throws Exception {
+        AmazonServiceException notFound = new AmazonServiceException("The subnet ID 'subnet-1' does not exist");
+        notFound.setErrorCode("InvalidSubnetID.NotFound");
+        doThrow(notFound).when(ec2).describeSubnets(any(DescribeSubnetsRequest.class));
+        r.jenkins.clouds.clear();
+        template = new SlaveTemplate("ami-1", "", new SpotConfiguration(true, "0.5", false, "0"), "", "foo", InstanceType.M1Large, false, "linux", Node.Mode.NORMAL, "spot", "bar", "bbb", "aaa", "1", "fff", null, "-Xmx1g", false, "subnet-1", null, null, false, null, "", false, false, "", false, "");
+        template.setAlternativeInstanceTypes("m5.large m5.xlarge");
+        cloud = new AmazonEC2Cloud("us-east-1", false, "abc", "us-east-1", "ghi", "", Collections.singletonList(template), null, null);
+        r.jenkins.clouds.add(cloud);
+        cloud.getSpotPrices().refresh();
+
+        assertNull(template.chooseSpotInstanceType());
+    }
+
+    @Test
+    public void spotRequestLaunchesTheCheapestInstanceType() throws Exception {
+        cloud.getSpotPrices().refresh();
+
+        template.provision(1, EnumSet.of(SlaveTemplate.ProvisionOptions.ALLOW_CREATE));
+
+        ArgumentCaptor<RequestSpotInstancesRequest> captor = ArgumentCaptor.forClass(RequestSpotInstancesRequest.class);
+        verify(ec2).requestSpotInstances(captor.capture());
+        assertEquals("m5.xlarge", captor.getValue().getLaunchSpecification().getInstanceType());
+        assertEquals("us-east-1a", captor.getValue().getLaunchSpecification().getPlacement().getAvailabilityZone());
+        // Prices are only read when refreshing
+        verify(ec2).describeSpotPriceHistory(any(DescribeSpotPriceHistoryRequest.class));
+    }
+
+    @Test
+    public void noPricesAreFetchedWithoutSpotTemplates() throws Exception {
+        r.jenkins.clouds.clear();
+        r.jenkins.clouds.add(new AmazonEC2Cloud("us-east-1", false, "abc", "us-east-1", "ghi", "", Collections.emptyList(), null, null));
+        new SpotPriceUpdater().execute(null);
+        verify(ec2, never()).describeSpotPriceHistory(any(DescribeSpotPriceHistoryRequest.class));
+    }
+
+    private static SpotPrice price(String instanceType, String zone, String price) {
+        return new SpotPrice().withInstanceType(instanceType).withAvailabilityZone(zone)
+                .withProductDescription(SpotPriceCache.LINUX).withSpotPrice(price);
+    }
+}
@@ -0,0 +1,84 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.SpotInstanceState;
+import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class SpotRequestCacheTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private AmazonEC2 ec2;
+
+    private AmazonEC2Cloud cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        ec2 = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        AmazonEC2FactoryMockImpl.mock = ec2;
+        cloud = new AmazonEC2Cloud("us-east-1", true, "abc", "us-east-1", "ghi", "3", Collections.emptyList(), "roleArn", "roleSessionName");
+        r.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        AmazonEC2FactoryMockImpl.mock = null;
+    }
+
+    @Test
+    public void refreshesAllKnownRequestsInOneCall() throws Exception {
+        doReturn(new DescribeSpotInstanceRequestsResult().withSpotInstanceRequests(
+                request("sir-1", SpotInstanceState.Active), request("sir-2", SpotInstanceState.Open)))
+                .when(ec2).describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class));
+
+        SpotRequestCache cache = new SpotRequestCache(cloud);
+        cache.record(request("sir-1", SpotInstanceState.Open));
+        assertEquals(SpotInstanceState.Open.toString(), cache.get("sir-1").getState());
+
+        // Fetching an unknown request refreshes the known ones along with it
+        assertEquals(SpotInstanceState.Open.toString(), cache.get("sir-2").getState());
+        assertEquals(SpotInstanceState.Active.toString(), cache.get("sir-1").getState());
+        assertNull(cache.get("sir-3"));
+
+        ArgumentCaptor<DescribeSpotInstanceRequestsRequest> requests = ArgumentCaptor.forClass(DescribeSpotInstanceRequestsRequest.class);
+        verify(ec2, times(2)).describeSpotInstanceRequests(requests.capture());
+        assertEquals(Arrays.asList("sir-1", "sir-2"), sorted(requests.getAllValues().get(0).getFilters().get(0).getValues()));
+
+        cache.invalidate(Collections.singletonList("sir-1"));
+        cache.get("sir-1");
+        cache.get("sir-2");
+        verify(ec2, times(3)).describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class));
+    }
+
+    private static List<String> sorted(List<String> values) {
+        List<String> copy = new ArrayList<>(values);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static SpotInstanceRequest request(String id, SpotInstanceState state) {
+        return new SpotInstanceRequest().withSpotInstanceRequestId(id).withState(state);
+    }
+}
@@ -0,0 +1,32 @@
+package hudson.plugins.ec2;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SubnetSelectorTest {
+
+    private static final List<String> SUBNETS = Arrays.asList("subnet-1", "subnet-2", "subnet-3");
+
+    @Test
+    public void roundRobinWhileNothingIsKnown() {
+        SubnetSelector selector = new SubnetSelector();
+        assertEquals(Arrays.asList("subnet-1", "subnet-2", "subnet-3"), selector.rank(SUBNETS));
+        assertEquals(Arrays.asList("subnet-2", "subnet-3", "subnet-1"), selector.rank(SUBNETS));
+        assertEquals(Arrays.asList("subnet-3", "subnet-1", "subnet-2"), selector.rank(SUBNETS));
+    }
+
+    @Test
+    public void failedSubnetsGoLastAndBusySubnetsAfterIdleOnes() {
+        SubnetSelector selector = new SubnetSelector();
+        selector.failed("subnet-1");
+        selector.launched("subnet-2", 5);
+        selector.launched("subnet-3", 1);
+        for (int i = 0; i < SUBNETS.size(); i++) {
+            assertEquals(Arrays.asList("subnet-3", "subnet-2", "subnet-1"), selector.rank(SUBNETS));
+        }
+    }
+}
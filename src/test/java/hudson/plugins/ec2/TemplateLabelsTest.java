@@ -35,6 +35,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class TemplateLabelsTest {
 
@@ -109,4 +112,19 @@ public class TemplateLabelsTest {
         assertEquals(false, ac.canProvision(null));
     }
 
+    @Test
+    public void testMatchingTemplatesAreIndexedByLabelExpression() throws Exception {
+        setUpCloud(LABEL1 + " " + LABEL2);
+
+        List<SlaveTemplate> matching = ac.getMatchingTemplates(Label.parseExpression(LABEL1 + " && " + LABEL2));
+        assertEquals(1, matching.size());
+        assertSame(matching, ac.getMatchingTemplates(Label.parseExpression(LABEL1 + " && " + LABEL2)));
+        assertSame(matching.get(0), ac.getTemplate(Label.parseExpression(LABEL1 + " && " + LABEL2)));
+
+        List<SlaveTemplate> none = ac.getMatchingTemplates(new LabelAtom("aaa"));
+        assertTrue(none.isEmpty());
+        assertSame(none, ac.getMatchingTemplates(new LabelAtom("aaa")));
+        assertNull(ac.getTemplate(new LabelAtom("aaa")));
+    }
+
 }
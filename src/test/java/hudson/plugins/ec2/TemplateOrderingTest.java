@@ -0,0 +1,63 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.services.ec2.model.InstanceType;
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class TemplateOrderingTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private AmazonEC2Cloud cloud;
+
+    private SlaveTemplate onDemand;
+
+    private SlaveTemplate expensiveSpot;
+
+    private SlaveTemplate cheapSpot;
+
+    @Before
+    public void setUp() throws Exception {
+        onDemand = template("on-demand", null, "10");
+        expensiveSpot = template("expensive spot", new SpotConfiguration(true, "0.5", false, "0"), "4");
+        cheapSpot = template("cheap spot", new SpotConfiguration(true, "0.1", false, "0"), "6");
+        cloud = new AmazonEC2Cloud("us-east-1", false, "abc", "us-east-1", "ghi", "", Arrays.asList(onDemand, expensiveSpot, cheapSpot), null, null);
+        r.jenkins.clouds.add(cloud);
+    }
+
+    @Test
+    public void testOrderings() {
+        List<SlaveTemplate> matching = cloud.getMatchingTemplates(new LabelAtom("linux"));
+        assertEquals(Arrays.asList(onDemand, expensiveSpot, cheapSpot), TemplateOrdering.PRIORITY.sort(matching, cloud));
+        assertEquals(Arrays.asList(cheapSpot, expensiveSpot, onDemand), TemplateOrdering.CHEAPEST.sort(matching, cloud));
+        assertEquals(Arrays.asList(onDemand, cheapSpot, expensiveSpot), TemplateOrdering.REMAINING_CAPACITY.sort(matching, cloud));
+
+        CapacityLedger.Reservation reservation = cloud.getCapacityLedger().reserve(onDemand, onDemand.getInstanceCap(), cloud.getInstanceCap(), 8);
+        assertNotNull(reservation);
+        reservation.commit(8);
+        assertEquals(Arrays.asList(cheapSpot, expensiveSpot, onDemand), TemplateOrdering.REMAINING_CAPACITY.sort(matching, cloud));
+    }
+
+    @Test
+    public void testConfigRoundtrip() throws Exception {
+        cloud.setTemplateOrdering(TemplateOrdering.REMAINING_CAPACITY);
+        r.submit(r.createWebClient().goTo("configure").getFormByName("config"));
+        assertEquals(TemplateOrdering.REMAINING_CAPACITY, r.jenkins.clouds.get(AmazonEC2Cloud.class).getTemplateOrdering());
+    }
+
+    private static SlaveTemplate template(String description, SpotConfiguration spotConfig, String instanceCap) {
+        return new SlaveTemplate("ami", "foo", spotConfig, "default", "zone", InstanceType.M1Large, false, "linux", Node.Mode.NORMAL, description, "bar", "bbb", "aaa", "1", "fff", null, "-Xmx1g", true, "subnet 456", Collections.emptyList(), null, false, instanceCap, "", false, false, null, false, "");
+    }
+}
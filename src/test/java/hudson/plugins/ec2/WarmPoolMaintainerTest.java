@@ -0,0 +1,88 @@
+package hudson.plugins.ec2;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.NodeProperty;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WarmPoolMaintainerTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private static CountDownLatch stopping;
+
+    private static CountDownLatch stopped;
+
+    @Test
+    public void warmingNodeDoesNotTakeBuilds() throws Exception {
+        stopping = new CountDownLatch(1);
+        stopped = new CountDownLatch(1);
+        WarmingSlave slave = new WarmingSlave(r.createComputerLauncher(null));
+        slave.setWarming(true);
+        r.jenkins.addNode(slave);
+        // Saved with the node, so that it is still warming after a restart
+        String config = FileUtils.readFileToString(new File(r.jenkins.getRootDir(), "nodes/warming/config.xml"), StandardCharsets.UTF_8);
+        assertTrue(config.contains("<warmingSince>"));
+        r.waitOnline(slave);
+        // Online, so the stop is under way, but not done yet
+        assertTrue(stopping.await(30, TimeUnit.SECONDS));
+        assertFalse(slave.toComputer().isAcceptingTasks());
+
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.setAssignedNode(slave);
+        QueueTaskFuture<FreeStyleBuild> build = p.scheduleBuild2(0);
+        r.jenkins.getQueue().maintain();
+        assertNotNull(r.jenkins.getQueue().getItem(p));
+        assertNull(p.getLastBuild());
+
+        // Once stopped, the node is not warming anymore
+        stopped.countDown();
+        r.assertBuildStatusSuccess(build);
+        assertFalse(slave.isWarming());
+    }
+
+    private static final class WarmingSlave extends EC2AbstractSlave {
+        private WarmingSlave(ComputerLauncher launcher) throws Exception {
+            super("warming", "i-1", "template", "fs", 1, Node.Mode.NORMAL, "warming", launcher, null, "", "",
+                    Collections.<NodeProperty<?>>emptyList(), "root", "", false, "", null, "cloud", false, 0,
+                    new UnixData(null, null, null, "22"), ConnectionStrategy.PRIVATE_IP, -1);
+        }
+
+        @Override
+        void stop() {
+            stopping.countDown();
+            try {
+                stopped.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void terminate() {
+        }
+
+        @Override
+        public String getEc2Type() {
+            return null;
+        }
+    }
+}
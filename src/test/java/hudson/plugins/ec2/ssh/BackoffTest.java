@@ -0,0 +1,20 @@
+package hudson.plugins.ec2.ssh;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class BackoffTest {
+
+    @Test
+    public void delaysDoubleUpToTheMaximumWithJitter() {
+        Backoff backoff = new Backoff(100, 1000);
+        long[] expected = {100, 200, 400, 800, 1000, 1000};
+        for (long max : expected) {
+            long delay = backoff.next();
+            assertTrue(delay + " not in [" + max / 2 + ", " + max + "]", delay >= max / 2 && delay <= max);
+        }
+        backoff.reset();
+        assertTrue(backoff.next() <= 100);
+    }
+}
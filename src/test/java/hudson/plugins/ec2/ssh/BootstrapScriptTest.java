@@ -0,0 +1,89 @@
+package hudson.plugins.ec2.ssh;
+
+import hudson.Functions;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+public class BootstrapScriptTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void exitCodesAreMappedToStatuses() {
+        assertEquals(BootstrapScript.Status.READY, BootstrapScript.Status.of(0));
+        assertEquals(BootstrapScript.Status.COPY_JAR, BootstrapScript.Status.of(64));
+        assertEquals(BootstrapScript.Status.INIT_SCRIPT_FAILED, BootstrapScript.Status.of(65));
+        assertEquals(BootstrapScript.Status.FAILED, BootstrapScript.Status.of(127));
+        assertEquals(BootstrapScript.Status.FAILED, BootstrapScript.Status.of(-1));
+        assertTrue(BootstrapScript.Status.COPY_JAR.isSuccessful());
+        assertFalse(BootstrapScript.Status.FAILED.isSuccessful());
+    }
+
+    @Test
+    public void delimitersDoNotAppearInTheText() {
+        assertEquals("EOF", BootstrapScript.delimiter("EOF", "echo EOF\n"));
+        assertEquals("EOF_2", BootstrapScript.delimiter("EOF", "EOF\r\nEOF_1\n"));
+    }
+
+    @Test
+    public void initScriptRunsOnlyWhenConfigured() {
+        assertFalse(new BootstrapScript("/tmp", "  ", "sudo", "0").getScript().contains("init.sh"));
+        String script = new BootstrapScript("/tmp", "echo hello", "sudo", "0").getScript();
+        assertTrue(script.contains("sudo \"$tmp_dir/init.sh\""));
+        assertTrue(script.contains("sudo touch ~/.hudson-run-init"));
+    }
+
+    @Test
+    public void scriptRunsInOneShell() throws Exception {
+        assumeFalse(Functions.isWindows());
+        File home = tmp.newFolder("home");
+        File tmpDir = new File(home, "tmp");
+        byte[] jar = "remoting".getBytes(StandardCharsets.UTF_8);
+        BootstrapScript script = new BootstrapScript(tmpDir.getAbsolutePath(), "echo init >> ~/init.log\n", "",
+                DigestUtils.sha256Hex(jar));
+
+        assertStatus(BootstrapScript.Status.COPY_JAR, script, home);
+        FileUtils.writeByteArrayToFile(new File(tmpDir, "remoting.jar"), jar);
+        // A jar without its digest is copied again
+        assertStatus(BootstrapScript.Status.COPY_JAR, script, home);
+        FileUtils.writeStringToFile(new File(tmpDir, "remoting.jar.sha256"), DigestUtils.sha256Hex(jar), StandardCharsets.US_ASCII);
+        assertStatus(BootstrapScript.Status.READY, script, home);
+        // The init script ran once
+        assertEquals("init\n", FileUtils.readFileToString(new File(home, "init.log"), StandardCharsets.UTF_8));
+
+        BootstrapScript failing = new BootstrapScript(tmpDir.getAbsolutePath(), "exit 3", "", "0");
+        assertStatus(BootstrapScript.Status.INIT_SCRIPT_FAILED, failing, tmp.newFolder("other"));
+    }
+
+    private void assertStatus(BootstrapScript.Status expected, BootstrapScript script, File home) throws Exception {
+        // Java and scp are found, whatever the machine running the test has installed
+        File bin = new File(tmp.getRoot(), "bin");
+        for (String command : new String[]{"java", "scp"}) {
+            File f = new File(bin, command);
+            FileUtils.writeStringToFile(f, "#!/bin/sh\n", StandardCharsets.UTF_8);
+            assertTrue(f.setExecutable(true));
+        }
+        ProcessBuilder pb = new ProcessBuilder("sh", "-c", script.getCommand()).redirectErrorStream(true);
+        pb.environment().put("HOME", home.getAbsolutePath());
+        pb.environment().put("PATH", bin.getAbsolutePath() + File.pathSeparator + System.getenv("PATH"));
+        Process p = pb.start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        IOUtils.copy(p.getInputStream(), output);
+        BootstrapScript.Status status = BootstrapScript.Status.of(p.waitFor());
+        assertEquals(output.toString(StandardCharsets.UTF_8.name()), expected, status);
+    }
+}
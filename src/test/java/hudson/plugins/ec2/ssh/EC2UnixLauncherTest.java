@@ -0,0 +1,100 @@
+package hudson.plugins.ec2.ssh;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SCPClient;
+import com.trilead.ssh2.Session;
+import hudson.plugins.ec2.RemotingJar;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EC2UnixLauncherTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void jarIsNotCopiedWhenTheDigestMatches() throws Exception {
+        Session sess = session(0, RemotingJar.getDigest() + "\n");
+        SCPClient scp = Mockito.mock(SCPClient.class);
+
+        assertFalse(EC2UnixLauncher.updateRemotingJar(connection(sess), scp, "/tmp", null));
+        verify(sess).execCommand("test -f /tmp/" + RemotingJar.NAME + " && cat /tmp/" + RemotingJar.DIGEST_FILE + " 2> /dev/null");
+        verify(scp, never()).put(any(byte[].class), anyString(), anyString());
+    }
+
+    @Test
+    public void jarIsCopiedWhenTheDigestDiffers() throws Exception {
+        SCPClient scp = Mockito.mock(SCPClient.class);
+        assertTrue(EC2UnixLauncher.updateRemotingJar(connection(session(0, "0123\n")), scp, "/tmp", null));
+        verify(scp).put(any(byte[].class), eq(RemotingJar.NAME), eq("/tmp"));
+        verify(scp).put(RemotingJar.getDigestFile(), RemotingJar.DIGEST_FILE, "/tmp");
+
+        // No digest file at all
+        scp = Mockito.mock(SCPClient.class);
+        assertTrue(EC2UnixLauncher.updateRemotingJar(connection(session(1, "")), scp, "/tmp", null));
+        verify(scp).put(any(byte[].class), eq(RemotingJar.NAME), eq("/tmp"));
+    }
+
+    @Test
+    public void jarIsCopiedWhenOnlyItsDigestIsLeft() throws Exception {
+        // test -f fails before the matching digest is printed
+        Session sess = session(1, "");
+        SCPClient scp = Mockito.mock(SCPClient.class);
+
+        assertTrue(EC2UnixLauncher.updateRemotingJar(connection(sess), scp, "/tmp", null));
+        verify(sess).execCommand(startsWith("test -f /tmp/" + RemotingJar.NAME + " && "));
+        verify(scp).put(any(byte[].class), eq(RemotingJar.NAME), eq("/tmp"));
+        verify(scp).put(RemotingJar.getDigestFile(), RemotingJar.DIGEST_FILE, "/tmp");
+    }
+
+    @Test
+    public void bootstrapScriptStatusIsTrusted() throws Exception {
+        Connection conn = Mockito.mock(Connection.class);
+        SCPClient scp = Mockito.mock(SCPClient.class);
+
+        assertFalse(EC2UnixLauncher.updateRemotingJar(conn, scp, "/tmp", BootstrapScript.Status.READY));
+        assertTrue(EC2UnixLauncher.updateRemotingJar(conn, scp, "/tmp", BootstrapScript.Status.COPY_JAR));
+        // The script already compared the digest
+        verify(conn, never()).openSession();
+        verify(scp).put(any(byte[].class), eq(RemotingJar.NAME), eq("/tmp"));
+    }
+
+    /**
+     * A session whose command prints the given output, and exits with the given status.
+     */
+    private static Session session(int exitStatus, String output) throws Exception {
+        Session sess = Mockito.mock(Session.class);
+        when(sess.getStdin()).thenReturn(new ByteArrayOutputStream());
+        when(sess.getStdout()).thenReturn(new ByteArrayInputStream(output.getBytes(StandardCharsets.US_ASCII)));
+        when(sess.getStderr()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(sess.waitForCondition(anyInt(), anyLong())).thenReturn(ChannelCondition.EOF,
+                ChannelCondition.EOF | ChannelCondition.EXIT_STATUS);
+        when(sess.getExitStatus()).thenReturn(exitStatus);
+        return sess;
+    }
+
+    private static Connection connection(Session sess) throws Exception {
+        Connection conn = Mockito.mock(Connection.class);
+        when(conn.openSession()).thenReturn(sess);
+        return conn;
+    }
+}
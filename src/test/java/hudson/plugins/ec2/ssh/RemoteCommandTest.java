@@ -0,0 +1,42 @@
+package hudson.plugins.ec2.ssh;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Session;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.when;
+
+public class RemoteCommandTest {
+
+    @Test
+    public void outputIsCopiedUntilTheExitStatus() throws Exception {
+        Session sess = Mockito.mock(Session.class);
+        when(sess.getStdout()).thenReturn(new ByteArrayInputStream("installing\n".getBytes(StandardCharsets.UTF_8)));
+        when(sess.getStderr()).thenReturn(new ByteArrayInputStream("warning\n".getBytes(StandardCharsets.UTF_8)));
+        when(sess.waitForCondition(anyInt(), anyLong())).thenReturn(ChannelCondition.EOF,
+                ChannelCondition.EOF | ChannelCondition.EXIT_STATUS);
+        when(sess.getExitStatus()).thenReturn(3);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(3, RemoteCommand.waitFor(sess, out, 0));
+        assertEquals("installing\nwarning\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void commandsOutlivingTheTimeoutHaveNoExitStatus() throws Exception {
+        Session sess = Mockito.mock(Session.class);
+        when(sess.getStdout()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(sess.getStderr()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(sess.waitForCondition(anyInt(), anyLong())).thenReturn(ChannelCondition.TIMEOUT);
+
+        assertEquals(RemoteCommand.NO_EXIT_STATUS, RemoteCommand.waitFor(sess, new ByteArrayOutputStream(), 1000));
+    }
+}
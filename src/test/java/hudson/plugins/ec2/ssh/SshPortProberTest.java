@@ -0,0 +1,23 @@
+package hudson.plugins.ec2.ssh;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SshPortProberTest {
+
+    @Test
+    public void openAndClosedPorts() throws Exception {
+        int port;
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            port = server.getLocalPort();
+            assertTrue(SshPortProber.get().isOpen("127.0.0.1", port, 5000));
+        }
+        assertFalse(SshPortProber.get().isOpen("127.0.0.1", port, 5000));
+        assertFalse(SshPortProber.get().isOpen("unresolvable.invalid", port, 5000));
+    }
+}
@@ -2,6 +2,9 @@ package hudson.plugins.ec2.util;
 
 import java.net.URL;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -10,8 +13,33 @@ import org.mockito.stubbing.Answer;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateFleetInstance;
+import com.amazonaws.services.ec2.model.CreateFleetRequest;
+import com.amazonaws.services.ec2.model.CreateFleetResult;
+import com.amazonaws.services.ec2.model.CreateLaunchTemplateRequest;
+import com.amazonaws.services.ec2.model.CreateLaunchTemplateResult;
+import com.amazonaws.services.ec2.model.DeleteLaunchTemplateRequest;
+import com.amazonaws.services.ec2.model.DeleteLaunchTemplateResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeLaunchTemplatesRequest;
+import com.amazonaws.services.ec2.model.DescribeLaunchTemplatesResult;
 import com.amazonaws.services.ec2.model.DescribeRegionsResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.FleetLaunchTemplateConfigRequest;
+import com.amazonaws.services.ec2.model.FleetLaunchTemplateOverrides;
+import com.amazonaws.services.ec2.model.FleetLaunchTemplateOverridesRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.LaunchTemplate;
+import com.amazonaws.services.ec2.model.LaunchTemplateAndOverridesResponse;
+import com.amazonaws.services.ec2.model.LaunchTemplateTagSpecificationRequest;
 import com.amazonaws.services.ec2.model.Region;
+import com.amazonaws.services.ec2.model.RequestLaunchTemplateData;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.ResourceType;
+import com.amazonaws.services.ec2.model.Tag;
 
 import hudson.Extension;
 import hudson.plugins.ec2.EC2Cloud;
@@ -51,6 +79,106 @@ public class AmazonEC2FactoryMockImpl implements AmazonEC2Factory {
         return mock;
     }
 
+    /**
+     * Makes the mock launch instances for EC2 Fleet requests. Launch templates are remembered until deleted, and can
+     * be looked up by name or by name prefix. Each instant fleet
+     * launches its whole target capacity, spread over its overrides, and returns the ids of its instances. Only
+     * instances looked up by id are described.
+     *
+     * @param mock
+     *            a mock from {@link #createAmazonEC2Mock()}
+     */
+    public static void mockFleetLaunches(AmazonEC2 mock) {
+        final Map<String, RequestLaunchTemplateData> launchTemplates = new ConcurrentHashMap<>();
+        final Map<String, LaunchTemplate> launchTemplatesByName = new ConcurrentHashMap<>();
+        final Map<String, Instance> launched = new ConcurrentHashMap<>();
+        final AtomicInteger ids = new AtomicInteger();
+
+        Mockito.doAnswer(invocation -> {
+            CreateLaunchTemplateRequest request = invocation.getArgument(0);
+            String id = "lt-" + ids.incrementAndGet();
+            LaunchTemplate lt = new LaunchTemplate().withLaunchTemplateId(id).withLaunchTemplateName(request.getLaunchTemplateName());
+            launchTemplates.put(id, request.getLaunchTemplateData());
+            launchTemplatesByName.put(lt.getLaunchTemplateName(), lt);
+            return new CreateLaunchTemplateResult().withLaunchTemplate(lt);
+        }).when(mock).createLaunchTemplate(Mockito.any(CreateLaunchTemplateRequest.class));
+
+        Mockito.doAnswer(invocation -> {
+            DescribeLaunchTemplatesRequest request = invocation.getArgument(0);
+            DescribeLaunchTemplatesResult result = new DescribeLaunchTemplatesResult();
+            for (LaunchTemplate lt : launchTemplatesByName.values()) {
+                if (request.getLaunchTemplateNames().contains(lt.getLaunchTemplateName())) {
+                    result.withLaunchTemplates(lt);
+                }
+                for (Filter filter : request.getFilters()) {
+                    String prefix = filter.getValues().get(0).replace("*", "");
+                    if (filter.getName().equals("launch-template-name") && lt.getLaunchTemplateName().startsWith(prefix)) {
+                        result.withLaunchTemplates(lt);
+                    }
+                }
+            }
+            return result;
+        }).when(mock).describeLaunchTemplates(Mockito.any(DescribeLaunchTemplatesRequest.class));
+
+        Mockito.doAnswer(invocation -> {
+            DeleteLaunchTemplateRequest request = invocation.getArgument(0);
+            launchTemplates.remove(request.getLaunchTemplateId());
+            launchTemplatesByName.values().removeIf(lt -> lt.getLaunchTemplateId().equals(request.getLaunchTemplateId()));
+            return new DeleteLaunchTemplateResult();
+        }).when(mock).deleteLaunchTemplate(Mockito.any(DeleteLaunchTemplateRequest.class));
+
+        Mockito.doAnswer(invocation -> {
+            CreateFleetRequest request = invocation.getArgument(0);
+            String fleetId = "fleet-" + ids.incrementAndGet();
+            FleetLaunchTemplateConfigRequest config = request.getLaunchTemplateConfigs().get(0);
+            RequestLaunchTemplateData data = launchTemplates.get(config.getLaunchTemplateSpecification().getLaunchTemplateId());
+            boolean spot = "spot".equals(request.getTargetCapacitySpecification().getDefaultTargetCapacityType());
+
+            CreateFleetResult result = new CreateFleetResult().withFleetId(fleetId);
+            for (int i = 0; i < request.getTargetCapacitySpecification().getTotalTargetCapacity(); i++) {
+                FleetLaunchTemplateOverridesRequest override = config.getOverrides().get(i % config.getOverrides().size());
+                String id = Integer.toString(ids.incrementAndGet());
+                Instance instance = new Instance()
+                        .withInstanceId("i-" + id)
+                        .withImageId(data.getImageId())
+                        .withInstanceType(override.getInstanceType())
+                        .withSubnetId(override.getSubnetId())
+                        .withState(new InstanceState().withName(InstanceStateName.Pending))
+                        .withTags(new Tag("aws:ec2:fleet-id", fleetId));
+                if (spot) {
+                    instance.setSpotInstanceRequestId("sir-" + id);
+                }
+                for (LaunchTemplateTagSpecificationRequest tags : data.getTagSpecifications()) {
+                    if (ResourceType.Instance.toString().equals(tags.getResourceType())) {
+                        instance.withTags(tags.getTags());
+                    }
+                }
+                launched.put(instance.getInstanceId(), instance);
+                result.withInstances(new CreateFleetInstance()
+                        .withInstanceIds(instance.getInstanceId())
+                        .withInstanceType(override.getInstanceType())
+                        .withLifecycle(spot ? "spot" : "on-demand")
+                        .withLaunchTemplateAndOverrides(new LaunchTemplateAndOverridesResponse()
+                                .withOverrides(new FleetLaunchTemplateOverrides()
+                                        .withInstanceType(override.getInstanceType())
+                                        .withSubnetId(override.getSubnetId()))));
+            }
+            return result;
+        }).when(mock).createFleet(Mockito.any(CreateFleetRequest.class));
+
+        Mockito.doAnswer(invocation -> {
+            DescribeInstancesRequest request = invocation.getArgument(0);
+            Reservation reservation = new Reservation();
+            for (String instanceId : request.getInstanceIds()) {
+                Instance instance = launched.get(instanceId);
+                if (instance != null) {
+                    reservation.withInstances(instance);
+                }
+            }
+            return new DescribeInstancesResult().withReservations(reservation);
+        }).when(mock).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+    }
+
     private static DescribeRegionsResult createDescribeRegionsResultMock() {
         DescribeRegionsResult mock = Mockito.mock(DescribeRegionsResult.class);
         Mockito.doReturn(Collections.singletonList(new Region().withRegionName(EC2Cloud.DEFAULT_EC2_HOST))).when(mock).getRegions();
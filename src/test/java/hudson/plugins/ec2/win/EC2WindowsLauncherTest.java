@@ -0,0 +1,67 @@
+package hudson.plugins.ec2.win;
+
+import hudson.plugins.ec2.RemotingJar;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EC2WindowsLauncherTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void jarIsNotSentWhenTheDigestMatches() throws Exception {
+        WinConnection connection = connection(RemotingJar.getDigest());
+
+        assertFalse(EC2WindowsLauncher.updateAgentJar(connection, "C:\\Windows\\Temp\\"));
+        verify(connection, never()).putFile(anyString());
+    }
+
+    @Test
+    public void jarIsSentWhenTheDigestDiffers() throws Exception {
+        WinConnection connection = connection("0123");
+        ByteArrayOutputStream jar = new ByteArrayOutputStream();
+        ByteArrayOutputStream digest = new ByteArrayOutputStream();
+        when(connection.putFile("C:\\Windows\\Temp\\" + RemotingJar.NAME)).thenReturn(jar);
+        when(connection.putFile("C:\\Windows\\Temp\\" + RemotingJar.DIGEST_FILE)).thenReturn(digest);
+
+        assertTrue(EC2WindowsLauncher.updateAgentJar(connection, "C:\\Windows\\Temp\\"));
+        assertArrayEquals(r.jenkins.getJnlpJars(RemotingJar.NAME).readFully(), jar.toByteArray());
+        assertArrayEquals(RemotingJar.getDigestFile(), digest.toByteArray());
+    }
+
+    @Test
+    public void jarIsSentWithoutADigestFile() throws Exception {
+        WinConnection connection = Mockito.mock(WinConnection.class);
+        when(connection.exists("C:\\Windows\\Temp\\" + RemotingJar.NAME)).thenReturn(true);
+        when(connection.putFile(anyString())).thenReturn(new ByteArrayOutputStream());
+
+        assertTrue(EC2WindowsLauncher.updateAgentJar(connection, "C:\\Windows\\Temp\\"));
+        verify(connection).putFile("C:\\Windows\\Temp\\" + RemotingJar.NAME);
+    }
+
+    /**
+     * A connection to an agent that has a copy of the jar, with the given digest file.
+     */
+    private static WinConnection connection(String digest) throws Exception {
+        WinConnection connection = Mockito.mock(WinConnection.class);
+        when(connection.exists(anyString())).thenReturn(true);
+        when(connection.getFile("C:\\Windows\\Temp\\" + RemotingJar.DIGEST_FILE))
+                .thenReturn(new ByteArrayInputStream(digest.getBytes(StandardCharsets.US_ASCII)));
+        return connection;
+    }
+}